@@ -2,9 +2,13 @@ package net.equestriworlds.horse;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.logging.Level;
 import java.util.stream.Stream;
 import net.md_5.bungee.api.ChatColor;
 import org.bukkit.command.Command;
@@ -14,7 +18,8 @@ import org.bukkit.entity.Player;
 import org.bukkit.inventory.ItemStack;
 
 final class AdminCommand extends CommandBase implements TabExecutor {
-    private final List<String> commands = Arrays.asList("edit", "new", "move", "info", "deletebrand", "spawntool", "spawnfeed", "navigate", "move");
+    private final List<String> commands = Arrays.asList("edit", "new", "move", "info", "deletebrand", "spawntool", "spawnfeed", "navigate", "move", "report", "convertstorage", "export", "import", "tick", "timings");
+    private boolean converting = false; // Main thread
 
     AdminCommand(HorsePlugin plugin) {
         super(plugin);
@@ -147,6 +152,139 @@ final class AdminCommand extends CommandBase implements TabExecutor {
             }
             return true;
         }
+        case "report": {
+            if (args.length != 1) return false;
+            String column = args[0].equals("stage") ? "breeding_stage" : args[0];
+            if (!HorseDatabase.REPORT_COLUMNS.contains(column)) throw new CommandException("Unknown column: " + args[0] + ".");
+            final String title = args[0];
+            this.plugin.getServer().getScheduler().runTaskAsynchronously(this.plugin, () -> {
+                    Map<String, Integer> counts;
+                    try {
+                        counts = this.plugin.getDatabase().countHorsesBy(column);
+                    } catch (IOException | IllegalStateException e) {
+                        this.plugin.getLogger().log(Level.WARNING, "Report by " + column + " failed", e);
+                        counts = null;
+                    }
+                    final Map<String, Integer> result = counts;
+                    if (!this.plugin.isEnabled()) return;
+                    this.plugin.getServer().getScheduler().runTask(this.plugin, () -> {
+                            if (result == null) {
+                                sender.sendMessage(ChatColor.RED + "Report failed. See console.");
+                                return;
+                            }
+                            sender.sendMessage("Horses by " + title + ":");
+                            for (Map.Entry<String, Integer> entry: result.entrySet()) {
+                                String value = entry.getKey();
+                                if (value == null) {
+                                    value = "None";
+                                } else if (column.equals("owner")) {
+                                    value = playerNameOrElse(UUID.fromString(value), value);
+                                }
+                                sender.sendMessage(" " + value + ": " + entry.getValue());
+                            }
+                        });
+                });
+            return true;
+        }
+        case "convertstorage": {
+            if (args.length != 1) return false;
+            String backend = args[0].toLowerCase();
+            if (!HorseDatabase.BACKENDS.contains(backend)) throw new CommandException("Unknown backend: " + args[0] + ".");
+            if (backend.equals(this.plugin.getDatabase().getBackend())) throw new CommandException("Already using " + backend + ".");
+            if (this.converting) throw new CommandException("A conversion is already running.");
+            // Everything pending must be in the current storage first.
+            // The writer thread is waited for in the background.
+            for (SpawnedHorse spawned: this.plugin.getSpawnedHorses()) spawned.extra.saveNow(this.plugin);
+            this.plugin.flushDirtyHorses();
+            this.converting = true;
+            sender.sendMessage("Copying all horses to " + backend + "...");
+            this.plugin.getServer().getScheduler().runTaskAsynchronously(this.plugin, () -> {
+                    String result;
+                    if (!this.plugin.getDatabaseWriter().flush(30000L)) {
+                        result = ChatColor.RED + "Database writer did not finish. Try again later.";
+                    } else {
+                        try {
+                            int count = this.plugin.getDatabase().convertTo(backend);
+                            result = "Copied " + count + " horses to " + backend + ". Set database.backend to " + backend + " and restart to use it. Changes made since the copy started are not in it.";
+                        } catch (IOException | RuntimeException e) {
+                            this.plugin.getLogger().log(Level.SEVERE, "Conversion to " + backend + " failed", e);
+                            result = ChatColor.RED + "Conversion failed: " + e.getMessage();
+                        }
+                    }
+                    final String message = result;
+                    if (!this.plugin.isEnabled()) return;
+                    this.plugin.getServer().getScheduler().runTask(this.plugin, () -> {
+                            this.converting = false;
+                            sender.sendMessage(message);
+                        });
+                });
+            return true;
+        }
+        case "export": {
+            if (args.length != 0) return false;
+            HorseTransfer transfer = this.plugin.getTransfer();
+            if (transfer.isRunning()) throw new CommandException("An export or import is already running.");
+            File file = transfer.startExport(sender);
+            sender.sendMessage("Exporting all horses to " + file.getName() + "...");
+            return true;
+        }
+        case "tick": {
+            if (args.length != 0) return false;
+            HorseTickBudget budget = this.plugin.getTickBudget();
+            sender.sendMessage("Horse tick budget: " + budget.getBudget() / 1000L + "us");
+            sender.sendMessage(" Last tick: " + budget.getTickNanos() / 1000L + "us, " + budget.getSubmitted() + " submitted, " + budget.getPerformed() + " performed, " + budget.getCarriedOver() + " carried over");
+            sender.sendMessage(" Waiting: " + budget.getQueueSize(HorseTickBudget.NORMAL) + " normal, " + budget.getQueueSize(HorseTickBudget.LOW) + " low");
+            sender.sendMessage(" Since startup: " + budget.getTicks() + " ticks, " + budget.getOverBudgetTicks() + " over budget, " + budget.getTotalPerformed() + " performed, " + budget.getTotalCarriedOver() + " carried over");
+            SpawnedHorseRegistry spawnedHorses = this.plugin.getSpawnedHorses();
+            int virtual = 0;
+            for (SpawnedHorse spawned: spawnedHorses) {
+                if (spawned.isVirtual()) virtual += 1;
+            }
+            sender.sendMessage(" Spawned horses: " + (spawnedHorses.size() - virtual) + " with entity, " + virtual + " virtual within " + (int)this.plugin.getVirtualizer().getRadius() + " blocks");
+            StringBuilder sb = new StringBuilder(" Horses per phase:");
+            for (int phase = 0; phase < SpawnedHorseRegistry.PHASES; phase += 1) sb.append(" ").append(spawnedHorses.getPhaseLoad(phase));
+            sender.sendMessage(sb.toString());
+            return true;
+        }
+        case "timings": {
+            if (args.length > 1) return false;
+            HorseTimings timings = this.plugin.getTimings();
+            if (args.length == 1 && args[0].equals("reset")) {
+                timings.reset();
+                sender.sendMessage("Horse timings reset.");
+                return true;
+            }
+            int minutes = HorseTimings.WINDOWS[0];
+            if (args.length == 1) {
+                try {
+                    minutes = Integer.parseInt(args[0].endsWith("m") ? args[0].substring(0, args[0].length() - 1) : args[0]);
+                } catch (NumberFormatException nfe) {
+                    minutes = -1;
+                }
+                if (Arrays.binarySearch(HorseTimings.WINDOWS, minutes) < 0) throw new CommandException("Window must be one of 1m, 5m, 15m.");
+            }
+            List<HorseTimings.Stats> stats = timings.getStats(minutes);
+            sender.sendMessage("Horse timings of the last " + minutes + "m, most total time first (calls, p50, p95, p99, max):");
+            if (stats.isEmpty()) sender.sendMessage(" Nothing recorded.");
+            for (HorseTimings.Stats stat: stats) {
+                sender.sendMessage(" " + stat.getName() + ": " + stat.getCalls()
+                                   + " " + HorseTimings.format(stat.getP50())
+                                   + " " + HorseTimings.format(stat.getP95())
+                                   + " " + HorseTimings.format(stat.getP99())
+                                   + " " + HorseTimings.format(stat.getMax())
+                                   + ChatColor.GRAY + " total " + HorseTimings.format(stat.getTotal()));
+            }
+            return true;
+        }
+        case "import": {
+            if (args.length != 1) return false;
+            HorseTransfer transfer = this.plugin.getTransfer();
+            if (transfer.isRunning()) throw new CommandException("An export or import is already running.");
+            if (!transfer.listDumps().contains(args[0])) throw new CommandException("Dump not found: " + args[0] + ".");
+            transfer.startImport(sender, new File(transfer.getFolder(), args[0]));
+            sender.sendMessage("Importing horses from " + args[0] + "...");
+            return true;
+        }
         default:
             return false;
         }
@@ -162,6 +300,18 @@ final class AdminCommand extends CommandBase implements TabExecutor {
         case "spawnfeed":
             if (args.length == 2) return tabComplete(args[1], Stream.concat(Arrays.stream(Feeding.Feed.values()).map(Enum::name).map(String::toLowerCase), Stream.of("all")));
             break;
+        case "report":
+            if (args.length == 2) return tabComplete(args[1], Stream.of("owner", "world", "breed", "gender", "age", "stage"));
+            break;
+        case "convertstorage":
+            if (args.length == 2) return tabComplete(args[1], HorseDatabase.BACKENDS.stream());
+            break;
+        case "import":
+            if (args.length == 2) return tabComplete(args[1], this.plugin.getTransfer().listDumps());
+            break;
+        case "timings":
+            if (args.length == 2) return tabComplete(args[1], Stream.of("1m", "5m", "15m", "reset"));
+            break;
         default: break;
         }
         return null;
@@ -7,6 +7,7 @@ import java.util.concurrent.ThreadLocalRandom;
 import lombok.Data;
 import lombok.RequiredArgsConstructor;
 import net.md_5.bungee.api.ChatColor;
+import org.bukkit.Location;
 import org.bukkit.Sound;
 import org.bukkit.SoundCategory;
 import org.bukkit.entity.AbstractHorse;
@@ -18,7 +19,6 @@ import org.bukkit.event.entity.EntityBreedEvent;
 
 @RequiredArgsConstructor
 public final class Breeding implements Listener {
-    public static final String COOLDOWN_BREED = "breed";
     private final HorsePlugin plugin;
 
     enum Flag {
@@ -105,15 +105,17 @@ public final class Breeding implements Listener {
         info.mother.getEntity().setAge(Integer.MAX_VALUE);
         Persistence pregnancy = new Persistence();
         pregnancy.conceived = Instant.now().getEpochSecond();
-        info.mother.extra.setCooldown(COOLDOWN_BREED, Util.ONE_DAY * 6 + ThreadLocalRandom.current().nextInt(Util.ONE_DAY)); // 6 - 7 days
+        info.mother.extra.setCooldown(Cooldown.BREED, Util.ONE_DAY * 6 + ThreadLocalRandom.current().nextInt(Util.ONE_DAY)); // 6 - 7 days
         pregnancy.partnerId = info.father.data.getId();
         info.mother.extra.setPregnancy(pregnancy);
         this.plugin.saveHorse(info.mother.data);
         // Father needs to recover
         info.father.data.setBreedingStage(BreedingStage.RECOVERY);
         info.father.getEntity().setAge(Integer.MAX_VALUE);
-        info.father.extra.setCooldown(COOLDOWN_BREED, Util.ONE_DAY);
+        info.father.extra.setCooldown(Cooldown.BREED, Util.ONE_DAY);
         this.plugin.saveHorse(info.father.data);
+        this.plugin.wakeHorse(info.mother);
+        this.plugin.wakeHorse(info.father);
         // Message
         String msg = "" + ChatColor.GOLD + info.mother.data.getMaskedName() + ChatColor.GOLD + " is now pregnant from " + info.father.data.getMaskedName() + ChatColor.GOLD + ".";
         breeder.sendMessage(msg);
@@ -149,56 +151,22 @@ public final class Breeding implements Listener {
     }
 
     /**
-     * Called by HorsePlugin once per second for every SpawnedHorse
-     * unless the BreedingStage is READY.
+     * Called by HorsePlugin whenever the SpawnedHorse is due on its
+     * timer wheel, unless the BreedingStage is READY.
      */
     void passSecond(SpawnedHorse spawned, long now) {
-        final int cooldown = spawned.extra.getCooldown(COOLDOWN_BREED);
+        final boolean due = !spawned.extra.isCoolingDown(Cooldown.BREED, now);
         switch (spawned.data.getBreedingStage()) {
         case PREGNANT: {
-            if (cooldown == 0) {
-                spawned.data.setBreedingStage(BreedingStage.LABOR);
-                Random random = ThreadLocalRandom.current();
-                // 2 hours
-                spawned.extra.setCooldown(COOLDOWN_BREED, random.nextInt(3600) + random.nextInt(3600));
-                this.plugin.saveHorse(spawned.data);
-                Player owner = spawned.data.getOwningPlayer();
-                if (owner != null) {
-                    owner.sendMessage(ChatColor.GOLD + "Your mare " + spawned.data.getMaskedName() + ChatColor.GOLD + " looks like it's going into labor within the next two hours. Better keep a close eye on her.");
-                    HorseEffects.friendJingle(this.plugin, owner);
-                }
+            if (due) {
+                startLabor(spawned, now);
                 return;
             }
-            // Complications
-            Persistence pregnancy = spawned.extra.getPregnancy();
-            if (!pregnancy.flags.contains(Flag.OVERWEIGHT) && spawned.data.getBodyCondition().score >= 7) {
-                pregnancy.flags.add(Flag.OVERWEIGHT);
-                double dice = ThreadLocalRandom.current().nextDouble();
-                boolean badLuck = dice < 0.25;
-                this.plugin.getLogger().info("Horse `" + spawned.data.getStrippedName() + "` owned by " + spawned.data.getOwnerName(this.plugin) + " is overweight. Dice=" + (int)(dice * 100.0) + ", BadLuck=" + badLuck + ".");
-                if (badLuck) {
-                    pregnancy.flags.add(Flag.MISCARRIAGE);
-                    // TODO: Laminitis
-                }
-                // Save
-                this.plugin.saveHorse(spawned.data);
-            }
-            if (!pregnancy.flags.contains(Flag.UNDERWEIGHT) && spawned.data.getBodyCondition().score <= 4) {
-                pregnancy.flags.add(Flag.UNDERWEIGHT);
-                this.plugin.saveHorse(spawned.data);
-                double dice = ThreadLocalRandom.current().nextDouble();
-                boolean badLuck = dice < 0.25;
-                this.plugin.getLogger().info("Horse `" + spawned.data.getStrippedName() + "` owned by " + spawned.data.getOwnerName(this.plugin) + " is underweight. Dice=" + (int)(dice * 100.0) + ", BadLuck=" + badLuck + ".");
-                if (badLuck) {
-                    pregnancy.flags.add(Flag.PREMATURE);
-                }
-                // Save
-                this.plugin.saveHorse(spawned.data);
-            }
+            checkComplications(spawned);
             return;
         }
         case LABOR: {
-            if (cooldown == 0) {
+            if (due) {
                 Persistence pregnancy = spawned.extra.getPregnancy();
                 spawned.extra.setPregnancy(null);
                 HorseData father = this.plugin.findHorse(pregnancy.partnerId);
@@ -206,7 +174,7 @@ public final class Breeding implements Listener {
                 // Miscarriage
                 if (father == null || pregnancy.flags.contains(Flag.MISCARRIAGE)) {
                     spawned.data.setBreedingStage(BreedingStage.RECOVERY);
-                    spawned.extra.setCooldown(COOLDOWN_BREED, Util.ONE_DAY * 7);
+                    spawned.extra.setCooldown(Cooldown.BREED, Util.ONE_DAY * 7);
                     this.plugin.saveHorse(spawned.data);
                     if (owner != null) {
                         owner.sendMessage(ChatColor.RED + "Your mare " + spawned.data.getMaskedName() + ChatColor.RED + " just had a miscarriage.");
@@ -216,7 +184,7 @@ public final class Breeding implements Listener {
                 }
                 // Finalize birth
                 spawned.data.setBreedingStage(BreedingStage.NURTURE);
-                spawned.extra.setCooldown(COOLDOWN_BREED, Util.ONE_DAY * 7);
+                spawned.extra.setCooldown(Cooldown.BREED, Util.ONE_DAY * 7);
                 this.plugin.saveHorse(spawned.data);
                 SpawnedHorse child = giveBirth(spawned, father);
                 if (owner != null) {
@@ -230,11 +198,98 @@ public final class Breeding implements Listener {
         case RECOVERY:
         case NURTURE:
         default:
-            if (spawned.extra.getCooldown(COOLDOWN_BREED) == 0) {
+            if (due) {
                 spawned.data.setBreedingStage(BreedingStage.READY);
                 this.plugin.saveHorse(spawned.data);
-                spawned.getEntity().setAge(0);
+                if (spawned.isPresent()) spawned.getEntity().setAge(0);
+            }
+        }
+    }
+
+    /**
+     * Get the Unix time of the next breeding event, unless the
+     * BreedingStage is READY.  Pregnancy complications depend on the
+     * body condition, which only changes along with feeding events,
+     * so they need no schedule of their own.
+     */
+    long nextEvent(SpawnedHorse spawned, long now) {
+        return spawned.extra.getDeadline(Cooldown.BREED);
+    }
+
+    /**
+     * Apply the breeding stage transition due at the given Unix time,
+     * if any, for a horse which was not spawned until then.  See
+     * HorsePlugin#catchUpHorse().  Labor is left to passSecond(),
+     * because giving birth needs the mare in the world.
+     */
+    void catchUp(SpawnedHorse spawned, long until) {
+        final boolean due = spawned.extra.getDeadline(Cooldown.BREED) <= until;
+        switch (spawned.data.getBreedingStage()) {
+        case PREGNANT:
+            checkComplications(spawned);
+            if (due) startLabor(spawned, until);
+            return;
+        case READY:
+        case LABOR:
+            return;
+        case RECOVERY:
+        case NURTURE:
+        default:
+            if (due) {
+                spawned.data.setBreedingStage(BreedingStage.READY);
+                this.plugin.saveHorse(spawned.data);
+            }
+        }
+    }
+
+    /**
+     * The pregnancy is over.  Labor ends within two hours of the
+     * given Unix time.
+     */
+    private void startLabor(SpawnedHorse spawned, long when) {
+        spawned.data.setBreedingStage(BreedingStage.LABOR);
+        Random random = ThreadLocalRandom.current();
+        // 2 hours
+        spawned.extra.setDeadline(Cooldown.BREED, when + (long)(random.nextInt(3600) + random.nextInt(3600)));
+        this.plugin.saveHorse(spawned.data);
+        Player owner = spawned.data.getOwningPlayer();
+        if (owner != null) {
+            owner.sendMessage(ChatColor.GOLD + "Your mare " + spawned.data.getMaskedName() + ChatColor.GOLD + " looks like it's going into labor within the next two hours. Better keep a close eye on her.");
+            HorseEffects.friendJingle(this.plugin, owner);
+        }
+    }
+
+    /**
+     * Pregnancy complications depend on the body condition.
+     */
+    private void checkComplications(SpawnedHorse spawned) {
+        Persistence pregnancy = spawned.extra.getPregnancy();
+        if (pregnancy == null) return;
+        if (!pregnancy.flags.contains(Flag.OVERWEIGHT) && spawned.data.getBodyCondition().score >= 7) {
+            pregnancy.flags.add(Flag.OVERWEIGHT);
+            double dice = ThreadLocalRandom.current().nextDouble();
+            boolean badLuck = dice < 0.25;
+            this.plugin.getLogger().info("Horse `" + spawned.data.getStrippedName() + "` owned by " + spawned.data.getOwnerName(this.plugin) + " is overweight. Dice=" + (int)(dice * 100.0) + ", BadLuck=" + badLuck + ".");
+            if (badLuck) {
+                pregnancy.flags.add(Flag.MISCARRIAGE);
+                // TODO: Laminitis
+            }
+            // Save
+            this.plugin.saveHorse(spawned.data);
+            spawned.extra.save(Persistence.EXTRA_KEY);
+        }
+        if (!pregnancy.flags.contains(Flag.UNDERWEIGHT) && spawned.data.getBodyCondition().score <= 4) {
+            pregnancy.flags.add(Flag.UNDERWEIGHT);
+            this.plugin.saveHorse(spawned.data);
+            double dice = ThreadLocalRandom.current().nextDouble();
+            boolean badLuck = dice < 0.25;
+            this.plugin.getLogger().info("Horse `" + spawned.data.getStrippedName() + "` owned by " + spawned.data.getOwnerName(this.plugin) + " is underweight. Dice=" + (int)(dice * 100.0) + ", BadLuck=" + badLuck + ".");
+            if (badLuck) {
+                pregnancy.flags.add(Flag.PREMATURE);
             }
+            // Save
+            this.plugin.saveHorse(spawned.data);
+            spawned.extra.save(Persistence.EXTRA_KEY);
         }
     }
 
@@ -242,7 +297,8 @@ public final class Breeding implements Listener {
      * Always succeeds.  Never returns null.
      */
     SpawnedHorse giveBirth(SpawnedHorse mother, HorseData father) {
-        if (!mother.isPresent()) throw new IllegalStateException("mother has to be in memory to give birth");
+        Location location = mother.getLocation();
+        if (location == null) throw new IllegalStateException("mother has to be in memory to give birth");
         Player owner = mother.data.getOwningPlayer();
         HorseData child = new HorseData();
         child.randomize(this.plugin);
@@ -257,8 +313,8 @@ public final class Breeding implements Listener {
         child.setJump(mother.data.getJump() * 0.5 + father.getJump() * 0.5);
         child.setSpeed(mother.data.getSpeed() * 0.5 + father.getSpeed() * 0.5);
         this.plugin.addHorse(child);
-        SpawnedHorse spawnedChild =  this.plugin.spawnHorse(child, mother.getEntity().getLocation());
-        spawnedChild.extra.setCooldown(HorsePlugin.COOLDOWN_AGE, HorseAge.FOAL.duration * Util.ONE_DAY);
+        SpawnedHorse spawnedChild =  this.plugin.spawnHorse(child, location);
+        spawnedChild.extra.setCooldown(Cooldown.AGE, HorseAge.FOAL.duration * Util.ONE_DAY);
         return spawnedChild;
     }
 }
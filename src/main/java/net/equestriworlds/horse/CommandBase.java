@@ -101,6 +101,7 @@ abstract class CommandBase {
 
     SpawnedHorse spawnedHorseOf(HorseData data) throws CommandException {
         SpawnedHorse spawned = this.plugin.findSpawnedHorse(data);
+        if (spawned != null) this.plugin.getVirtualizer().materialize(spawned);
         if (spawned == null || !spawned.isPresent()) throw new CommandException("Horse is not spawned.");
         return spawned;
     }
@@ -125,21 +126,27 @@ abstract class CommandBase {
         StringBuilder sb = new StringBuilder(args[0]);
         for (int i = 1; i < args.length; i += 1) sb.append(args[i]);
         String arg = sb.toString();
-        List<HorseData> playerHorses = this.plugin.findHorses(player);
+        List<HorseSummary> playerHorses = this.plugin.findHorses(player);
         if (playerHorses.isEmpty()) throw new CommandException("You do not own any horses.");
-        if (args.length == 0) return playerHorses.get(0);
+        if (args.length == 0) return horseOf(playerHorses.get(0));
         try {
             int index = Integer.parseInt(arg);
-            if (index >= 1 && index <= playerHorses.size()) return playerHorses.get(index - 1);
+            if (index >= 1 && index <= playerHorses.size()) return horseOf(playerHorses.get(index - 1));
         } catch (NumberFormatException nfe) { }
-        for (HorseData data: playerHorses) {
-            if (data.getStrippedName().replace(" ", "").equalsIgnoreCase(arg)) {
-                return data;
+        for (HorseSummary summary: playerHorses) {
+            if (summary.getStrippedName().replace(" ", "").equalsIgnoreCase(arg)) {
+                return horseOf(summary);
             }
         }
         throw new CommandException("Horse not found: " + arg);
     }
 
+    HorseData horseOf(HorseSummary summary) throws CommandException {
+        HorseData data = this.plugin.findHorse(summary.getId());
+        if (data == null) throw new CommandException("Horse could not be loaded: " + summary.getStrippedName());
+        return data;
+    }
+
     Player expectPlayer(CommandSender sender) throws PlayerExpectedException {
         if (!(sender instanceof Player)) throw new PlayerExpectedException();
         return (Player)sender;
@@ -0,0 +1,27 @@
+package net.equestriworlds.horse;
+
+/**
+ * All cooldowns a horse may have, stored in HorseExtra.  The key is
+ * used for persistence and must never change.
+ */
+enum Cooldown {
+    AGE("age"),
+    EAT("eat"),
+    BURN_FAT("burn_fat"),
+    DRINK("drink"),
+    DEHYDRATE("dehydrate"),
+    BREED("breed");
+
+    public final String key;
+
+    Cooldown(String key) {
+        this.key = key;
+    }
+
+    static Cooldown ofKey(String key) {
+        for (Cooldown cooldown: values()) {
+            if (cooldown.key.equals(key)) return cooldown;
+        }
+        return null;
+    }
+}
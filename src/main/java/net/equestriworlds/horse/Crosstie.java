@@ -2,12 +2,14 @@ package net.equestriworlds.horse;
 
 import java.util.Arrays;
 import java.util.List;
+import lombok.AccessLevel;
 import lombok.Data;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import lombok.Setter;
 import lombok.Value;
 import org.bukkit.Location;
+import org.bukkit.entity.AbstractHorse;
 import org.bukkit.entity.Bat;
 import org.bukkit.entity.LeashHitch;
 import org.bukkit.entity.Player;
@@ -25,6 +27,8 @@ final class Crosstie {
     Player holder = null;
     Bat leashedBat = null; // Leashed by hitchA.
     boolean valid = false; // Creator must set to true.
+    @Getter(AccessLevel.NONE)
+    private final Location scratch = new Location(null, 0.0, 0.0, 0.0); // Reused by check()
 
     @Value
     static class Hitch {
@@ -55,7 +59,10 @@ final class Crosstie {
         if (!this.spawned.getEntity().isLeashed()) return false;
         if (this.hitchA == null || !this.hitchA.isValid()) return false;
         if ((this.hitchB == null || !this.hitchB.isValid()) && (this.holder == null || !this.holder.isValid())) return false;
-        if (this.leashedBat != null) this.leashedBat.teleport(this.spawned.getEntity().getEyeLocation().add(0.0, -1.0, 0.0));
+        if (this.leashedBat != null) {
+            AbstractHorse entity = this.spawned.getEntity();
+            this.leashedBat.teleport(entity.getLocation(this.scratch).add(0.0, entity.getEyeHeight() - 1.0, 0.0));
+        }
         return true;
     }
 
@@ -26,11 +26,11 @@ import org.bukkit.inventory.meta.ItemMeta;
  */
 @RequiredArgsConstructor
 public final class Feeding implements Listener {
-    public static final String COOLDOWN_EAT = "eat";
-    public static final String COOLDOWN_BURN_FAT = "burn_fat";
-    public static final String COOLDOWN_DRINK = "drink";
-    public static final String COOLDOWN_DEHYDRATE = "dehydrate";
     private final HorsePlugin plugin;
+    static final int GRAZE_INTERVAL = 5;
+    // Reused by isMotherNearby(), which runs every second for every foal.
+    private final Location motherLocation = new Location(null, 0.0, 0.0, 0.0);
+    private final Location babyLocation = new Location(null, 0.0, 0.0, 0.0);
 
     @Data
     public final class Persistence {
@@ -135,7 +135,7 @@ public final class Feeding implements Listener {
         if (feed == null) return;
         event.setCancelled(true);
         // Check horse
-        if (spawned.extra.getCooldown(COOLDOWN_EAT) > 0) {
+        if (spawned.extra.getCooldown(Cooldown.EAT) > 0) {
             player.getWorld().playSound(spawned.getEntity().getEyeLocation(), Sound.ENTITY_HORSE_ANGRY, SoundCategory.NEUTRAL, 0.5f, 1.0f);
             return;
         }
@@ -145,9 +145,10 @@ public final class Feeding implements Listener {
         // Eat
         if (!player.isSneaking()) player.teleport(player.getLocation());
         spawned.data.setBody(spawned.data.getBody() + feed.value);
-        spawned.extra.setCooldown(COOLDOWN_EAT, Util.ONE_HOUR);
+        spawned.extra.setCooldown(Cooldown.EAT, Util.ONE_HOUR);
         item.setAmount(item.getAmount() - 1);
         HorseEffects.feed(this.plugin, player, spawned, feed);
+        this.plugin.wakeHorse(spawned);
     }
 
     double dailyBodyReduction(SpawnedHorse spawned) {
@@ -172,29 +173,55 @@ public final class Feeding implements Listener {
     boolean isMotherNearby(SpawnedHorse baby) {
         HorseData mother = baby.data.getMother(this.plugin);
         if (mother == null) return false;
+        Location babyLoc = baby.isPresent() ? baby.getEntity().getLocation(this.babyLocation) : baby.getLocation();
+        if (babyLoc == null) return false;
         SpawnedHorse spawned = this.plugin.findSpawnedHorse(mother);
-        final Location motherLocation;
+        final double x, y, z;
         if (spawned == null || !spawned.isPresent()) {
-            if (spawned.data.getLocation() == null) return false;
-            motherLocation = spawned.data.getLocation().bukkitLocation();
-            if (motherLocation == null) return false;
+            HorseData.HorseLocation motherLoc = mother.getLocation();
+            if (motherLoc == null) return false;
+            if (!motherLoc.world.equals(babyLoc.getWorld().getName())) return false;
+            x = motherLoc.x;
+            y = motherLoc.y;
+            z = motherLoc.z;
         } else {
-            motherLocation = spawned.getEntity().getLocation();
+            Location motherLoc = spawned.getEntity().getLocation(this.motherLocation);
+            if (!motherLoc.getWorld().equals(babyLoc.getWorld())) return false;
+            x = motherLoc.getX();
+            y = motherLoc.getY();
+            z = motherLoc.getZ();
         }
-        Location babyLocation = baby.getEntity().getLocation();
-        if (!motherLocation.getWorld().equals(babyLocation.getWorld())) return false;
-        return babyLocation.distanceSquared(motherLocation) <= 36.0; // 6 * 6
+        double dx = babyLoc.getX() - x;
+        double dy = babyLoc.getY() - y;
+        double dz = babyLoc.getZ() - z;
+        return dx * dx + dy * dy + dz * dz <= 36.0; // 6 * 6
     }
 
-    // Requires presence
+    /**
+     * Get the Unix time of the next feeding event.  Hungry horses
+     * which wait for grass or their mother are checked again every
+     * few seconds.  Yearlings wait for their owner to feed them.
+     */
+    long nextEvent(SpawnedHorse spawned, long now) {
+        long result = Math.min(spawned.extra.getDeadline(Cooldown.BURN_FAT),
+                               Math.min(spawned.extra.getDeadline(Cooldown.DRINK),
+                                        spawned.extra.getDeadline(Cooldown.DEHYDRATE)));
+        if (spawned.data.getAge() != HorseAge.YEARLING) {
+            long eat = spawned.extra.getDeadline(Cooldown.EAT);
+            result = Math.min(result, eat > now ? eat : now + GRAZE_INTERVAL);
+        }
+        return result;
+    }
+
+    // Also runs for virtual horses, see HorseVirtualizer
     void passSecond(SpawnedHorse spawned, long now) {
-        if (spawned.extra.getCooldown(COOLDOWN_EAT) == 0) {
+        if (!spawned.extra.isCoolingDown(Cooldown.EAT, now)) {
             // Grazing
             switch (spawned.data.getAge()) {
             case FOAL: { // Foals cannot be fed or graze but suckle their mother.
                 if (!isMotherNearby(spawned)) break;
                 // Suckle 0.1 per 4 hours, adding up to 0.6 per day.
-                spawned.extra.setCooldown(COOLDOWN_EAT, Util.ONE_HOUR * 4);
+                spawned.extra.setCooldown(Cooldown.EAT, Util.ONE_HOUR * 4);
                 spawned.data.setBody(spawned.data.getBody() + 0.6);
                 // Audiovisual feedback
                 HorseEffects.suckleEffect(this.plugin, spawned);
@@ -204,10 +231,10 @@ public final class Feeding implements Listener {
                 break;
             default: {
                 if (spawned.canFreeroam()) {
-                    Block grazeBlock = findGrass(spawned.getEntity());
+                    Block grazeBlock = findGrass(spawned.getLocation());
                     if (grazeBlock != null) {
                         spawned.data.setBody(spawned.data.getBody() + 0.07);
-                        spawned.extra.setCooldown(COOLDOWN_EAT, Util.ONE_HOUR);
+                        spawned.extra.setCooldown(Cooldown.EAT, Util.ONE_HOUR);
                         grazeBlock.setType(Material.DIRT);
                         HorseEffects.grazeEffect(this.plugin, grazeBlock);
                     }
@@ -215,44 +242,20 @@ public final class Feeding implements Listener {
             }
             }
         }
-        // Burn fat = lose body value.
-        if (spawned.extra.getCooldown(COOLDOWN_BURN_FAT) == 0) {
-            switch (spawned.data.getAge()) {
-            case FOAL:
-            case YEARLING:
-                // 0.1 * 6 = 0.6 (every 4 hours);
-                spawned.data.setBody(spawned.data.getBody() - 0.1);
-                spawned.extra.setCooldown(COOLDOWN_BURN_FAT, Util.ONE_HOUR * 4);
-                break;
-            default:
-                switch (spawned.data.getBreedingStage()) {
-                case PREGNANT:
-                case NURTURE:
-                    // 0.15 * 6 = 0.9 (every 4 hours)
-                    spawned.data.setBody(spawned.data.getBody() - 0.15);
-                    spawned.extra.setCooldown(COOLDOWN_BURN_FAT, Util.ONE_HOUR * 4);
-                    break;
-                default:
-                    // 0.1 * 8 = 0.8 (every 3 hours)
-                    spawned.data.setBody(spawned.data.getBody() - 0.1);
-                    spawned.extra.setCooldown(COOLDOWN_BURN_FAT, Util.ONE_HOUR * 3);
-                }
-            }
-            this.plugin.saveHorse(spawned.data);
-        }
+        if (burnFat(spawned, now)) this.plugin.saveHorse(spawned.data);
         // Hydration
-        if (spawned.extra.getCooldown(COOLDOWN_DRINK) == 0) {
+        if (!spawned.extra.isCoolingDown(Cooldown.DRINK, now)) {
             if (spawned.data.getHydration() >= HydrationLevel.MAX_VALUE) {
                 // If we're already fully hydrated, wait another our.
-                spawned.extra.setCooldown(COOLDOWN_DRINK, Util.ONE_HOUR);
+                spawned.extra.setCooldown(Cooldown.DRINK, Util.ONE_HOUR);
             } else if (!spawned.canFreeroam()) {
                 // We can only drink if we're free.
-                spawned.extra.setCooldown(COOLDOWN_DRINK, Util.ONE_MINUTE);
+                spawned.extra.setCooldown(Cooldown.DRINK, Util.ONE_MINUTE);
             } else {
                 // We are thirsty and can move freely.  Try to drink.
-                Block waterBlock = findWater(spawned.getEntity());
+                Block waterBlock = findWater(spawned.getLocation());
                 if (waterBlock == null) {
-                    spawned.extra.setCooldown(COOLDOWN_DRINK, Util.ONE_MINUTE);
+                    spawned.extra.setCooldown(Cooldown.DRINK, Util.ONE_MINUTE);
                 } else {
                     int fill = (int)waterBlock.getData();
                     waterBlock.setData((byte)(fill - 1));
@@ -260,23 +263,103 @@ public final class Feeding implements Listener {
                     hydration = Math.min(HydrationLevel.MAX_VALUE, hydration + 1.0);
                     spawned.data.setHydration(hydration);
                     if (hydration < HydrationLevel.MAX_VALUE) {
-                        spawned.extra.setCooldown(COOLDOWN_DRINK, Util.ONE_HOUR);
+                        spawned.extra.setCooldown(Cooldown.DRINK, Util.ONE_HOUR);
                     } else {
                         // We are fully restocked.  Reset the
                         // dehydration cooldown now.
-                        spawned.extra.setCooldown(COOLDOWN_DRINK, Util.ONE_HOUR);
-                        spawned.extra.setCooldown(COOLDOWN_DEHYDRATE, Util.ONE_HOUR * 24);
+                        spawned.extra.setCooldown(Cooldown.DRINK, Util.ONE_HOUR);
+                        spawned.extra.setCooldown(Cooldown.DEHYDRATE, Util.ONE_HOUR * 24);
                     }
                     HorseEffects.drinkEffect(this.plugin, spawned, waterBlock);
                 }
             }
             this.plugin.saveHorse(spawned.data);
         }
-        if (spawned.extra.getCooldown(COOLDOWN_DEHYDRATE) == 0) {
-            double hydration = spawned.data.getHydration();
-            spawned.data.setHydration(Math.max(0.0, hydration - 0.5));
-            spawned.extra.setCooldown(COOLDOWN_DEHYDRATE, Util.ONE_DAY);
-            this.plugin.saveHorse(spawned.data);
+        if (dehydrate(spawned, now)) this.plugin.saveHorse(spawned.data);
+    }
+
+    /**
+     * Burn fat = lose body value, if due.  Like catchUp(), the next
+     * deadline counts from the given time.
+     *
+     * @return true if the horse changed
+     */
+    boolean burnFat(SpawnedHorse spawned, long now) {
+        if (spawned.extra.isCoolingDown(Cooldown.BURN_FAT, now)) return false;
+        spawned.data.setBody(spawned.data.getBody() - burnFatAmount(spawned));
+        spawned.extra.setDeadline(Cooldown.BURN_FAT, now + burnFatInterval(spawned));
+        return true;
+    }
+
+    /**
+     * Lose hydration once a day, if due.
+     *
+     * @return true if the horse changed
+     */
+    boolean dehydrate(SpawnedHorse spawned, long now) {
+        if (spawned.extra.isCoolingDown(Cooldown.DEHYDRATE, now)) return false;
+        spawned.data.setHydration(Math.max(0.0, spawned.data.getHydration() - 0.5));
+        spawned.extra.setDeadline(Cooldown.DEHYDRATE, now + Util.ONE_DAY);
+        return true;
+    }
+
+    /**
+     * Apply burning fat and dehydration from one Unix time to another
+     * in one step, for a horse which was not spawned in between.  Age
+     * and breeding stage must not change in this span; see
+     * HorsePlugin#catchUpHorse().  Grazing, suckling and drinking
+     * depend on the surroundings and are left to passSecond().  The
+     * result is the same as burnFat() and dehydrate() at every
+     * deadline in between.
+     */
+    void catchUp(SpawnedHorse spawned, long from, long to) {
+        long burnFat = Math.max(from, spawned.extra.getDeadline(Cooldown.BURN_FAT));
+        if (burnFat <= to) {
+            int interval = burnFatInterval(spawned);
+            long count = 1L + (to - burnFat) / interval;
+            spawned.data.setBody(spawned.data.getBody() - burnFatAmount(spawned) * (double)count);
+            spawned.extra.setDeadline(Cooldown.BURN_FAT, burnFat + count * interval);
+        }
+        long dehydrate = Math.max(from, spawned.extra.getDeadline(Cooldown.DEHYDRATE));
+        if (dehydrate <= to) {
+            long count = 1L + (to - dehydrate) / Util.ONE_DAY;
+            spawned.data.setHydration(Math.max(0.0, spawned.data.getHydration() - 0.5 * (double)count));
+            spawned.extra.setDeadline(Cooldown.DEHYDRATE, dehydrate + count * Util.ONE_DAY);
+        }
+    }
+
+    /**
+     * Body value lost every time the burn fat cooldown ends.
+     */
+    private static double burnFatAmount(SpawnedHorse spawned) {
+        switch (spawned.data.getAge()) {
+        case FOAL:
+        case YEARLING:
+            return 0.1; // 0.1 * 6 = 0.6 (every 4 hours)
+        default:
+            switch (spawned.data.getBreedingStage()) {
+            case PREGNANT:
+            case NURTURE:
+                return 0.15; // 0.15 * 6 = 0.9 (every 4 hours)
+            default:
+                return 0.1; // 0.1 * 8 = 0.8 (every 3 hours)
+            }
+        }
+    }
+
+    private static int burnFatInterval(SpawnedHorse spawned) {
+        switch (spawned.data.getAge()) {
+        case FOAL:
+        case YEARLING:
+            return Util.ONE_HOUR * 4;
+        default:
+            switch (spawned.data.getBreedingStage()) {
+            case PREGNANT:
+            case NURTURE:
+                return Util.ONE_HOUR * 4;
+            default:
+                return Util.ONE_HOUR * 3;
+            }
         }
     }
 
@@ -289,8 +372,9 @@ public final class Feeding implements Listener {
     /**
      * Scan the perimeter for a grazable spot.  That is, find grass.
      */
-    private Block findGrass(AbstractHorse entity) {
-        Block center = entity.getLocation().getBlock().getRelative(0, -1, 0);
+    private Block findGrass(Location location) {
+        if (location == null) return null;
+        Block center = location.getBlock().getRelative(0, -1, 0);
         if (center.getType() == Material.GRASS) return center;
         Block result = null;
         int distance = 0;
@@ -312,8 +396,9 @@ public final class Feeding implements Listener {
         return result;
     }
 
-    private Block findWater(AbstractHorse entity) {
-        Block center = entity.getLocation().getBlock();
+    private Block findWater(Location location) {
+        if (location == null) return null;
+        Block center = location.getBlock();
         Block result = null;
         int distance = 0;
         final int r = 6;
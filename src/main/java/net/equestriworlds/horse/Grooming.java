@@ -227,7 +227,7 @@ public final class Grooming implements Listener {
                 }
             }
             persistence.cooldown = now + 500L;
-            this.plugin.saveExtraData(spawned.data, EXTRA_DATA_KEY, persistence);
+            spawned.extra.save(Persistence.EXTRA_KEY);
             String title = successNotification(player, spawned, tool, value);
             player.sendMessage(title);
             player.sendActionBar(title);
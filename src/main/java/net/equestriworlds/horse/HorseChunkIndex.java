@@ -0,0 +1,71 @@
+package net.equestriworlds.horse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of all known horses with a stored location, by world name
+ * and chunk.  Used to find the horses which belong in a chunk
+ * without going through every horse in existence.
+ *
+ * Kept up to date by HorseRegistry, which removes a summary before
+ * changing it and adds it back afterwards.
+ */
+final class HorseChunkIndex {
+    private final Map<String, LongHashMap<List<HorseSummary>>> worlds = new HashMap<>();
+
+    /**
+     * Add a horse at its current location, if any.
+     */
+    void add(HorseSummary summary) {
+        if (!summary.hasLocation()) return;
+        LongHashMap<List<HorseSummary>> chunks = this.worlds.get(summary.getWorld());
+        if (chunks == null) {
+            chunks = new LongHashMap<>();
+            this.worlds.put(summary.getWorld(), chunks);
+        }
+        long key = summary.getChunkKey();
+        List<HorseSummary> list = chunks.get(key);
+        if (list == null) {
+            list = new ArrayList<>(2);
+            chunks.put(key, list);
+        }
+        list.add(summary);
+    }
+
+    /**
+     * Remove a horse from its current location.
+     */
+    void remove(HorseSummary summary) {
+        if (!summary.hasLocation()) return;
+        LongHashMap<List<HorseSummary>> chunks = this.worlds.get(summary.getWorld());
+        if (chunks == null) return;
+        long key = summary.getChunkKey();
+        List<HorseSummary> list = chunks.get(key);
+        if (list == null) return;
+        list.remove(summary);
+        if (list.isEmpty()) {
+            chunks.remove(key);
+            if (chunks.isEmpty()) this.worlds.remove(summary.getWorld());
+        }
+    }
+
+    /**
+     * Get a copy of all horses stored in the given chunk.  Callers
+     * may spawn or move the horses while iterating.
+     */
+    List<HorseSummary> getHorses(String world, int cx, int cz) {
+        LongHashMap<List<HorseSummary>> chunks = this.worlds.get(world);
+        if (chunks == null) return Collections.emptyList();
+        List<HorseSummary> list = chunks.get(HorseData.HorseLocation.chunkKey(cx, cz));
+        if (list == null) return Collections.emptyList();
+        return new ArrayList<>(list);
+    }
+
+    void clear() {
+        this.worlds.clear();
+    }
+}
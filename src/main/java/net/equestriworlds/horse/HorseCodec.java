@@ -0,0 +1,480 @@
+package net.equestriworlds.horse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Binary format of HorseData in the `horses` table, replacing the
+ * Gson JSON of old.
+ *
+ * Each row starts with a magic byte and the schema version.  Fields
+ * are grouped by how often they change: identity, vitals (feeding,
+ * grooming, breeding, last seen), location, inventory and access.  A bit mask tells which groups follow, each
+ * prefixed with its length.  A row with only some of the groups is a
+ * delta, written by encodeChanges() and applied with merge(), so a
+ * feeding tick stores a few bytes instead of the whole horse.
+ *
+ * Within a group, nullable fields are announced by a bit mask.
+ * Numbers are stored in their binary representation, UUIDs as two
+ * longs, strings as UTF-8 bytes after their length.  Enums are stored as their code in a name table, which is
+ * kept in the `enum_names` table of the database.  Codes are only
+ * ever appended, so enum constants may be reordered or added without
+ * breaking stored horses.
+ *
+ * Once constructed, a codec may be used by any thread.
+ */
+final class HorseCodec {
+    static final int MAGIC = 0xE5;
+    static final int VERSION = 1;
+    // Field groups, see encodeChanges()
+    static final int IDENTITY = 0;
+    static final int VITALS = 1;
+    static final int LOCATION = 2;
+    static final int INVENTORY = 3;
+    static final int ACCESS = 4;
+    static final int GROUPS = 5;
+    static final int ALL_GROUPS = (1 << GROUPS) - 1;
+    // Nullable fields
+    private static final int HAS_NAME = 1 << 0;
+    private static final int HAS_SHOW_NAME = 1 << 1;
+    private static final int HAS_OWNER = 1 << 2;
+    private static final int HAS_GENDER = 1 << 3;
+    private static final int HAS_AGE = 1 << 4;
+    private static final int HAS_BREED = 1 << 5;
+    private static final int HAS_COLOR = 1 << 6;
+    private static final int HAS_MARKINGS = 1 << 7;
+    private static final int HAS_BREEDING_STAGE = 1 << 8;
+    private static final int HAS_ARMOR = 1 << 9;
+    private static final int HAS_SADDLE = 1 << 10;
+    private static final int HAS_BRAND = 1 << 11;
+    private static final int HAS_LOCATION = 1 << 12;
+    private final NameTable<HorseGender> genders;
+    private final NameTable<HorseAge> ages;
+    private final NameTable<HorseBreed> breeds;
+    private final NameTable<HorseColor> colors;
+    private final NameTable<HorseMarkings> markings;
+    private final NameTable<BreedingStage> breedingStages;
+    private final Map<String, List<String>> addedNames = new LinkedHashMap<>();
+
+    /**
+     * Codes of the constants of one enum.  Constants which are not in
+     * the stored table yet get the next free code.  Stored names
+     * which no longer exist decode to null.
+     */
+    private static final class NameTable<E extends Enum<E>> {
+        private final Map<E, Integer> codes;
+        private final List<E> constants = new ArrayList<>();
+
+        NameTable(Class<E> type, List<String> stored, Map<String, List<String>> addedNames) {
+            this.codes = new EnumMap<>(type);
+            for (String name: stored) {
+                E constant;
+                try {
+                    constant = Enum.valueOf(type, name);
+                } catch (IllegalArgumentException iae) {
+                    constant = null;
+                }
+                if (constant != null) this.codes.put(constant, this.constants.size());
+                this.constants.add(constant);
+            }
+            for (E constant: type.getEnumConstants()) {
+                if (this.codes.containsKey(constant)) continue;
+                this.codes.put(constant, this.constants.size());
+                this.constants.add(constant);
+                List<String> added = addedNames.get(type.getSimpleName());
+                if (added == null) {
+                    added = new ArrayList<>();
+                    addedNames.put(type.getSimpleName(), added);
+                }
+                added.add(constant.name());
+            }
+        }
+
+        int encode(E constant) {
+            return this.codes.get(constant);
+        }
+
+        E decode(int code) {
+            if (code < 0 || code >= this.constants.size()) return null;
+            return this.constants.get(code);
+        }
+    }
+
+    /**
+     * @param storedNames the name tables stored in the database, by
+     * simple enum class name, each ordered by code
+     */
+    HorseCodec(Map<String, List<String>> storedNames) {
+        this.genders = new NameTable<>(HorseGender.class, stored(storedNames, HorseGender.class), this.addedNames);
+        this.ages = new NameTable<>(HorseAge.class, stored(storedNames, HorseAge.class), this.addedNames);
+        this.breeds = new NameTable<>(HorseBreed.class, stored(storedNames, HorseBreed.class), this.addedNames);
+        this.colors = new NameTable<>(HorseColor.class, stored(storedNames, HorseColor.class), this.addedNames);
+        this.markings = new NameTable<>(HorseMarkings.class, stored(storedNames, HorseMarkings.class), this.addedNames);
+        this.breedingStages = new NameTable<>(BreedingStage.class, stored(storedNames, BreedingStage.class), this.addedNames);
+    }
+
+    private static List<String> stored(Map<String, List<String>> storedNames, Class<?> type) {
+        List<String> result = storedNames.get(type.getSimpleName());
+        return result != null ? result : Collections.emptyList();
+    }
+
+    /**
+     * Get the names which were missing from the stored name tables,
+     * by simple enum class name.  They must be stored along with
+     * their codes before the first encoded horse.
+     */
+    Map<String, List<String>> getAddedNames() {
+        return this.addedNames;
+    }
+
+    /**
+     * Tell binary rows from legacy JSON ones.
+     */
+    static boolean isBinary(byte[] bytes) {
+        return bytes.length >= 2 && (bytes[0] & 0xFF) == MAGIC;
+    }
+
+    /**
+     * Encode all field groups.
+     */
+    byte[] encode(HorseData data) {
+        byte[][] groups = encodeGroups(data);
+        data.setPersistedGroups(groups);
+        return join(groups);
+    }
+
+    /**
+     * Encode only the field groups which differ from what was last
+     * encoded or decoded for this horse, as a delta for merge().
+     * Without a previous state, all groups are encoded.
+     *
+     * @return the bytes, or null if nothing changed
+     */
+    byte[] encodeChanges(HorseData data) {
+        byte[][] groups = encodeGroups(data);
+        byte[][] previous = data.getPersistedGroups();
+        data.setPersistedGroups(groups);
+        if (previous == null) return join(groups);
+        byte[][] changed = new byte[GROUPS][];
+        boolean any = false;
+        for (int group = 0; group < GROUPS; group += 1) {
+            if (Arrays.equals(groups[group], previous[group])) continue;
+            changed[group] = groups[group];
+            any = true;
+        }
+        return any ? join(changed) : null;
+    }
+
+    private byte[][] encodeGroups(HorseData data) {
+        byte[][] result = new byte[GROUPS][];
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            for (int group = 0; group < GROUPS; group += 1) {
+                bytes.reset();
+                encodeGroup(out, group, data);
+                out.flush();
+                result[group] = bytes.toByteArray();
+            }
+        } catch (IOException ioe) {
+            // ByteArrayOutputStream does not throw, and writeString()
+            // has no length limit.
+            throw new IllegalStateException(ioe);
+        }
+        return result;
+    }
+
+    private void encodeGroup(DataOutputStream out, int group, HorseData data) throws IOException {
+        int flags = 0;
+        switch (group) {
+        case IDENTITY:
+            if (data.getName() != null) flags |= HAS_NAME;
+            if (data.getShowName() != null) flags |= HAS_SHOW_NAME;
+            if (data.getOwner() != null) flags |= HAS_OWNER;
+            if (data.getGender() != null) flags |= HAS_GENDER;
+            if (data.getAge() != null) flags |= HAS_AGE;
+            if (data.getBreed() != null) flags |= HAS_BREED;
+            if (data.getColor() != null) flags |= HAS_COLOR;
+            if (data.getMarkings() != null) flags |= HAS_MARKINGS;
+            if (data.getBrand() != null) flags |= HAS_BRAND;
+            writeVarInt(out, flags);
+            out.writeInt(data.getId());
+            if (data.getName() != null) writeString(out, data.getName());
+            if (data.getShowName() != null) writeString(out, data.getShowName());
+            if (data.getOwner() != null) writeUuid(out, data.getOwner());
+            out.writeInt(data.getMotherId());
+            out.writeInt(data.getFatherId());
+            if (data.getGender() != null) writeVarInt(out, this.genders.encode(data.getGender()));
+            out.writeLong(data.getBorn());
+            if (data.getAge() != null) writeVarInt(out, this.ages.encode(data.getAge()));
+            if (data.getBreed() != null) writeVarInt(out, this.breeds.encode(data.getBreed()));
+            if (data.getColor() != null) writeVarInt(out, this.colors.encode(data.getColor()));
+            if (data.getMarkings() != null) writeVarInt(out, this.markings.encode(data.getMarkings()));
+            out.writeDouble(data.getJump());
+            out.writeDouble(data.getSpeed());
+            if (data.getBrand() != null) {
+                writeUuid(out, data.getBrand().getOwner());
+                writeString(out, data.getBrand().getFormat());
+            }
+            break;
+        case VITALS:
+            if (data.getBreedingStage() != null) flags |= HAS_BREEDING_STAGE;
+            writeVarInt(out, flags);
+            out.writeLong(data.getLastSeen());
+            writeVarInt(out, data.getAppearance());
+            out.writeDouble(data.getBody());
+            out.writeDouble(data.getHydration());
+            if (data.getBreedingStage() != null) writeVarInt(out, this.breedingStages.encode(data.getBreedingStage()));
+            break;
+        case LOCATION:
+            HorseData.HorseLocation location = data.getLocation();
+            if (location != null) flags |= HAS_LOCATION;
+            writeVarInt(out, flags);
+            if (location != null) {
+                writeString(out, location.world);
+                out.writeDouble(location.x);
+                out.writeDouble(location.y);
+                out.writeDouble(location.z);
+                out.writeFloat(location.pitch);
+                out.writeFloat(location.yaw);
+                out.writeInt(location.cx);
+                out.writeInt(location.cz);
+            }
+            break;
+        case INVENTORY:
+            if (data.getArmor() != null) flags |= HAS_ARMOR;
+            if (data.getSaddle() != null) flags |= HAS_SADDLE;
+            writeVarInt(out, flags);
+            if (data.getArmor() != null) writeString(out, data.getArmor());
+            if (data.getSaddle() != null) writeString(out, data.getSaddle());
+            break;
+        case ACCESS:
+            if (data.getTrusted() == null) {
+                writeVarInt(out, 0);
+            } else {
+                writeVarInt(out, data.getTrusted().size());
+                for (UUID uuid: data.getTrusted()) writeUuid(out, uuid);
+            }
+            break;
+        default:
+            throw new IllegalArgumentException("group=" + group);
+        }
+    }
+
+    /**
+     * Decode a whole horse.  Deltas must be merged into a whole
+     * horse first.
+     */
+    HorseData decode(byte[] bytes) throws IOException {
+        byte[][] groups = split(bytes);
+        HorseData data = new HorseData();
+        for (int group = 0; group < GROUPS; group += 1) {
+            if (groups[group] == null) throw new IOException("Horse delta cannot be decoded on its own");
+            decodeGroup(new DataInputStream(new ByteArrayInputStream(groups[group])), group, data);
+        }
+        data.setPersistedGroups(groups);
+        return data;
+    }
+
+    private void decodeGroup(DataInputStream in, int group, HorseData data) throws IOException {
+        int flags = readVarInt(in);
+        switch (group) {
+        case IDENTITY:
+            data.setId(in.readInt());
+            data.setName((flags & HAS_NAME) != 0 ? readString(in) : null);
+            data.setShowName((flags & HAS_SHOW_NAME) != 0 ? readString(in) : null);
+            data.setOwner((flags & HAS_OWNER) != 0 ? readUuid(in) : null);
+            data.setMotherId(in.readInt());
+            data.setFatherId(in.readInt());
+            data.setGender((flags & HAS_GENDER) != 0 ? this.genders.decode(readVarInt(in)) : null);
+            data.setBorn(in.readLong());
+            data.setAge((flags & HAS_AGE) != 0 ? this.ages.decode(readVarInt(in)) : null);
+            data.setBreed((flags & HAS_BREED) != 0 ? this.breeds.decode(readVarInt(in)) : null);
+            data.setColor((flags & HAS_COLOR) != 0 ? this.colors.decode(readVarInt(in)) : null);
+            data.setMarkings((flags & HAS_MARKINGS) != 0 ? this.markings.decode(readVarInt(in)) : null);
+            data.setJump(in.readDouble());
+            data.setSpeed(in.readDouble());
+            if ((flags & HAS_BRAND) != 0) {
+                UUID owner = readUuid(in);
+                data.setBrand(new HorseBrand(owner, readString(in)));
+            } else {
+                data.setBrand(null);
+            }
+            break;
+        case VITALS:
+            data.setLastSeen(in.readLong());
+            data.setAppearance(readVarInt(in));
+            data.setBody(in.readDouble());
+            data.setHydration(in.readDouble());
+            data.setBreedingStage((flags & HAS_BREEDING_STAGE) != 0 ? this.breedingStages.decode(readVarInt(in)) : null);
+            break;
+        case LOCATION:
+            if ((flags & HAS_LOCATION) != 0) {
+                String world = readString(in);
+                double x = in.readDouble();
+                double y = in.readDouble();
+                double z = in.readDouble();
+                float pitch = in.readFloat();
+                float yaw = in.readFloat();
+                int cx = in.readInt();
+                int cz = in.readInt();
+                data.setLocation(new HorseData.HorseLocation(world, x, y, z, pitch, yaw, cx, cz));
+            } else {
+                data.setLocation(null);
+            }
+            break;
+        case INVENTORY:
+            data.setArmor((flags & HAS_ARMOR) != 0 ? readString(in) : null);
+            data.setSaddle((flags & HAS_SADDLE) != 0 ? readString(in) : null);
+            break;
+        case ACCESS: {
+            int trustedCount = flags; // No flags, just the count
+            HashSet<UUID> trusted = new HashSet<>();
+            for (int i = 0; i < trustedCount; i += 1) trusted.add(readUuid(in));
+            data.setTrusted(trusted);
+            break;
+        }
+        default:
+            throw new IOException("group=" + group);
+        }
+    }
+
+    // --- Field Groups
+
+    /**
+     * Tell if bytes are a delta of some field groups rather than a
+     * whole horse.
+     */
+    static boolean isDelta(byte[] bytes) {
+        if (!isBinary(bytes)) return false;
+        try {
+            byte[][] groups = split(bytes);
+            for (byte[] group: groups) {
+                if (group == null) return true;
+            }
+            return false;
+        } catch (IOException ioe) {
+            return false;
+        }
+    }
+
+    /**
+     * Apply a delta on top of a whole horse or another delta.  Works
+     * on the bytes, so storages may call it without a codec.
+     */
+    static byte[] merge(byte[] base, byte[] delta) throws IOException {
+        byte[][] result = split(base);
+        byte[][] groups = split(delta);
+        for (int group = 0; group < GROUPS; group += 1) {
+            if (groups[group] != null) result[group] = groups[group];
+        }
+        return join(result);
+    }
+
+    /**
+     * Cut the bytes into their field groups, by group.  Groups
+     * which are not included are null.
+     */
+    static byte[][] split(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (in.readUnsignedByte() != MAGIC) throw new IOException("Not a binary horse");
+        int version = in.readUnsignedByte();
+        if (version != VERSION) throw new IOException("Unknown horse version: " + version);
+        int mask = readVarInt(in);
+        if ((mask & ~ALL_GROUPS) != 0) throw new IOException("Unknown field groups: " + mask);
+        byte[][] result = new byte[GROUPS][];
+        for (int group = 0; group < GROUPS; group += 1) {
+            if ((mask & (1 << group)) == 0) continue;
+            result[group] = new byte[readVarInt(in)];
+            in.readFully(result[group]);
+        }
+        return result;
+    }
+
+    /**
+     * The opposite of split().  Null groups are left out.
+     */
+    static byte[] join(byte[][] groups) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(MAGIC);
+            out.writeByte(VERSION);
+            int mask = 0;
+            for (int group = 0; group < GROUPS; group += 1) {
+                if (groups[group] != null) mask |= 1 << group;
+            }
+            writeVarInt(out, mask);
+            for (int group = 0; group < GROUPS; group += 1) {
+                if (groups[group] == null) continue;
+                writeVarInt(out, groups[group].length);
+                out.write(groups[group]);
+            }
+        } catch (IOException ioe) {
+            // ByteArrayOutputStream does not throw.
+            throw new IllegalStateException(ioe);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * UTF-8 bytes with their length in front.  Unlike writeUTF(),
+     * there is no limit of 65535 bytes, which the JSON of an item
+     * with a long lore may exceed.
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[readVarInt(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeUuid(DataOutputStream out, UUID uuid) throws IOException {
+        out.writeLong(uuid.getMostSignificantBits());
+        out.writeLong(uuid.getLeastSignificantBits());
+    }
+
+    private static UUID readUuid(DataInputStream in) throws IOException {
+        long most = in.readLong();
+        long least = in.readLong();
+        return new UUID(most, least);
+    }
+
+    /**
+     * Unsigned LEB128, so small numbers take one byte.
+     */
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int result = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            result |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return result;
+        }
+        throw new IOException("VarInt too long");
+    }
+}
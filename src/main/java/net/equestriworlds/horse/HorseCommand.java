@@ -58,8 +58,8 @@ final class HorseCommand extends CommandBase implements TabExecutor {
             if (spawned.data.getOwner() != null) throw new CommandException("Already claimed!");
             // Update and save HorseData
             if (args.length > 0) spawned.data.setName(this.horseNameOf(args)); // throws
-            spawned.data.storeOwner(player);
-            spawned.data.storeLocation(entity.getLocation());
+            spawned.data.storeOwner(this.plugin, player);
+            spawned.data.storeLocation(this.plugin, entity.getLocation());
             this.plugin.saveHorse(spawned.data);
             // Update the horse entity.
             entity.setTamed(true);
@@ -264,7 +264,7 @@ final class HorseCommand extends CommandBase implements TabExecutor {
         case "here":
         case "info":
         case "bring":
-            if (args.length == 2) return tabComplete(args[1], this.plugin.findHorses(player).stream().map(HorseData::getStrippedName).map(n -> n.replace(" ", "")));
+            if (args.length == 2) return tabComplete(args[1], this.plugin.findHorses(player).stream().map(HorseSummary::getStrippedName).map(n -> n.replace(" ", "")));
             return null;
         case "trust":
             if (args.length == 2) return null;
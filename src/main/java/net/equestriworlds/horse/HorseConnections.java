@@ -0,0 +1,188 @@
+package net.equestriworlds.horse;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Opens and hands out the SQLite connections of SQLiteHorseStorage.
+ *
+ * The database runs in WAL mode, so readers never block the writer
+ * and vice versa.  With WAL, `synchronous = NORMAL` is still safe
+ * against corruption and only syncs at checkpoints, not on every
+ * commit.  Connections wait for locks up to BUSY_TIMEOUT before they
+ * fail with SQLITE_BUSY, except the one of the main thread, which
+ * only waits MAIN_BUSY_TIMEOUT at a time, see SQLiteHorseStorage.
+ *
+ * Writing connections are opened one per thread: the main thread
+ * and HorseDatabaseWriter.  Async readers, such as prefetching and
+ * reports, borrow a read-only connection from a small pool via
+ * read().
+ */
+final class HorseConnections {
+    static final int MAX_READERS = 3;
+    static final int BUSY_TIMEOUT = 2000; // Millis
+    static final int MAIN_BUSY_TIMEOUT = 50; // Millis
+    private static final int SQLITE_BUSY = 5;
+    private static final int SQLITE_LOCKED = 6;
+    private static final String OPEN_READONLY = "1";
+    private final File file;
+    private final Deque<Connection> idleReaders = new ArrayDeque<>();
+    private final List<Connection> readers = new ArrayList<>();
+    private boolean closed;
+
+    @FunctionalInterface
+    interface Reader<T> {
+        T read(Connection connection) throws SQLException;
+    }
+
+    HorseConnections(File file) {
+        this.file = file;
+        try {
+            Class.forName("org.sqlite.JDBC");
+        } catch (ClassNotFoundException cnfe) {
+            cnfe.printStackTrace();
+        }
+    }
+
+    /**
+     * Open a new read-write connection.  Switches the database file
+     * to WAL mode, which sticks.
+     */
+    Connection openWriter() throws SQLException {
+        return openWriter(BUSY_TIMEOUT);
+    }
+
+    /**
+     * Open a new read-write connection which waits for locks up to
+     * the given number of milliseconds.
+     */
+    Connection openWriter(int busyTimeout) throws SQLException {
+        Connection connection = DriverManager.getConnection("jdbc:sqlite:" + this.file);
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("PRAGMA journal_mode = WAL");
+            statement.execute("PRAGMA synchronous = NORMAL");
+            configure(statement, busyTimeout);
+        } catch (SQLException sqle) {
+            connection.close();
+            throw sqle;
+        }
+        return connection;
+    }
+
+    private Connection openReader() throws SQLException {
+        Properties properties = new Properties();
+        properties.setProperty("open_mode", OPEN_READONLY);
+        Connection connection = DriverManager.getConnection("jdbc:sqlite:" + this.file, properties);
+        try (Statement statement = connection.createStatement()) {
+            configure(statement, BUSY_TIMEOUT);
+        } catch (SQLException sqle) {
+            connection.close();
+            throw sqle;
+        }
+        return connection;
+    }
+
+    private static void configure(Statement statement, int busyTimeout) throws SQLException {
+        statement.execute("PRAGMA busy_timeout = " + busyTimeout);
+        statement.execute("PRAGMA cache_size = -8192"); // KiB
+        statement.execute("PRAGMA mmap_size = 67108864");
+        statement.execute("PRAGMA temp_store = MEMORY");
+    }
+
+    /**
+     * Run a query on a pooled read-only connection.  Blocks while all
+     * MAX_READERS connections are in use.  May be called from any
+     * thread, but not from within another read().
+     */
+    <T> T read(Reader<T> reader) throws SQLException {
+        Connection connection = borrow();
+        boolean broken = false;
+        try {
+            return reader.read(connection);
+        } catch (SQLException sqle) {
+            broken = !isBusy(sqle);
+            throw sqle;
+        } finally {
+            release(connection, broken);
+        }
+    }
+
+    private synchronized Connection borrow() throws SQLException {
+        while (true) {
+            if (this.closed) throw new SQLException("Connections closed");
+            Connection connection = this.idleReaders.poll();
+            if (connection != null) return connection;
+            if (this.readers.size() < MAX_READERS) {
+                connection = openReader();
+                this.readers.add(connection);
+                return connection;
+            }
+            try {
+                wait();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted");
+            }
+        }
+    }
+
+    /**
+     * Put a connection back into the pool, or close it if it may be
+     * broken or the pool is closed.
+     */
+    private synchronized void release(Connection connection, boolean broken) {
+        if (broken || this.closed) {
+            this.readers.remove(connection);
+            closeQuietly(connection);
+        } else {
+            this.idleReaders.push(connection);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Close all idle readers.  Readers still in use are closed when
+     * they are released.
+     */
+    synchronized void close() {
+        this.closed = true;
+        for (Connection connection: this.idleReaders) {
+            this.readers.remove(connection);
+            closeQuietly(connection);
+        }
+        this.idleReaders.clear();
+        notifyAll();
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException sqle) {
+            sqle.printStackTrace();
+        }
+    }
+
+    /**
+     * Tell if an exception means the database was locked by another
+     * connection for longer than the busy timeout, so trying again
+     * later makes sense.
+     */
+    static boolean isBusy(Throwable throwable) {
+        for (Throwable t = throwable; t != null; t = t.getCause()) {
+            if (!(t instanceof SQLException)) continue;
+            int code = ((SQLException)t).getErrorCode() & 0xFF; // Primary result code
+            if (code == SQLITE_BUSY || code == SQLITE_LOCKED) return true;
+            String message = t.getMessage();
+            if (message != null && (message.contains("SQLITE_BUSY") || message.contains("SQLITE_LOCKED"))) return true;
+        }
+        return false;
+    }
+}
@@ -26,8 +26,12 @@ import org.bukkit.inventory.ArmoredHorseInventory;
 import org.bukkit.inventory.ItemStack;
 
 /**
- * HorseData are completely (de)serializable via Gson and will be
- * stored in the `horses.db` as such.
+ * HorseData are stored in the `horses.db` via HorseCodec.  They are
+ * also completely (de)serializable via Gson, which is how they were
+ * stored in the past.  New fields must be added to both.
+ *
+ * Only a HorseSummary of each horse stays in memory at all times.
+ * HorseData are loaded on demand by HorseRegistry.
  *
  * Data should only be stored in here if they need to be accessible at
  * all times, if the horse is loaded or not.
@@ -67,6 +71,8 @@ final class HorseData {
     private String armor, saddle;
     private HorseBrand brand; // See HorseBrand
     private HorseLocation location;
+    // HorseCodec field groups as last stored, see encodeChanges()
+    private transient byte[][] persistedGroups;
 
     @Value
     static final class HorseLocation {
@@ -95,7 +101,30 @@ final class HorseData {
             this.yaw = Util.roundFloat(bukkitLocation.getYaw(), 2);
             this.cx = bukkitLocation.getBlockX() >> 4;
             this.cz = bukkitLocation.getBlockZ() >> 4;
-            this.chunkIndex = ((long)cz << 32) | (long)cx;
+            this.chunkIndex = chunkKey(this.cx, this.cz);
+        }
+
+        /**
+         * Used by HorseCodec.
+         */
+        HorseLocation(String world, double x, double y, double z, float pitch, float yaw, int cx, int cz) {
+            this.world = world;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.pitch = pitch;
+            this.yaw = yaw;
+            this.cx = cx;
+            this.cz = cz;
+            this.chunkIndex = chunkKey(cx, cz);
+        }
+
+        /**
+         * Pack chunk coordinates into one long.  The low half is
+         * masked so negative x coordinates do not spill into z.
+         */
+        static long chunkKey(int cx, int cz) {
+            return ((long)cz << 32) | ((long)cx & 0xFFFFFFFFL);
         }
     }
 
@@ -167,18 +196,29 @@ final class HorseData {
 
     // --- Location
 
-    void clearLocation() {
+    /**
+     * Location changes go through these methods so the chunk index
+     * of the plugin stays up to date.
+     */
+    void clearLocation(HorsePlugin plugin) {
         this.location = null;
+        plugin.getHorseRegistry().update(this);
     }
 
-    void storeLocation(Location bukkitLocation) {
+    void storeLocation(HorsePlugin plugin, Location bukkitLocation) {
         this.location = new HorseLocation(bukkitLocation);
+        plugin.getHorseRegistry().update(this);
     }
 
     // --- Owner
 
-    void storeOwner(Player player) {
+    /**
+     * Ownership changes go through here so the owner index of the
+     * plugin stays up to date.
+     */
+    void storeOwner(HorsePlugin plugin, Player player) {
         this.owner = player.getUniqueId();
+        plugin.getHorseRegistry().update(this);
     }
 
     boolean isOwner(Player player) {
@@ -2,190 +2,488 @@ package net.equestriworlds.horse;
 
 import com.google.gson.Gson;
 import java.io.File;
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.sql.Statement;
-import java.util.ArrayList;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.logging.Level;
+import lombok.Getter;
 import lombok.RequiredArgsConstructor;
+import lombok.Value;
 
+/**
+ * Serializes horses and hands them to the HorseStorage chosen by the
+ * `database.backend` config key: `sqlite` (default) or `journal`.
+ * See convertTo() for switching between them.
+ *
+ * Methods used at runtime are timed in HorseTimings, except for
+ * serializeHorse() and deserializeHorse().  HorseLoader calls those
+ * for every horse on several threads at once, which would all queue
+ * up on the lock of one section, so the load is timed as a whole.
+ */
 @RequiredArgsConstructor
 final class HorseDatabase {
     private final HorsePlugin plugin;
-    private Connection cachedConnection = null;
-
-    Connection getConnection() throws SQLException {
-        if (this.cachedConnection == null || !this.cachedConnection.isValid(1)) {
-            try {
-                Class.forName("org.sqlite.JDBC");
-            } catch (ClassNotFoundException cnfe) {
-                cnfe.printStackTrace();
+    static final List<String> REPORT_COLUMNS = Arrays.asList("owner", "world", "breed", "gender", "age", "breeding_stage");
+    static final List<String> BACKENDS = Arrays.asList("sqlite", "journal");
+    private static final int CONVERT_CHUNK = 500; // Horses per import
+    private final Gson gson = new Gson(); // Legacy rows
+    private HorseCodec codec;
+    @Getter private String backend;
+    private HorseStorage storage;
+
+    /**
+     * A serialized horse, ready to be written: the `data` column
+     * along with the queryable columns.  Built in the main thread by
+     * serializeHorse() or serializeChanges(), written by any thread.
+     * The data may be a delta, see HorseCodec#isDelta(), while the
+     * columns are always complete.
+     */
+    @Value
+    static final class HorseRow {
+        private final byte[] data;
+        private final String owner;
+        private final String world;
+        private final Integer chunkX, chunkZ;
+        private final String breed, gender, age, breedingStage;
+        private final long lastSeen;
+
+        HorseRow withData(byte[] newData) {
+            return new HorseRow(newData, this.owner, this.world, this.chunkX, this.chunkZ, this.breed, this.gender, this.age, this.breedingStage, this.lastSeen);
+        }
+
+        boolean isDelta() {
+            return HorseCodec.isDelta(this.data);
+        }
+    }
+
+    /**
+     * Create a storage of the given backend in the plugin data
+     * folder, without opening it.
+     */
+    HorseStorage createStorage(String name) {
+        File dbdir = this.plugin.getDataFolder();
+        switch (name) {
+        case "sqlite": return new SQLiteHorseStorage(new File(dbdir, "horses.db"), this.plugin.getLogger());
+        case "journal": return new JournalHorseStorage(new File(dbdir, "journal"), this.plugin.getLogger());
+        default: throw new IllegalArgumentException("Unknown database backend: " + name);
+        }
+    }
+
+    /**
+     * Open the configured storage, creating it if necessary.  Call
+     * before anything else.
+     */
+    void open() {
+        this.backend = this.plugin.getConfig().getString("database.backend", "sqlite").toLowerCase();
+        this.storage = createStorage(this.backend);
+        try {
+            this.storage.open();
+        } catch (IOException ioe) {
+            throw new IllegalStateException(ioe);
+        }
+    }
+
+    void close() {
+        if (this.storage == null) return;
+        this.storage.close();
+        this.storage = null;
+    }
+
+    /**
+     * Build the HorseCodec from the stored enum name tables, storing
+     * any new names.  Call after open() and before any horse is
+     * loaded or saved.
+     */
+    void setupCodec() {
+        try {
+            Map<String, List<String>> storedNames = this.storage.loadNames();
+            HorseCodec newCodec = new HorseCodec(storedNames);
+            for (Map.Entry<String, List<String>> entry: newCodec.getAddedNames().entrySet()) {
+                List<String> stored = storedNames.get(entry.getKey());
+                this.storage.addNames(entry.getKey(), stored == null ? 0 : stored.size(), entry.getValue());
             }
-            File dbdir = this.plugin.getDataFolder();
-            dbdir.mkdirs();
-            File dbfile = new File(dbdir, "horses.db");
-            this.cachedConnection = DriverManager.getConnection("jdbc:sqlite:" + dbfile);
-        }
-        return this.cachedConnection;
-    }
-
-    void createTables() {
-        try {
-            String sql;
-            sql = "CREATE TABLE IF NOT EXISTS `horses` ("
-                + "`id` INTEGER PRIMARY KEY AUTOINCREMENT, "
-                + "`created` DATETIME NOT NULL, "
-                + "`data` TEXT"
-                + ")";
-            getConnection().createStatement().execute(sql);
-            sql = "CREATE TABLE IF NOT EXISTS `brands` ("
-                + "`id` INTEGER PRIMARY KEY AUTOINCREMENT, "
-                + "`created` DATETIME NOT NULL, "
-                + "`owner` VARCHAR(40) NOT NULL UNIQUE, "
-                + "`format` VARCHAR(255) NOT NULL"
-                + ")";
-            getConnection().createStatement().execute(sql);
-            sql = "CREATE TABLE IF NOT EXISTS `extra` ("
-                + "`id` INTEGER PRIMARY KEY AUTOINCREMENT, "
-                + "`horse_id` INTEGER NOT NULL, "
-                + "`key` VARCHAR(40) NOT NULL, "
-                + "`data` TEXT, "
-                + "CONSTRAINT `unique_key` UNIQUE (`horse_id`, `key`) ON CONFLICT REPLACE)";
-            getConnection().createStatement().execute(sql);
-        } catch (SQLException sqle) {
-            sqle.printStackTrace();
+            this.codec = newCodec;
+        } catch (IOException ioe) {
+            throw new IllegalStateException(ioe);
         }
     }
 
     boolean saveHorse(HorseData data) {
         if (data == null) throw new NullPointerException("data cannot be null");
         if (data.getId() >= 0) throw new IllegalArgumentException("saved data appears to exist in database: " + data);
-        Gson gson = new Gson();
-        String sql = "INSERT INTO `horses` (`created`, `data`) values (DATETIME('NOW'), ?)";
-        try (PreparedStatement statement = getConnection().prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
-            statement.setString(1, gson.toJson(data));
-            int ret = statement.executeUpdate();
-            if (ret != 1) throw new SQLException("Failed to save horse");
-            ResultSet result = statement.getGeneratedKeys();
-            if (!result.next()) throw new SQLException("Failed to save horse");
-            data.setId(result.getInt(1));
-        } catch (SQLException sqle) {
-            throw new IllegalStateException(sqle);
+        long start = System.nanoTime();
+        try {
+            data.setId(this.storage.insertHorse(serializeHorse(data)));
+        } catch (IOException ioe) {
+            throw new IllegalStateException(ioe);
+        } finally {
+            this.plugin.getTimings().record("database.saveHorse", start);
         }
         return true;
     }
 
-    boolean updateHorse(HorseData data) {
-        if (data == null) throw new NullPointerException("data cannot be null");
-        if (data.getId() < 0) throw new IllegalArgumentException("updated data does not appear to exist in database: " + data);
-        Gson gson = new Gson();
-        int ret = 0;
+    /**
+     * Serialize a horse for the `data` column and copy its queryable
+     * columns.  Must be called in the main thread because HorseData
+     * may change at any time, unless no other thread sees the
+     * HorseData yet, as in HorseLoader.
+     */
+    HorseRow serializeHorse(HorseData data) {
+        return toRow(data, this.codec.encode(data));
+    }
+
+    /**
+     * Like serializeHorse(), but only with the field groups which
+     * changed since the horse was last serialized or loaded.  The
+     * result overwrites only those groups in storage.
+     *
+     * @return the row, or null if nothing changed
+     */
+    HorseRow serializeChanges(HorseData data) {
+        long start = System.nanoTime();
+        try {
+            byte[] bytes = this.codec.encodeChanges(data);
+            return bytes == null ? null : toRow(data, bytes);
+        } finally {
+            this.plugin.getTimings().record("database.serializeChanges", start);
+        }
+    }
+
+    private static HorseRow toRow(HorseData data, byte[] bytes) {
+        HorseData.HorseLocation location = data.getLocation();
+        return new HorseRow(bytes,
+                            data.getOwner() == null ? null : data.getOwner().toString(),
+                            location == null ? null : location.world,
+                            location == null ? null : location.cx,
+                            location == null ? null : location.cz,
+                            nameOf(data.getBreed()),
+                            nameOf(data.getGender()),
+                            nameOf(data.getAge()),
+                            nameOf(data.getBreedingStage()),
+                            data.getLastSeen());
+    }
+
+    private static String nameOf(Enum<?> value) {
+        return value == null ? null : value.name();
+    }
+
+    /**
+     * Write horse rows, each given as its id and the result of
+     * serializeHorse(), and extra data, by horse id and key, all at
+     * once.  Called by HorseDatabaseWriter on its own thread.
+     */
+    void write(Map<Integer, HorseRow> horses, Map<Integer, Map<String, String>> extras) throws IOException {
+        long start = System.nanoTime();
+        try {
+            this.storage.write(horses, extras);
+        } finally {
+            this.plugin.getTimings().record("database.write", start);
+        }
+    }
+
+    /**
+     * Stream the raw rows of all horses, ordered by id, to the given
+     * consumer.  Deserialize them with deserializeHorse().  Used by
+     * HorseLoader.
+     */
+    void readHorseRows(HorseRowConsumer consumer) throws IOException {
+        long start = System.nanoTime();
+        try {
+            this.storage.readHorses(consumer);
+        } finally {
+            this.plugin.getTimings().record("database.readHorseRows", start);
+        }
+    }
+
+    /**
+     * Load one horse by id, or null if there is no such row.  Used by
+     * HorseRegistry for horses which are not in memory.
+     */
+    HorseData loadHorse(int id) throws IOException {
+        long start = System.nanoTime();
+        try {
+            Object value = this.storage.loadHorse(id);
+            return value == null ? null : deserializeHorse(id, value);
+        } finally {
+            this.plugin.getTimings().record("database.loadHorse", start);
+        }
+    }
+
+    /**
+     * Load one horse with the row still pending in
+     * HorseDatabaseWriter applied on top.  A pending delta is merged
+     * into the stored row.  Merging twice does no harm, so it does not
+     * matter if the writer stores the delta in the meantime.
+     *
+     * @param pending the pending row, or null
+     */
+    HorseData loadHorse(int id, byte[] pending) throws IOException {
+        if (pending == null) return loadHorse(id);
+        long start = System.nanoTime();
         try {
-            ret = getConnection().createStatement().executeUpdate("UPDATE `horses` SET `data` = '" + gson.toJson(data) + "' WHERE `id` = " + data.getId());
-        } catch (SQLException sqle) {
-            sqle.printStackTrace();
+            if (!HorseCodec.isDelta(pending)) return deserializeHorse(id, pending);
+            Object value = this.storage.loadHorse(id);
+            if (!(value instanceof byte[])) throw new IOException("Horse #" + id + ": Pending changes without a binary row");
+            return deserializeHorse(id, HorseCodec.merge((byte[])value, pending));
+        } finally {
+            this.plugin.getTimings().record("database.loadHorse", start);
         }
-        return ret == 1;
     }
 
-    List<HorseData> loadHorses() {
-        Gson gson = new Gson();
-        ArrayList<HorseData> result = new ArrayList<>();
+    /**
+     * Load many horses at once, each with its row still pending in
+     * HorseDatabaseWriter applied on top like loadHorse(int, byte[]).
+     * Horses which do not exist or fail to load are left out.  May be
+     * called from any thread.
+     *
+     * @param pending the pending rows by horse id
+     */
+    Map<Integer, HorseData> loadHorses(Collection<Integer> horseIds, Map<Integer, byte[]> pending) {
+        long start = System.nanoTime();
         try {
-            ResultSet row = getConnection().createStatement().executeQuery("SELECT * FROM `horses`");
-            while (row.next()) {
+            Map<Integer, HorseData> result = new HashMap<>();
+            for (Map.Entry<Integer, Object> entry: this.storage.loadHorses(horseIds).entrySet()) {
+                int id = entry.getKey();
+                Object value = entry.getValue();
+                byte[] row = pending.get(id);
                 try {
-                    HorseData data = gson.fromJson(row.getString("data"), HorseData.class);
-                    result.add(data);
-                } catch (Exception e) {
-                    e.printStackTrace();
+                    if (row != null && !HorseCodec.isDelta(row)) {
+                        value = row;
+                    } else if (row != null) {
+                        if (!(value instanceof byte[])) throw new IOException("Horse #" + id + ": Pending changes without a binary row");
+                        value = HorseCodec.merge((byte[])value, row);
+                    }
+                    result.put(id, deserializeHorse(id, value));
+                } catch (IOException | RuntimeException e) {
+                    this.plugin.getLogger().log(Level.WARNING, "Failed to load horse #" + id, e);
                 }
             }
-        } catch (SQLException sqle) {
-            sqle.printStackTrace();
+            return result;
+        } catch (IOException ioe) {
+            throw new IllegalStateException(ioe);
+        } finally {
+            this.plugin.getTimings().record("database.loadHorses", start);
         }
-        return result;
+    }
+
+    /**
+     * Fill in the queryable columns of all rows which were stored
+     * before the columns existed.  Call after setupCodec().
+     */
+    void backfillColumns() {
+        int count;
+        try {
+            count = this.storage.backfillColumns((id, value) -> serializeHorse(deserializeHorse(id, value)));
+        } catch (IOException ioe) {
+            throw new IllegalStateException(ioe);
+        }
+        if (count > 0) this.plugin.getLogger().info("Filled in the columns of " + count + " horses.");
+    }
+
+    /**
+     * Count horses by the value of one of the REPORT_COLUMNS, most
+     * common first.  May be called from any thread.
+     */
+    Map<String, Integer> countHorsesBy(String column) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return this.storage.countHorsesBy(column);
+        } finally {
+            this.plugin.getTimings().record("database.countHorsesBy", start);
+        }
+    }
+
+    /**
+     * See HorseStorage#getWriteSequence().
+     */
+    long getWriteSequence() {
+        long start = System.nanoTime();
+        try {
+            return this.storage.getWriteSequence();
+        } catch (IOException ioe) {
+            throw new IllegalStateException(ioe);
+        } finally {
+            this.plugin.getTimings().record("database.getWriteSequence", start);
+        }
+    }
+
+    @FunctionalInterface
+    interface HorseRowConsumer {
+        void accept(int id, Object value);
+    }
+
+    /**
+     * Tell if a raw row is still in the legacy JSON format.
+     */
+    static boolean isLegacyRow(Object value) {
+        return !(value instanceof byte[] && HorseCodec.isBinary((byte[])value));
+    }
+
+    /**
+     * Deserialize a raw row of the horses table, binary or legacy
+     * JSON.  May be called from any thread once the codec is set up.
+     */
+    HorseData deserializeHorse(int id, Object value) throws IOException {
+        HorseData data;
+        if (!isLegacyRow(value)) {
+            data = this.codec.decode((byte[])value);
+        } else {
+            String json = value instanceof byte[] ? new String((byte[])value, StandardCharsets.UTF_8) : (String)value;
+            data = this.gson.fromJson(json, HorseData.class);
+            if (data == null) throw new IOException("Empty horse row");
+        }
+        data.setId(id);
+        return data;
     }
 
     boolean saveHorseBrand(HorseBrand brand) {
         if (brand == null) throw new NullPointerException("brand cannot be null");
-        String sql = "INSERT INTO `brands` (created, owner, format) values (DATETIME('now'), ?, ?)";
-        try (PreparedStatement statement = getConnection().prepareStatement(sql)) {
-            statement.setString(1, brand.getOwner().toString());
-            statement.setString(2, brand.getFormat());
-            return 1 == statement.executeUpdate();
-        } catch (SQLException sqle) {
-            throw new IllegalStateException(sqle);
+        long start = System.nanoTime();
+        try {
+            return this.storage.saveBrand(brand);
+        } catch (IOException ioe) {
+            throw new IllegalStateException(ioe);
+        } finally {
+            this.plugin.getTimings().record("database.saveHorseBrand", start);
         }
     }
 
     List<HorseBrand> loadHorseBrands() {
-        ArrayList<HorseBrand> result = new ArrayList<>();
+        long start = System.nanoTime();
         try {
-            ResultSet row = getConnection().createStatement().executeQuery("SELECT * FROM `brands`");
-            while (row.next()) {
-                try {
-                    UUID owner = UUID.fromString(row.getString("owner"));
-                    String format = row.getString("format");
-                    HorseBrand horseBrand = new HorseBrand(owner, format);
-                    result.add(horseBrand);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-            }
-        } catch (SQLException sqle) {
-            sqle.printStackTrace();
+            return this.storage.loadBrands();
+        } catch (IOException ioe) {
+            throw new IllegalStateException(ioe);
+        } finally {
+            this.plugin.getTimings().record("database.loadHorseBrands", start);
         }
-        return result;
     }
 
     boolean deleteHorseBrand(UUID owner) {
         if (owner == null) throw new NullPointerException("owner cannot be null");
-        String sql = "DELETE FROM `brands` WHERE owner = ?";
-        try (PreparedStatement statement = getConnection().prepareStatement(sql)) {
-            statement.setString(1, owner.toString());
-            return 1 == statement.executeUpdate();
-        } catch (SQLException sqle) {
-            throw new IllegalStateException(sqle);
+        long start = System.nanoTime();
+        try {
+            return this.storage.deleteBrand(owner);
+        } catch (IOException ioe) {
+            throw new IllegalStateException(ioe);
+        } finally {
+            this.plugin.getTimings().record("database.deleteHorseBrand", start);
         }
     }
 
     // --- Extra Data
 
-    boolean saveExtraData(int horseId, String key, String value) {
-        if (horseId < 0) throw new IllegalArgumentException("horse id must be positive: " + horseId);
-        if (key == null) throw new IllegalArgumentException("key cannot be null");
-        String sql = "INSERT INTO `extra` (`horse_id`, `key`, `data`) VALUES (?, ?, ?)";
-        try (PreparedStatement statement = getConnection().prepareStatement(sql)) {
-            statement.setInt(1, horseId);
-            statement.setString(2, key);
-            statement.setString(3, value);
-            return 1 == statement.executeUpdate();
-        } catch (SQLException sqle) {
-            throw new IllegalStateException(sqle);
+    /**
+     * Load the extra data of many horses at once.  Every requested
+     * horse is in the result, even if it has no extra data.  May be
+     * called from any thread.
+     */
+    Map<Integer, Map<String, String>> loadExtraData(Collection<Integer> horseIds) {
+        long start = System.nanoTime();
+        try {
+            return this.storage.loadExtraData(horseIds);
+        } catch (IOException ioe) {
+            throw new IllegalStateException(ioe);
+        } finally {
+            this.plugin.getTimings().record("database.loadExtraData", start);
         }
     }
 
     Map<String, String> loadExtraData(int horseId) {
-        String sql = "SELECT * FROM `extra` WHERE horse_id = ?";
-        Map<String, String> result = new HashMap<>();
-        try (PreparedStatement statement = getConnection().prepareStatement(sql)) {
-            statement.setInt(1, horseId);
-            ResultSet resultSet = statement.executeQuery();
-            while (resultSet.next()) {
-                String key = resultSet.getString("key");
-                String value = resultSet.getString("data");
-                result.put(key, value);
+        long start = System.nanoTime();
+        try {
+            return this.storage.loadExtraData(horseId);
+        } catch (IOException ioe) {
+            throw new IllegalStateException(ioe);
+        } finally {
+            this.plugin.getTimings().record("database.loadExtraData", start);
+        }
+    }
+
+    // --- Conversion
+
+    /**
+     * See HorseStorage#exportAll().  May be called from any thread.
+     */
+    void exportAll(HorseStorage.ExportConsumer consumer) throws IOException {
+        long start = System.nanoTime();
+        try {
+            this.storage.exportAll(consumer);
+        } finally {
+            this.plugin.getTimings().record("database.exportAll", start);
+        }
+    }
+
+    /**
+     * Store horses with the given ids, which must not exist yet,
+     * together with their extra data.  Used by HorseTransfer.  May be
+     * called from any thread.
+     */
+    void importHorses(Map<Integer, HorseRow> rows, Map<Integer, Map<String, String>> extras) {
+        long start = System.nanoTime();
+        try {
+            this.storage.importHorses(rows, extras);
+        } catch (IOException ioe) {
+            throw new IllegalStateException(ioe);
+        } finally {
+            this.plugin.getTimings().record("database.importHorses", start);
+        }
+    }
+
+    /**
+     * Copy everything into a fresh storage of another backend, as of
+     * one point in time, see HorseStorage#exportAll().  Rows are
+     * decoded and encoded again on the way, which also rewrites any
+     * legacy JSON rows, and imported in chunks along with their extra
+     * data.  Enum names go last, so they cover every imported row.
+     * May be called from any thread.  Call once HorseDatabaseWriter
+     * has nothing pending, or the copy misses those changes.
+     *
+     * @return the number of copied horses
+     * @throws IllegalStateException if the target already contains
+     *   data
+     */
+    int convertTo(String targetBackend) throws IOException {
+        if (targetBackend.equals(this.backend)) throw new IllegalArgumentException("Already using " + targetBackend);
+        final HorseStorage target = createStorage(targetBackend);
+        target.open();
+        try {
+            if (!target.isEmpty()) throw new IllegalStateException("Target storage is not empty: " + targetBackend);
+            final Map<Integer, HorseRow> rows = new LinkedHashMap<>();
+            final Map<Integer, Map<String, String>> extras = new HashMap<>();
+            final int[] count = {0};
+            this.storage.exportAll(new HorseStorage.ExportConsumer() {
+                    @Override
+                    public void brand(HorseBrand brand) throws IOException {
+                        target.saveBrand(brand);
+                    }
+
+                    @Override
+                    public void horse(int id, Object value, Map<String, String> extra) throws IOException {
+                        rows.put(id, serializeHorse(deserializeHorse(id, value)));
+                        if (!extra.isEmpty()) extras.put(id, extra);
+                        if (rows.size() >= CONVERT_CHUNK) {
+                            target.importHorses(rows, extras);
+                            count[0] += rows.size();
+                            rows.clear();
+                            extras.clear();
+                        }
+                    }
+                });
+            target.importHorses(rows, extras);
+            count[0] += rows.size();
+            for (Map.Entry<String, List<String>> entry: this.storage.loadNames().entrySet()) {
+                target.addNames(entry.getKey(), 0, entry.getValue());
             }
-        } catch (SQLException sqle) {
-            throw new IllegalStateException(sqle);
+            return count[0];
+        } finally {
+            target.close();
         }
-        return result;
     }
 }
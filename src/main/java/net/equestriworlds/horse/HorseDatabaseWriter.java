@@ -0,0 +1,356 @@
+package net.equestriworlds.horse;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Write-behind stage for horse updates.
+ *
+ * HorsePlugin#saveHorse() merely marks a horse dirty.  Once per tick,
+ * the dirty horses are serialized in the main thread and handed to
+ * this writer, which stores them on a dedicated thread, one
+ * HorseStorage#write() per batch.  Rows of the same horse
+ * which are still waiting in the queue are replaced, so a horse
+ * saved many times in a row is only written once.  Rows which only
+ * carry changed field groups are merged into the waiting row
+ * instead, see HorseCodec#merge().
+ *
+ * HorseExtra#saveNow() submits its changed keys the same way.  They
+ * are merged by horse and key, and written in the same transaction
+ * as the horses.
+ *
+ * A batch holds at most MAX_BATCH rows and extra keys, so no write
+ * transaction keeps the main thread waiting for long, see
+ * SQLiteHorseStorage.  A larger queue, such as all legacy rows at
+ * startup, is written in several batches, oldest rows first.
+ */
+@RequiredArgsConstructor
+final class HorseDatabaseWriter implements Runnable {
+    static final int MAX_BATCH = 500;
+    private static final long MIN_RETRY_DELAY = 50L;
+    private static final long MAX_RETRY_DELAY = 5000L;
+    private final Target target;
+    private final Logger logger;
+    private Batch queue = new Batch();
+    private Batch writing = null; // Polled but not yet written
+    private boolean running = false;
+    private Thread thread;
+    private long retryDelay = MIN_RETRY_DELAY; // Grows while writes fail
+
+    /**
+     * Where batches go, usually HorseDatabase#write().
+     */
+    @FunctionalInterface
+    interface Target {
+        void write(Map<Integer, HorseDatabase.HorseRow> horses, Map<Integer, Map<String, String>> extras) throws IOException;
+    }
+
+    /**
+     * Horse rows by id and extra data by horse id and key, all
+     * serialized.
+     */
+    static final class Batch {
+        final Map<Integer, HorseDatabase.HorseRow> horses = new LinkedHashMap<>();
+        final Map<Integer, Map<String, String>> extras = new LinkedHashMap<>();
+
+        boolean isEmpty() {
+            return this.horses.isEmpty() && this.extras.isEmpty();
+        }
+
+        int size() {
+            int result = this.horses.size();
+            for (Map<String, String> values: this.extras.values()) result += values.size();
+            return result;
+        }
+
+        /**
+         * Add a row, replacing an older one of the same horse, or
+         * merging into it if the new row is a delta.
+         */
+        void putHorse(int horseId, HorseDatabase.HorseRow row) {
+            HorseDatabase.HorseRow old = this.horses.get(horseId);
+            this.horses.put(horseId, old == null ? row : merge(old, row));
+        }
+
+        void putExtra(int horseId, Map<String, String> values) {
+            Map<String, String> map = this.extras.get(horseId);
+            if (map == null) {
+                map = new HashMap<>();
+                this.extras.put(horseId, map);
+            }
+            map.putAll(values);
+        }
+
+        /**
+         * Move the oldest rows into a new batch until it holds about
+         * max rows and extra keys.  Each horse goes along with its
+         * extra data.
+         */
+        Batch take(int max) {
+            Batch result = new Batch();
+            int size = 0;
+            for (Iterator<Map.Entry<Integer, HorseDatabase.HorseRow>> iter = this.horses.entrySet().iterator(); iter.hasNext() && size < max;) {
+                Map.Entry<Integer, HorseDatabase.HorseRow> row = iter.next();
+                iter.remove();
+                result.horses.put(row.getKey(), row.getValue());
+                size += 1;
+                Map<String, String> values = this.extras.remove(row.getKey());
+                if (values != null) {
+                    result.extras.put(row.getKey(), values);
+                    size += values.size();
+                }
+            }
+            for (Iterator<Map.Entry<Integer, Map<String, String>>> iter = this.extras.entrySet().iterator(); iter.hasNext() && size < max;) {
+                Map.Entry<Integer, Map<String, String>> row = iter.next();
+                iter.remove();
+                result.extras.put(row.getKey(), row.getValue());
+                size += row.getValue().size();
+            }
+            return result;
+        }
+
+        /**
+         * Merge an older batch into this one without replacing
+         * anything newer.
+         */
+        void putAllIfAbsent(Batch older) {
+            for (Map.Entry<Integer, HorseDatabase.HorseRow> row: older.horses.entrySet()) {
+                HorseDatabase.HorseRow newer = this.horses.get(row.getKey());
+                this.horses.put(row.getKey(), newer == null ? row.getValue() : merge(row.getValue(), newer));
+            }
+            for (Map.Entry<Integer, Map<String, String>> row: older.extras.entrySet()) {
+                Map<String, String> map = this.extras.get(row.getKey());
+                if (map == null) {
+                    map = new HashMap<>();
+                    this.extras.put(row.getKey(), map);
+                }
+                for (Map.Entry<String, String> value: row.getValue().entrySet()) {
+                    map.putIfAbsent(value.getKey(), value.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Apply a newer row on top of an older one of the same horse.
+     * The columns of the newer row are always complete.
+     */
+    static HorseDatabase.HorseRow merge(HorseDatabase.HorseRow older, HorseDatabase.HorseRow newer) {
+        if (!newer.isDelta()) return newer;
+        try {
+            return newer.withData(HorseCodec.merge(older.getData(), newer.getData()));
+        } catch (IOException ioe) {
+            // Both were encoded by the same codec.
+            throw new IllegalStateException(ioe);
+        }
+    }
+
+    void start() {
+        if (this.thread != null) throw new IllegalStateException("writer already started");
+        this.running = true;
+        this.thread = new Thread(this, "Horse Database Writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Stop the writer thread once everything in the queue is
+     * written.  Blocks until it is done.  Called by
+     * HorsePlugin#onDisable().
+     */
+    void stop() {
+        synchronized (this) {
+            this.running = false;
+            notifyAll();
+        }
+        if (this.thread != null) {
+            try {
+                this.thread.join();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            this.thread = null;
+        }
+        // Anything left over means the thread gave up, maybe in the
+        // middle of a batch.  Try one last time in this thread.
+        synchronized (this) {
+            if (this.writing != null) {
+                this.queue.putAllIfAbsent(this.writing);
+                this.writing = null;
+            }
+        }
+        for (Batch batch = poll(); batch != null; batch = poll()) {
+            boolean written = write(batch);
+            if (!written) {
+                synchronized (this) {
+                    this.queue.putAllIfAbsent(batch);
+                }
+            }
+            done();
+            if (!written) break;
+        }
+    }
+
+    /**
+     * Wait until everything submitted so far is written, or the
+     * timeout runs out.  Called in the main thread.
+     *
+     * @return true if nothing is pending anymore
+     */
+    synchronized boolean flush(long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!this.queue.isEmpty() || this.writing != null) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0L || this.thread == null) return false;
+            try {
+                wait(remaining);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Queue serialized horses for writing.  Called in the main
+     * thread.
+     */
+    synchronized void submit(Map<Integer, HorseDatabase.HorseRow> rows) {
+        if (rows.isEmpty()) return;
+        for (Map.Entry<Integer, HorseDatabase.HorseRow> row: rows.entrySet()) {
+            this.queue.putHorse(row.getKey(), row.getValue());
+        }
+        notifyAll();
+    }
+
+    /**
+     * Queue serialized extra data of one horse, by key.  Called in
+     * the main thread.
+     */
+    synchronized void submitExtra(int horseId, Map<String, String> values) {
+        if (values.isEmpty()) return;
+        this.queue.putExtra(horseId, values);
+        notifyAll();
+    }
+
+    /**
+     * Get the extra data of a horse which were submitted but may not
+     * be in the database yet.  Call this before reading the extra
+     * data from the database, then apply the result on top.
+     */
+    synchronized Map<String, String> getPendingExtra(int horseId) {
+        Map<String, String> result = new HashMap<>();
+        if (this.writing != null) {
+            Map<String, String> values = this.writing.extras.get(horseId);
+            if (values != null) result.putAll(values);
+        }
+        Map<String, String> values = this.queue.extras.get(horseId);
+        if (values != null) result.putAll(values);
+        return result;
+    }
+
+    /**
+     * Get the serialized row of a horse which was submitted but may
+     * not be in the database yet, or null.  The result may be a
+     * delta, see HorseDatabase#loadHorse(int, byte[]).
+     */
+    synchronized byte[] getPendingHorse(int horseId) {
+        HorseDatabase.HorseRow result = this.writing == null ? null : this.writing.horses.get(horseId);
+        HorseDatabase.HorseRow queued = this.queue.horses.get(horseId);
+        if (queued != null) result = result == null ? queued : merge(result, queued);
+        return result == null ? null : result.getData();
+    }
+
+    /**
+     * Tell if everything submitted so far is written.
+     */
+    synchronized boolean isIdle() {
+        return this.queue.isEmpty() && this.writing == null;
+    }
+
+    synchronized int getQueueSize() {
+        return this.queue.size();
+    }
+
+    private synchronized Batch poll() {
+        if (this.queue.isEmpty()) return null;
+        Batch result;
+        if (this.queue.size() <= MAX_BATCH) {
+            result = this.queue;
+            this.queue = new Batch();
+        } else {
+            result = this.queue.take(MAX_BATCH);
+        }
+        this.writing = result;
+        return result;
+    }
+
+    private synchronized void done() {
+        this.writing = null;
+        notifyAll();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            Batch batch;
+            synchronized (this) {
+                while (this.running && this.queue.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+                if (!this.running && this.queue.isEmpty()) return;
+                batch = poll();
+            }
+            if (write(batch)) {
+                done();
+                this.retryDelay = MIN_RETRY_DELAY;
+            } else {
+                // Put the rows back unless a newer version was
+                // submitted in the meantime, then wait before trying
+                // again, a little longer each time.
+                synchronized (this) {
+                    this.queue.putAllIfAbsent(batch);
+                    this.writing = null;
+                    if (!this.running) return;
+                    try {
+                        wait(this.retryDelay);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+                this.retryDelay = Math.min(MAX_RETRY_DELAY, this.retryDelay * 2L);
+            }
+        }
+    }
+
+    /**
+     * Write one batch.  Failures because the database is busy are
+     * expected once in a while and only logged in short.  Runtime
+     * exceptions count as failures as well, so they cannot end the
+     * writer thread.
+     */
+    private boolean write(Batch batch) {
+        try {
+            this.target.write(batch.horses, batch.extras);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            if (HorseConnections.isBusy(e)) {
+                this.logger.warning("Horse database busy, retrying in " + this.retryDelay + "ms");
+            } else {
+                this.logger.log(Level.SEVERE, "Failed to write horses, retrying in " + this.retryDelay + "ms", e);
+            }
+            return false;
+        }
+    }
+}
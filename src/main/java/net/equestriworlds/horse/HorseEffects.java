@@ -141,6 +141,7 @@ final class HorseEffects {
     }
 
     static void suckleEffect(HorsePlugin plugin, SpawnedHorse spawned) {
+        if (!spawned.isPresent()) return;
         Location loc = spawned.getEntity().getEyeLocation().add(0.0, 0.5, 0.0);
         loc.getWorld().playSound(loc, Sound.ENTITY_COW_MILK, SoundCategory.NEUTRAL, 0.5f, 1.35f);
         loc.getWorld().spawnParticle(Particle.BLOCK_DUST, loc, 32, 0.0, 0.0, 0.0, 0.1, Material.QUARTZ_BLOCK.getNewData((byte)0));
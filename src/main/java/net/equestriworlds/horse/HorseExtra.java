@@ -2,10 +2,13 @@ package net.equestriworlds.horse;
 
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
+import java.lang.reflect.Type;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.function.Supplier;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import lombok.Setter;
@@ -17,10 +20,23 @@ import lombok.Setter;
 @RequiredArgsConstructor @Getter @Setter
 public final class HorseExtra {
     private final int horseId;
-    public static final String EXTRA_COOLDOWNS = "cooldowns";
-    private boolean needsSaving = false;
+    public static final String EXTRA_COOLDOWNS = "cooldowns"; // Legacy, seconds remaining
+    public static final String EXTRA_DEADLINES = "deadlines";
+    private static final String[] EXTRA_KEYS = {
+        EXTRA_DEADLINES,
+        Breeding.Persistence.EXTRA_KEY,
+        Crosstie.Persistence.EXTRA_KEY,
+        Grooming.Persistence.EXTRA_KEY,
+        Health.Persistence.EXTRA_KEY
+    };
+    private static final Gson GSON = new Gson();
+    // Keys which changed since the last save
+    @Getter(AccessLevel.NONE) @Setter(AccessLevel.NONE)
+    private final Set<String> dirtyKeys = new HashSet<>();
     // Extra Data
-    private Map<String, Integer> cooldowns = null;
+    // Unix time at which each cooldown ends, indexed by ordinal.
+    @Getter(AccessLevel.NONE)
+    private final long[] deadlines = new long[Cooldown.values().length];
     private Breeding.Persistence pregnancy = null;
     private Crosstie.Persistence crosstie = null;
     private Grooming.Persistence grooming = null;
@@ -29,17 +45,28 @@ public final class HorseExtra {
     // --- Loading
 
     void load(Map<String, String> data) {
+        String dl = data.get(EXTRA_DEADLINES);
         String cd = data.get(EXTRA_COOLDOWNS);
-        if (cd != null) {
-            Gson gson = new Gson();
-            try {
-                this.cooldowns = gson.fromJson(cd, new TypeToken<Map<String, Integer>>(){}.getType());
-            } catch (Exception e) {
-                e.printStackTrace();
-                this.cooldowns = new HashMap<>();
+        if (dl != null) {
+            Map<String, Long> map = parse(dl, new TypeToken<Map<String, Long>>(){}.getType());
+            if (map != null) {
+                for (Map.Entry<String, Long> entry: map.entrySet()) {
+                    Cooldown cooldown = Cooldown.ofKey(entry.getKey());
+                    if (cooldown != null && entry.getValue() != null) this.deadlines[cooldown.ordinal()] = entry.getValue();
+                }
+            }
+        } else if (cd != null) {
+            // Legacy cooldowns were stored as seconds remaining.
+            Map<String, Integer> map = parse(cd, new TypeToken<Map<String, Integer>>(){}.getType());
+            if (map != null) {
+                long now = now();
+                for (Map.Entry<String, Integer> entry: map.entrySet()) {
+                    Cooldown cooldown = Cooldown.ofKey(entry.getKey());
+                    if (cooldown != null && entry.getValue() != null) this.deadlines[cooldown.ordinal()] = now + (long)entry.getValue();
+                }
+                // Store them as deadlines from now on.
+                this.dirtyKeys.add(EXTRA_DEADLINES);
             }
-        } else {
-            this.cooldowns = new HashMap<>();
         }
         this.pregnancy = parse(data.get(Breeding.Persistence.EXTRA_KEY), Breeding.Persistence.class);
         this.crosstie = parse(data.get(Crosstie.Persistence.EXTRA_KEY), Crosstie.Persistence.class);
@@ -49,9 +76,8 @@ public final class HorseExtra {
 
     private <T> T parse(String inp, Class<T> clazz, Supplier<T> dfl) {
         if (inp == null) return dfl.get();
-        Gson gson = new Gson();
         try {
-            return gson.fromJson(inp, clazz);
+            return GSON.fromJson(inp, clazz);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -60,9 +86,18 @@ public final class HorseExtra {
 
     private <T> T parse(String inp, Class<T> clazz) {
         if (inp == null) return null;
-        Gson gson = new Gson();
         try {
-            return gson.fromJson(inp, clazz);
+            return GSON.fromJson(inp, clazz);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    private <T> T parse(String inp, Type type) {
+        if (inp == null) return null;
+        try {
+            return GSON.fromJson(inp, type);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -71,45 +106,123 @@ public final class HorseExtra {
 
     // --- Cooldowns
 
-    void passSecond(long now) {
-        // Reduce all cooldowns
-        for (Iterator<Map.Entry<String, Integer>> iter = this.cooldowns.entrySet().iterator(); iter.hasNext();) {
-            Map.Entry<String, Integer> entry = iter.next();
-            int value = entry.getValue();
-            if (value > 1) {
-                entry.setValue(value - 1);
-            } else {
-                iter.remove();
-            }
-        }
+    /**
+     * Cooldowns are stored as deadlines in Unix time, so they keep
+     * running when the server lags, and nothing needs to be updated
+     * while they do.
+     */
+    static long now() {
+        return System.currentTimeMillis() / 1000L;
     }
 
-    public void setCooldown(String name, int seconds) {
-        if (name == null) throw new IllegalArgumentException("name cannot be null");
+    public void setCooldown(Cooldown cooldown, int seconds) {
+        if (cooldown == null) throw new IllegalArgumentException("cooldown cannot be null");
         if (seconds < 0) throw new IllegalArgumentException("seconds cannot be negative");
-        if (seconds == 0) {
-            this.cooldowns.remove(name);
-        } else {
-            this.cooldowns.put(name, seconds);
-        }
+        this.deadlines[cooldown.ordinal()] = seconds == 0 ? 0L : now() + (long)seconds;
+        this.dirtyKeys.add(EXTRA_DEADLINES);
     }
 
-    public int getCooldown(String name) {
-        Integer result = this.cooldowns.get(name);
-        return result == null ? 0 : result;
+    /**
+     * Get the seconds remaining, or 0 if the cooldown is over.
+     */
+    public int getCooldown(Cooldown cooldown) {
+        long remaining = this.deadlines[cooldown.ordinal()] - now();
+        return remaining > 0L ? (int)remaining : 0;
     }
 
+    /**
+     * Set the Unix time at which the cooldown ends.  Used to replay
+     * cooldowns which ended in the past; see
+     * HorsePlugin#catchUpHorse().
+     */
+    public void setDeadline(Cooldown cooldown, long deadline) {
+        if (cooldown == null) throw new IllegalArgumentException("cooldown cannot be null");
+        this.deadlines[cooldown.ordinal()] = deadline;
+        this.dirtyKeys.add(EXTRA_DEADLINES);
+    }
+
+    public boolean isCoolingDown(Cooldown cooldown, long now) {
+        return this.deadlines[cooldown.ordinal()] > now;
+    }
+
+    /**
+     * Get the Unix time at which the cooldown ends, or 0 if it is
+     * not set.
+     */
+    public long getDeadline(Cooldown cooldown) {
+        return this.deadlines[cooldown.ordinal()];
+    }
+
+    // --- Setters
+
+    public void setPregnancy(Breeding.Persistence pregnancy) {
+        this.pregnancy = pregnancy;
+        this.dirtyKeys.add(Breeding.Persistence.EXTRA_KEY);
+    }
+
+    public void setCrosstie(Crosstie.Persistence crosstie) {
+        this.crosstie = crosstie;
+        this.dirtyKeys.add(Crosstie.Persistence.EXTRA_KEY);
+    }
+
+    public void setGrooming(Grooming.Persistence grooming) {
+        this.grooming = grooming;
+        this.dirtyKeys.add(Grooming.Persistence.EXTRA_KEY);
+    }
+
+    public void setHealth(Health.Persistence health) {
+        this.health = health;
+        this.dirtyKeys.add(Health.Persistence.EXTRA_KEY);
+    }
+
+    // --- Saving
+
+    public boolean isNeedsSaving() {
+        return !this.dirtyKeys.isEmpty();
+    }
+
+    /**
+     * Serialize the keys which changed since the last call and hand
+     * them to the HorseDatabaseWriter.  Called in the main thread.
+     */
     void saveNow(HorsePlugin plugin) {
-        this.needsSaving = false;
-        Gson gson = new Gson();
-        plugin.getDatabase().saveExtraData(this.horseId, EXTRA_COOLDOWNS, gson.toJson(this.cooldowns));
-        plugin.getDatabase().saveExtraData(this.horseId, Breeding.Persistence.EXTRA_KEY, gson.toJson(this.cooldowns));
-        plugin.getDatabase().saveExtraData(this.horseId, Crosstie.Persistence.EXTRA_KEY, gson.toJson(this.crosstie));
-        plugin.getDatabase().saveExtraData(this.horseId, Grooming.Persistence.EXTRA_KEY, gson.toJson(this.grooming));
-        plugin.getDatabase().saveExtraData(this.horseId, Health.Persistence.EXTRA_KEY, gson.toJson(this.health));
+        if (this.dirtyKeys.isEmpty()) return;
+        Map<String, String> values = new HashMap<>();
+        for (String key: this.dirtyKeys) values.put(key, serialize(key));
+        this.dirtyKeys.clear();
+        plugin.getDatabaseWriter().submitExtra(this.horseId, values);
+        plugin.getExtraPrefetcher().invalidate(this.horseId);
     }
 
+    private String serialize(String key) {
+        switch (key) {
+        case EXTRA_DEADLINES: {
+            Map<String, Long> deadlineMap = new HashMap<>();
+            for (Cooldown cooldown: Cooldown.values()) {
+                long deadline = this.deadlines[cooldown.ordinal()];
+                if (deadline != 0L) deadlineMap.put(cooldown.key, deadline);
+            }
+            return GSON.toJson(deadlineMap);
+        }
+        case Breeding.Persistence.EXTRA_KEY: return GSON.toJson(this.pregnancy);
+        case Crosstie.Persistence.EXTRA_KEY: return GSON.toJson(this.crosstie);
+        case Grooming.Persistence.EXTRA_KEY: return GSON.toJson(this.grooming);
+        case Health.Persistence.EXTRA_KEY: return GSON.toJson(this.health);
+        default: throw new IllegalArgumentException("Unknown extra key: " + key);
+        }
+    }
+
+    /**
+     * Mark everything for saving.
+     */
     void save() {
-        this.needsSaving = true;
+        for (String key: EXTRA_KEYS) this.dirtyKeys.add(key);
+    }
+
+    /**
+     * Mark one key for saving, after its value was changed in place.
+     */
+    void save(String key) {
+        this.dirtyKeys.add(key);
     }
 }
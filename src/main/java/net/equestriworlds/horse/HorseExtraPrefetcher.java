@@ -0,0 +1,210 @@
+package net.equestriworlds.horse;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Extra data and HorseData of horses which are about to be spawned,
+ * loaded ahead of time with one query for many horses.
+ * HorsePlugin#loadExtraData() and HorseRegistry#get() take them from
+ * here before they fall back to a query of their own.
+ *
+ * prefetch() loads asynchronously, for horses
+ * near players which are likely to spawn soon.  prefetchNow() loads
+ * in the calling thread, for horses which are about to spawn right
+ * away, e.g. when a chunk loads.
+ *
+ * Prefetched data must never be older than what was last submitted
+ * to the database writer.  Pending rows are applied on top when a
+ * prefetch starts, and horses whose extra data are submitted while
+ * their prefetch is in flight are dropped from the result, see
+ * invalidate().  A HorseData can only change once HorseRegistry
+ * holds it, so one is dropped if the registry loads the horse while
+ * its prefetch is in flight, see invalidateHorse().
+ */
+@RequiredArgsConstructor
+final class HorseExtraPrefetcher {
+    static final int CAPACITY = 1024;
+    private final HorsePlugin plugin;
+    private final Map<Integer, Map<String, String>> prefetched = new LinkedHashMap<Integer, Map<String, String>>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Map<String, String>> eldest) {
+            return size() > CAPACITY;
+        }
+    };
+    private final Map<Integer, HorseData> prefetchedHorses = new LinkedHashMap<Integer, HorseData>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, HorseData> eldest) {
+            return size() > CAPACITY;
+        }
+    };
+    private final Set<Integer> inFlight = new HashSet<>();
+    private final Set<Integer> stale = new HashSet<>();
+    private final Set<Integer> staleHorses = new HashSet<>();
+
+    /**
+     * Load the extra data and HorseData of the given horses on
+     * another thread.  Horses which are spawned, prefetched or in
+     * flight are skipped, and HorseData which HorseRegistry holds
+     * already are not loaded again.  Called in the main thread.
+     */
+    void prefetch(Collection<Integer> horseIds) {
+        final List<Integer> ids = filter(horseIds);
+        if (ids.isEmpty()) return;
+        this.inFlight.addAll(ids);
+        final Map<Integer, Map<String, String>> pending = getPending(ids);
+        final Map<Integer, byte[]> pendingHorses = new HashMap<>();
+        final List<Integer> horseIdsToLoad = getHorsesToLoad(ids, pendingHorses);
+        this.plugin.getServer().getScheduler().runTaskAsynchronously(this.plugin, () -> {
+                Map<Integer, Map<String, String>> result;
+                Map<Integer, HorseData> horseResult;
+                try {
+                    result = this.plugin.getDatabase().loadExtraData(ids);
+                    horseResult = this.plugin.getDatabase().loadHorses(horseIdsToLoad, pendingHorses);
+                } catch (IllegalStateException ise) {
+                    this.plugin.getLogger().log(Level.WARNING, "Failed to prefetch horses", ise);
+                    result = null;
+                    horseResult = null;
+                }
+                final Map<Integer, Map<String, String>> loaded = result;
+                final Map<Integer, HorseData> loadedHorses = horseResult;
+                if (!this.plugin.isEnabled()) return;
+                this.plugin.getServer().getScheduler().runTask(this.plugin, () -> accept(ids, loaded, pending, loadedHorses));
+            });
+    }
+
+    /**
+     * Load the extra data and HorseData of the given horses right
+     * away, one query each.  Horses which are spawned, prefetched or
+     * in flight are skipped.
+     */
+    void prefetchNow(Collection<Integer> horseIds) {
+        List<Integer> ids = filter(horseIds);
+        if (ids.isEmpty()) return;
+        Map<Integer, Map<String, String>> pending = getPending(ids);
+        Map<Integer, byte[]> pendingHorses = new HashMap<>();
+        List<Integer> horseIdsToLoad = getHorsesToLoad(ids, pendingHorses);
+        Map<Integer, Map<String, String>> loaded;
+        Map<Integer, HorseData> loadedHorses;
+        try {
+            loaded = this.plugin.getDatabase().loadExtraData(ids);
+            loadedHorses = this.plugin.getDatabase().loadHorses(horseIdsToLoad, pendingHorses);
+        } catch (IllegalStateException ise) {
+            this.plugin.getLogger().log(Level.WARNING, "Failed to prefetch horses", ise);
+            return;
+        }
+        for (Map.Entry<Integer, Map<String, String>> entry: loaded.entrySet()) {
+            Map<String, String> values = pending.get(entry.getKey());
+            if (values != null) entry.getValue().putAll(values);
+            this.prefetched.put(entry.getKey(), entry.getValue());
+        }
+        this.prefetchedHorses.putAll(loadedHorses);
+    }
+
+    /**
+     * Remove and return the prefetched extra data of a horse, or null
+     * if there are none.
+     */
+    Map<String, String> take(int horseId) {
+        return this.prefetched.remove(horseId);
+    }
+
+    /**
+     * Remove and return the prefetched HorseData of a horse, or null
+     * if there is none.  Called by HorseRegistry#get().
+     */
+    HorseData takeHorse(int horseId) {
+        return this.prefetchedHorses.remove(horseId);
+    }
+
+    /**
+     * Forget anything prefetched for a horse because its extra data
+     * were just submitted to the database writer.  Called by
+     * HorseExtra#saveNow().
+     */
+    void invalidate(int horseId) {
+        this.prefetched.remove(horseId);
+        if (this.inFlight.contains(horseId)) this.stale.add(horseId);
+    }
+
+    /**
+     * Forget anything prefetched for a horse because HorseRegistry
+     * holds its HorseData now.  Called by HorseRegistry.
+     */
+    void invalidateHorse(int horseId) {
+        this.prefetchedHorses.remove(horseId);
+        if (this.inFlight.contains(horseId)) this.staleHorses.add(horseId);
+    }
+
+    void clear() {
+        this.prefetched.clear();
+        this.prefetchedHorses.clear();
+        this.inFlight.clear();
+        this.stale.clear();
+        this.staleHorses.clear();
+    }
+
+    private List<Integer> filter(Collection<Integer> horseIds) {
+        List<Integer> result = new ArrayList<>(horseIds.size());
+        for (Integer id: horseIds) {
+            if (this.prefetched.containsKey(id) || this.inFlight.contains(id)) continue;
+            if (this.plugin.getSpawnedHorses().containsHorse(id)) continue;
+            result.add(id);
+        }
+        return result;
+    }
+
+    private Map<Integer, Map<String, String>> getPending(List<Integer> ids) {
+        Map<Integer, Map<String, String>> result = new HashMap<>();
+        for (Integer id: ids) {
+            Map<String, String> values = this.plugin.getDatabaseWriter().getPendingExtra(id);
+            if (!values.isEmpty()) result.put(id, values);
+        }
+        return result;
+    }
+
+    /**
+     * The ids of horses whose HorseData are not held by HorseRegistry,
+     * along with their rows pending in the database writer.
+     */
+    private List<Integer> getHorsesToLoad(List<Integer> ids, Map<Integer, byte[]> pending) {
+        List<Integer> result = new ArrayList<>(ids.size());
+        for (Integer id: ids) {
+            if (this.plugin.getHorseRegistry().isLoaded(id)) continue;
+            result.add(id);
+            byte[] row = this.plugin.getDatabaseWriter().getPendingHorse(id);
+            if (row != null) pending.put(id, row);
+        }
+        return result;
+    }
+
+    /**
+     * Store the result of an asynchronous prefetch.  Called in the
+     * main thread.
+     */
+    private void accept(List<Integer> ids, Map<Integer, Map<String, String>> loaded, Map<Integer, Map<String, String>> pending, Map<Integer, HorseData> loadedHorses) {
+        for (Integer id: ids) {
+            this.inFlight.remove(id);
+            boolean isStale = this.stale.remove(id);
+            boolean isStaleHorse = this.staleHorses.remove(id);
+            if (loaded == null) continue;
+            if (this.plugin.getSpawnedHorses().containsHorse(id)) continue;
+            HorseData data = loadedHorses.get(id);
+            if (data != null && !isStaleHorse && !this.plugin.getHorseRegistry().isLoaded(id)) this.prefetchedHorses.put(id, data);
+            if (isStale) continue;
+            Map<String, String> values = loaded.get(id);
+            if (values == null) continue;
+            Map<String, String> pendingValues = pending.get(id);
+            if (pendingValues != null) values.putAll(pendingValues);
+            this.prefetched.put(id, values);
+        }
+    }
+}
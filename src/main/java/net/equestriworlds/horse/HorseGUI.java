@@ -58,10 +58,13 @@ final class HorseGUI implements InventoryHolder {
 
     HorseGUI horseList(Player player) {
         if (this.inventory != null) throw new IllegalStateException("inventory already initialized!");
-        List<HorseData> horses = this.plugin.findHorses(player);
+        List<HorseSummary> horses = this.plugin.findHorses(player);
         this.inventory = Bukkit.getServer().createInventory(this, 3 * 9, "" + ChatColor.DARK_BLUE + ChatColor.BOLD + "Horse List" + ChatColor.DARK_GRAY + "(" + horses.size() + ")");
         int currentIndex = 0;
-        for (HorseData data: horses) {
+        for (HorseSummary summary: horses) {
+            HorseData data = this.plugin.findHorse(summary.getId());
+            if (data == null) continue;
+            final int horseId = data.getId();
             ItemStack icon;
             switch (data.getGender()) {
             case STALLION: icon = new ItemStack(Material.INK_SACK, 1, (short)12); break;
@@ -75,11 +78,15 @@ final class HorseGUI implements InventoryHolder {
             icon.setItemMeta(meta);
             this.inventory.setItem(currentIndex, icon);
             clicks.put(currentIndex, (event) -> {
+                    // Look the horse up again in case it was unloaded
+                    // in the meantime.
                     HumanEntity human = event.getWhoClicked();
+                    HorseData clicked = this.plugin.findHorse(horseId);
+                    if (clicked == null) return;
                     if (event.isLeftClick() && !event.isShiftClick()) {
-                        this.plugin.getHorseCommand().sendHorseInfo((Player)human, data);
+                        this.plugin.getHorseCommand().sendHorseInfo((Player)human, clicked);
                     } else if (event.isLeftClick() && event.isShiftClick()) {
-                        this.plugin.teleportHorse(data, human.getLocation());
+                        this.plugin.teleportHorse(clicked, human.getLocation());
                     }
                 });
             currentIndex += 1;
@@ -96,7 +103,7 @@ final class HorseGUI implements InventoryHolder {
             int index = startIndex + i;
             if (i >= brands.size()) break;
             HorseBrand horseBrand = brands.get(index);
-            long brandedHorses = this.plugin.getHorses().stream().filter(h -> horseBrand.equals(h.getBrand())).count();
+            int brandedHorses = this.plugin.getHorseRegistry().countBrandedBy(horseBrand.getOwner());
             ItemStack item = new ItemStack(Material.SIGN);
             ItemMeta meta = item.getItemMeta();
             meta.setDisplayName(horseBrand.getFormat());
@@ -1,8 +1,11 @@
 package net.equestriworlds.horse;
 
+import java.util.ArrayList;
+import java.util.List;
 import lombok.RequiredArgsConstructor;
 import org.bukkit.Bukkit;
 import org.bukkit.Chunk;
+import org.bukkit.Location;
 import org.bukkit.Material;
 import org.bukkit.Particle;
 import org.bukkit.Sound;
@@ -22,7 +25,10 @@ import org.bukkit.event.inventory.InventoryCloseEvent;
 import org.bukkit.event.inventory.InventoryDragEvent;
 import org.bukkit.event.inventory.InventoryOpenEvent;
 import org.bukkit.event.player.PlayerInteractEntityEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerMoveEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.event.player.PlayerTeleportEvent;
 import org.bukkit.event.world.ChunkLoadEvent;
 import org.bukkit.event.world.ChunkUnloadEvent;
 import org.bukkit.inventory.EquipmentSlot;
@@ -57,18 +63,50 @@ final class HorseListener implements Listener {
                 e.remove();
             }
         }
-        final int cx = chunk.getX();
-        final int cz = chunk.getZ();
-        // Spawn in horse entity where they were last recorded.
-        for (HorseData data: this.plugin.getHorses()) {
+        // Spawn in horse entity where they were last recorded.  Load
+        // the extra data of all of them in one go unless they were
+        // prefetched already.
+        List<HorseSummary> summaries = this.plugin.getHorseRegistry().getHorses(chunk.getWorld().getName(), chunk.getX(), chunk.getZ());
+        if (summaries.isEmpty()) return;
+        if (summaries.size() > 1) {
+            List<Integer> ids = new ArrayList<>(summaries.size());
+            for (HorseSummary summary: summaries) ids.add(summary.getId());
+            this.plugin.getExtraPrefetcher().prefetchNow(ids);
+        }
+        for (HorseSummary summary: summaries) {
+            HorseData data = this.plugin.findHorse(summary.getId());
+            if (data == null || data.getLocation() == null) continue;
             HorseData.HorseLocation horseLocation = data.getLocation();
-            if (horseLocation == null || horseLocation.cx != cx || horseLocation.cz != cz) continue;
             SpawnedHorse spawnedHorse = this.plugin.findSpawnedHorse(data);
-            if (spawnedHorse != null && spawnedHorse.isPresent()) continue;
+            if (spawnedHorse != null && (spawnedHorse.isPresent() || spawnedHorse.isVirtual())) continue;
             this.plugin.spawnHorse(data, horseLocation.bukkitLocation());
         }
     }
 
+    /**
+     * Prefetch the extra data of horses around players who enter a
+     * new chunk.
+     */
+    @EventHandler(ignoreCancelled = true, priority = EventPriority.MONITOR)
+    public void onPlayerMove(PlayerMoveEvent event) {
+        onPlayerChunkChange(event.getFrom(), event.getTo());
+    }
+
+    @EventHandler(ignoreCancelled = true, priority = EventPriority.MONITOR)
+    public void onPlayerTeleport(PlayerTeleportEvent event) {
+        onPlayerChunkChange(event.getFrom(), event.getTo());
+    }
+
+    private void onPlayerChunkChange(Location from, Location to) {
+        if (to == null) return;
+        int cx = to.getBlockX() >> 4;
+        int cz = to.getBlockZ() >> 4;
+        if (from.getWorld().equals(to.getWorld())
+            && (from.getBlockX() >> 4) == cx
+            && (from.getBlockZ() >> 4) == cz) return;
+        this.plugin.prefetchExtraDataAround(to.getWorld(), cx, cz);
+    }
+
     /**
      * See if the chunk contains equestri horse entities, remove them,
      * and note their location for future respawning when the chunk
@@ -83,7 +121,7 @@ final class HorseListener implements Listener {
                 AbstractHorse entity = (AbstractHorse)e;
                 SpawnedHorse spawned = this.plugin.findSpawnedHorse(entity);
                 if (spawned != null) {
-                    spawned.data.storeLocation(entity.getLocation());
+                    spawned.data.storeLocation(this.plugin, entity.getLocation());
                     spawned.data.storeInventory(this.plugin, entity);
                     this.plugin.saveHorse(spawned.data);
                 }
@@ -104,7 +142,7 @@ final class HorseListener implements Listener {
         AbstractHorse entity = (AbstractHorse)holder;
         SpawnedHorse spawned = this.plugin.findSpawnedHorse(entity);
         if (spawned == null) return;
-        spawned.data.storeLocation(entity.getLocation());
+        spawned.data.storeLocation(this.plugin, entity.getLocation());
         spawned.data.storeInventory(this.plugin, entity);
         this.plugin.saveHorse(spawned.data);
     }
@@ -118,7 +156,7 @@ final class HorseListener implements Listener {
         AbstractHorse entity = (AbstractHorse)event.getMount();
         SpawnedHorse spawned = this.plugin.findSpawnedHorse(entity);
         if (spawned == null) return;
-        spawned.data.storeLocation(entity.getLocation());
+        spawned.data.storeLocation(this.plugin, entity.getLocation());
         this.plugin.saveHorse(spawned.data);
         spawned.setFollowing(null);
     }
@@ -133,7 +171,7 @@ final class HorseListener implements Listener {
         AbstractHorse entity = (AbstractHorse)event.getDismounted();
         SpawnedHorse spawned = this.plugin.findSpawnedHorse(entity);
         if (spawned == null) return;
-        spawned.data.storeLocation(entity.getLocation());
+        spawned.data.storeLocation(this.plugin, entity.getLocation());
         this.plugin.saveHorse(spawned.data);
     }
 
@@ -245,6 +283,14 @@ final class HorseListener implements Listener {
         return spawned;
     }
 
+    /**
+     * Let the HorseVirtualizer know where players are.
+     */
+    @EventHandler(priority = EventPriority.LOWEST)
+    public void onPlayerJoin(PlayerJoinEvent event) {
+        this.plugin.getVirtualizer().addPlayer(event.getPlayer());
+    }
+
     /**
      * When a player quits while riding an equestri horse, we want to
      * dismount and store its location so it doesn't spawn with the
@@ -256,11 +302,12 @@ final class HorseListener implements Listener {
     @EventHandler(ignoreCancelled = false, priority = EventPriority.LOW)
     public void onPlayerQuit(PlayerQuitEvent event) {
         Player player = event.getPlayer();
+        this.plugin.getVirtualizer().removePlayer(player);
         if (player.getVehicle() == null || !(player.getVehicle() instanceof AbstractHorse)) return;
         AbstractHorse entity = (AbstractHorse)player.getVehicle();
         SpawnedHorse spawned = this.plugin.findSpawnedHorse(entity);
         if (spawned == null) return;
-        spawned.data.storeLocation(entity.getLocation());
+        spawned.data.storeLocation(this.plugin, entity.getLocation());
         entity.eject();
         this.plugin.saveHorse(spawned.data);
     }
@@ -0,0 +1,145 @@
+package net.equestriworlds.horse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Load the summaries of all horses at startup.
+ *
+ * Rows are streamed from the database in the main thread and cut
+ * into chunks.  Each chunk is deserialized on a fork-join pool while
+ * the next one is still being read.  Only a HorseSummary of each horse
+ * is kept.  Legacy rows are encoded in the binary format on the pool
+ * as well, so HorsePlugin only has to hand them to the database
+ * writer.  The results are collected in row order, so horses come out
+ * sorted by id.  If reading stops partway, the summaries are
+ * incomplete and isFailed() tells.
+ */
+@RequiredArgsConstructor @Getter
+final class HorseLoader {
+    private static final int CHUNK_SIZE = 512;
+    private final HorseDatabase database;
+    @Getter(AccessLevel.NONE) private final Logger logger;
+    private final List<HorseSummary> summaries = new ArrayList<>();
+    private final Map<Integer, HorseDatabase.HorseRow> legacyRows = new LinkedHashMap<>();
+    private int rows;
+    private int failedRows;
+    private boolean failed; // Not all rows were read
+    private long nanos;
+
+    /**
+     * Rows to be deserialized by one task.  Splits in half until it
+     * is small enough.
+     */
+    private final class Chunk extends RecursiveAction {
+        private final int[] ids;
+        private final Object[] values;
+        private final HorseSummary[] results;
+        private final HorseDatabase.HorseRow[] legacy;
+        private final int from, to;
+
+        Chunk(int[] ids, Object[] values, int count) {
+            this(ids, values, new HorseSummary[count], new HorseDatabase.HorseRow[count], 0, count);
+        }
+
+        private Chunk(int[] ids, Object[] values, HorseSummary[] results, HorseDatabase.HorseRow[] legacy, int from, int to) {
+            this.ids = ids;
+            this.values = values;
+            this.results = results;
+            this.legacy = legacy;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from > 64) {
+                int mid = (this.from + this.to) >>> 1;
+                invokeAll(new Chunk(this.ids, this.values, this.results, this.legacy, this.from, mid),
+                          new Chunk(this.ids, this.values, this.results, this.legacy, mid, this.to));
+                return;
+            }
+            for (int i = this.from; i < this.to; i += 1) {
+                try {
+                    HorseData data = database.deserializeHorse(this.ids[i], this.values[i]);
+                    this.results[i] = new HorseSummary(data);
+                    if (HorseDatabase.isLegacyRow(this.values[i])) this.legacy[i] = database.serializeHorse(data);
+                } catch (Exception e) {
+                    logger.log(Level.WARNING, "Failed to load horse #" + this.ids[i], e);
+                }
+                this.values[i] = null; // Let go of the raw row
+            }
+        }
+    }
+
+    void load() {
+        final long start = System.nanoTime();
+        final ForkJoinPool pool = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+        final List<ForkJoinTask<Void>> tasks = new ArrayList<>();
+        final List<Chunk> chunks = new ArrayList<>();
+        try {
+            final int[][] ids = {new int[CHUNK_SIZE]};
+            final Object[][] values = {new Object[CHUNK_SIZE]};
+            final int[] count = {0};
+            this.database.readHorseRows((id, value) -> {
+                    ids[0][count[0]] = id;
+                    values[0][count[0]] = value;
+                    count[0] += 1;
+                    if (count[0] == CHUNK_SIZE) {
+                        Chunk chunk = new Chunk(ids[0], values[0], count[0]);
+                        chunks.add(chunk);
+                        tasks.add(pool.submit(chunk));
+                        ids[0] = new int[CHUNK_SIZE];
+                        values[0] = new Object[CHUNK_SIZE];
+                        count[0] = 0;
+                    }
+                });
+            if (count[0] > 0) {
+                Chunk chunk = new Chunk(ids[0], values[0], count[0]);
+                chunks.add(chunk);
+                tasks.add(pool.submit(chunk));
+            }
+            for (ForkJoinTask<Void> task: tasks) task.get();
+        } catch (IOException | ExecutionException e) {
+            this.failed = true;
+            this.logger.log(Level.SEVERE, "Failed to read horses", e);
+        } catch (InterruptedException ie) {
+            this.failed = true;
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdown();
+        }
+        // Collect
+        for (Chunk chunk: chunks) {
+            if (!chunk.isDone()) continue;
+            for (int i = 0; i < chunk.results.length; i += 1) {
+                this.rows += 1;
+                HorseSummary summary = chunk.results[i];
+                if (summary == null) {
+                    this.failedRows += 1;
+                    continue;
+                }
+                this.summaries.add(summary);
+                if (chunk.legacy[i] != null) this.legacyRows.put(summary.getId(), chunk.legacy[i]);
+            }
+        }
+        this.nanos = System.nanoTime() - start;
+    }
+
+    long getRowsPerSecond() {
+        if (this.nanos <= 0L) return 0L;
+        return (long)this.rows * 1000000000L / this.nanos;
+    }
+}
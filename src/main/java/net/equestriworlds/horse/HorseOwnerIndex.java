@@ -0,0 +1,79 @@
+package net.equestriworlds.horse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Index of all claimed horses by owner.  Each list is sorted by horse
+ * id, so a player's horses always come in the same order, which
+ * index based commands such as `/horse here 3` rely on.
+ *
+ * Kept up to date by HorseRegistry, which removes a summary before
+ * changing it and adds it back afterwards.
+ */
+final class HorseOwnerIndex {
+    private final Map<UUID, List<HorseSummary>> owners = new HashMap<>();
+
+    /**
+     * Add a horse under its current owner, if any.
+     */
+    void add(HorseSummary summary) {
+        UUID owner = summary.getOwner();
+        if (owner == null) return;
+        List<HorseSummary> list = this.owners.get(owner);
+        if (list == null) {
+            list = new ArrayList<>(4);
+            this.owners.put(owner, list);
+        }
+        list.add(insertionPoint(list, summary.getId()), summary);
+    }
+
+    /**
+     * Remove a horse from its current owner.
+     */
+    void remove(HorseSummary summary) {
+        UUID owner = summary.getOwner();
+        if (owner == null) return;
+        List<HorseSummary> list = this.owners.get(owner);
+        if (list == null) return;
+        int index = insertionPoint(list, summary.getId()) - 1;
+        if (index >= 0 && list.get(index) == summary) list.remove(index);
+        if (list.isEmpty()) this.owners.remove(owner);
+    }
+
+    /**
+     * Get a read-only view of all horses of one owner, ordered by
+     * id.
+     */
+    List<HorseSummary> getHorses(UUID owner) {
+        List<HorseSummary> list = this.owners.get(owner);
+        if (list == null) return Collections.emptyList();
+        return Collections.unmodifiableList(list);
+    }
+
+    void clear() {
+        this.owners.clear();
+    }
+
+    /**
+     * Binary search for the index after the last horse whose id is
+     * not greater than the given one.
+     */
+    private static int insertionPoint(List<HorseSummary> list, int id) {
+        int lo = 0;
+        int hi = list.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (list.get(mid).getId() <= id) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
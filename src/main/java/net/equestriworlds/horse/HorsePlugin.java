@@ -3,20 +3,21 @@ package net.equestriworlds.horse;
 import com.google.gson.Gson;
 import java.io.File;
 import java.io.FileReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
-import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.UUID;
-import java.util.stream.Collectors;
+import java.util.logging.Level;
 import lombok.Getter;
 import net.md_5.bungee.api.ChatColor;
 import net.milkbowl.vault.economy.Economy;
+import org.bukkit.Chunk;
 import org.bukkit.Location;
 import org.bukkit.Particle;
 import org.bukkit.Sound;
@@ -51,11 +52,21 @@ public final class HorsePlugin extends JavaPlugin implements Runnable {
     public static final String SCOREBOARD_MARKER = "equestriworlds.horse";
     public static final String ITEM_MARKER = "equestriworlds.item";
     public static final String ITEM_USES = "equestriworlds.uses";
-    public static final String COOLDOWN_AGE = "age";
+    public static final long SUMMARY_SNAPSHOT_INTERVAL = 20L * 60L * 5L; // Ticks
     // --- Horse Data
     private HorseDatabase database;
-    private List<HorseData> horses;
-    private ArrayList<SpawnedHorse> spawnedHorses = new ArrayList<>();
+    private HorseDatabaseWriter databaseWriter;
+    private boolean registryIncomplete; // See saveSummarySnapshot()
+    private final HorseRegistry horseRegistry = new HorseRegistry(this);
+    private final HorseExtraPrefetcher extraPrefetcher = new HorseExtraPrefetcher(this);
+    private final HorseTransfer transfer = new HorseTransfer(this);
+    private final Map<Integer, HorseData> dirtyHorses = new LinkedHashMap<>();
+    private final SpawnedHorseRegistry spawnedHorses = new SpawnedHorseRegistry();
+    private final HorseTimerWheel horseTimer = new HorseTimerWheel(HorseExtra.now());
+    private HorseTickBudget tickBudget;
+    private final HorseTimings timings = new HorseTimings();
+    private HorseVirtualizer virtualizer;
+    private HorseTicker ticker;
     // --- Commands
     private HorseCommand horseCommand;
     private AdminCommand adminCommand;
@@ -87,8 +98,34 @@ public final class HorsePlugin extends JavaPlugin implements Runnable {
         saveResource("horse_names.json", false);
         // Prepare and load database
         this.database = new HorseDatabase(this);
-        this.database.createTables();
-        this.horses = this.database.loadHorses();
+        this.database.open();
+        this.database.setupCodec();
+        this.database.backfillColumns();
+        this.databaseWriter = new HorseDatabaseWriter(this.database::write, getLogger());
+        this.databaseWriter.start();
+        this.tickBudget = new HorseTickBudget(getConfig().getLong("tick.budget", HorseTickBudget.DEFAULT_BUDGET), this::performWork);
+        this.virtualizer = new HorseVirtualizer(this, getConfig().getDouble("virtualize.radius", HorseVirtualizer.DEFAULT_RADIUS));
+        for (Player player: getServer().getOnlinePlayers()) this.virtualizer.addPlayer(player);
+        this.ticker = new HorseTicker(this.spawnedHorses, this.horseTimer, this.tickBudget, this.virtualizer, this.timings, this::removeAbsentHorse);
+        this.registryIncomplete = false;
+        if (!loadSummarySnapshot()) {
+            HorseLoader loader = new HorseLoader(this.database, getLogger());
+            loader.load();
+            this.timings.section("loader.load").record(loader.getNanos());
+            this.horseRegistry.ensureCapacity(loader.getSummaries().size());
+            for (HorseSummary summary: loader.getSummaries()) this.horseRegistry.add(summary);
+            getLogger().info(String.format("Loaded %d horses in %d ms (%d rows/s), %d failed.",
+                                           this.horseRegistry.size(), loader.getNanos() / 1000000L,
+                                           loader.getRowsPerSecond(), loader.getFailedRows()));
+            if (loader.isFailed()) {
+                this.registryIncomplete = true;
+                getLogger().severe("Not all horses could be read.  Horses after the last one loaded are missing until the next restart.");
+            }
+            // Rewrite legacy JSON rows in the binary format, in the background.
+            Map<Integer, HorseDatabase.HorseRow> legacyRows = loader.getLegacyRows();
+            this.databaseWriter.submit(legacyRows);
+            if (!legacyRows.isEmpty()) getLogger().info("Migrating " + legacyRows.size() + " horses to the binary format.");
+        }
         spawnAllHorses();
         this.horseBrands = new HashMap<>();
         for (HorseBrand horseBrand: this.database.loadHorseBrands()) {
@@ -107,35 +144,48 @@ public final class HorsePlugin extends JavaPlugin implements Runnable {
         // Register events and commands
         getCommand("horse").setExecutor(this.horseCommand);
         getCommand("horseadmin").setExecutor(this.adminCommand);
-        getServer().getPluginManager().registerEvents(this.horseListener, this);
-        getServer().getPluginManager().registerEvents(this.gaits, this);
-        getServer().getPluginManager().registerEvents(this.grooming, this);
-        getServer().getPluginManager().registerEvents(this.feeding, this);
-        getServer().getPluginManager().registerEvents(this.breeding, this);
+        this.timings.registerEvents(this.horseListener, this);
+        this.timings.registerEvents(this.gaits, this);
+        this.timings.registerEvents(this.grooming, this);
+        this.timings.registerEvents(this.feeding, this);
+        this.timings.registerEvents(this.breeding, this);
         // Start tick timer
         getServer().getScheduler().runTaskTimer(this, this, 1L, 1L);
+        getServer().getScheduler().runTaskTimer(this, () -> saveSummarySnapshot(true), SUMMARY_SNAPSHOT_INTERVAL, SUMMARY_SNAPSHOT_INTERVAL);
         // Setup economy one tick later to make sure the unknown economy plugin (NOT Vault) was loaded.
         getServer().getScheduler().runTask(this, this::setupEconomy);
     }
 
     /**
-     * Remove all known horse entities. Save in the main thread if
-     * necessary.
+     * Remove all known horse entities. Wait for the database writer
+     * to store all pending horse updates.
      */
     @Override
     public void onDisable() {
+        final long now = HorseExtra.now();
         for (SpawnedHorse spawned: this.spawnedHorses) {
             spawned.extra.saveNow(this);
             if (spawned.isPresent()) {
                 AbstractHorse entity = spawned.getEntity();
-                spawned.data.storeLocation(entity.getLocation());
+                spawned.data.setLastSeen(now);
+                spawned.data.storeLocation(this, entity.getLocation());
                 spawned.data.storeInventory(this, entity);
-                this.database.updateHorse(spawned.data);
+                saveHorse(spawned.data);
                 spawned.despawn();
+            } else if (spawned.isVirtual()) {
+                spawned.data.setLastSeen(now);
+                saveHorse(spawned.data);
             }
         }
-        horses.clear();
+        flushDirtyHorses();
+        this.databaseWriter.stop();
+        saveSummarySnapshot(false);
+        this.database.close();
+        horseRegistry.clear();
         spawnedHorses.clear();
+        horseTimer.clear();
+        tickBudget.clear();
+        extraPrefetcher.clear();
         for (Player player: getServer().getOnlinePlayers()) {
             InventoryView view = player.getOpenInventory();
             if (view != null && view.getTopInventory().getHolder() instanceof HorseGUI) {
@@ -151,40 +201,152 @@ public final class HorsePlugin extends JavaPlugin implements Runnable {
         }
     }
 
+    // --- Summary Snapshot
+
+    private File getSummarySnapshotFile() {
+        return new File(getDataFolder(), "summaries.snapshot");
+    }
+
+    /**
+     * Fill the registry from the summary snapshot, if it is still up
+     * to date with the database.
+     *
+     * @return true if the snapshot was used
+     */
+    private boolean loadSummarySnapshot() {
+        long start = System.nanoTime();
+        List<HorseSummary> summaries = HorseSummarySnapshot.read(getSummarySnapshotFile(), this.database.getBackend(), this.database.getWriteSequence(), getLogger());
+        if (summaries == null) {
+            getLogger().info("Summary snapshot missing or out of date.");
+            return false;
+        }
+        this.horseRegistry.ensureCapacity(summaries.size());
+        for (HorseSummary summary: summaries) this.horseRegistry.add(summary);
+        getLogger().info(String.format("Loaded %d horses from the summary snapshot in %d ms.",
+                                       summaries.size(), (System.nanoTime() - start) / 1000000L));
+        return true;
+    }
+
+    /**
+     * Write the summary snapshot, unless some horse changes are not
+     * in the database yet, or HorseLoader failed and the registry
+     * lacks horses which are in the database.  The summaries are
+     * encoded right away and written to disk either asynchronously or
+     * in this thread.
+     */
+    void saveSummarySnapshot(boolean async) {
+        if (this.registryIncomplete) return;
+        if (!this.dirtyHorses.isEmpty() || !this.databaseWriter.isIdle()) return;
+        final byte[] bytes;
+        try {
+            bytes = HorseSummarySnapshot.encode(this.database.getBackend(), this.database.getWriteSequence(), this.horseRegistry.getSummaries());
+        } catch (IllegalStateException ise) {
+            getLogger().log(Level.WARNING, "Failed to encode summary snapshot", ise);
+            return;
+        }
+        final File file = getSummarySnapshotFile();
+        Runnable task = () -> {
+            try {
+                HorseSummarySnapshot.write(file, bytes);
+            } catch (IOException ioe) {
+                getLogger().log(Level.WARNING, "Failed to write summary snapshot", ioe);
+            }
+        };
+        if (async) {
+            getServer().getScheduler().runTaskAsynchronously(this, task);
+        } else {
+            task.run();
+        }
+    }
+
     // --- HorseData
 
+    /**
+     * Spawn all horses whose stored location is in a loaded chunk.
+     * Their extra data are loaded up front, in bulk.
+     */
     List<AbstractHorse> spawnAllHorses() {
         List<AbstractHorse> result = new ArrayList<>();
-        for (HorseData data: this.horses) {
-            HorseData.HorseLocation dataLoc = data.getLocation();
-            if (dataLoc != null) {
-                World world = dataLoc.bukkitWorld();
-                if (world != null && world.isChunkLoaded(dataLoc.cx, dataLoc.cz)) {
-                    SpawnedHorse horse = spawnHorse(data, dataLoc.bukkitLocation());
-                    result.add(horse.getEntity());
-                }
+        List<HorseSummary> summaries = new ArrayList<>();
+        for (World world: getServer().getWorlds()) {
+            for (Chunk chunk: world.getLoadedChunks()) {
+                summaries.addAll(this.horseRegistry.getHorses(world.getName(), chunk.getX(), chunk.getZ()));
             }
         }
+        List<Integer> ids = new ArrayList<>(summaries.size());
+        for (HorseSummary summary: summaries) ids.add(summary.getId());
+        this.extraPrefetcher.prefetchNow(ids);
+        for (HorseSummary summary: summaries) {
+            HorseData data = findHorse(summary.getId());
+            if (data == null || data.getLocation() == null) continue;
+            SpawnedHorse horse = spawnHorse(data, data.getLocation().bukkitLocation());
+            result.add(horse.getEntity());
+        }
         return result;
     }
 
+    /**
+     * Prefetch the extra data and HorseData of all horses stored in
+     * unloaded chunks within view distance plus one of the given
+     * chunk, so they are resident by the time the chunks load.  Called by HorseListener
+     * when a player enters a new chunk.
+     */
+    void prefetchExtraDataAround(World world, int cx, int cz) {
+        final int radius = getServer().getViewDistance() + 1;
+        List<Integer> ids = new ArrayList<>();
+        for (int z = cz - radius; z <= cz + radius; z += 1) {
+            for (int x = cx - radius; x <= cx + radius; x += 1) {
+                if (world.isChunkLoaded(x, z)) continue;
+                for (HorseSummary summary: this.horseRegistry.getHorses(world.getName(), x, z)) ids.add(summary.getId());
+            }
+        }
+        this.extraPrefetcher.prefetch(ids);
+    }
+
     void addHorse(HorseData data) {
         this.database.saveHorse(data);
-        this.horses.add(data);
+        this.horseRegistry.add(data);
     }
 
     /**
      * Update horse data in the persistent storage.  This method may
      * defer saving to the next tick, so it may be spammed if needed.
+     * The summary in the registry is updated right away.
      */
     void saveHorse(HorseData data) {
         if (data.getId() < 0) throw new IllegalArgumentException("Horse data does not exist in database.");
-        this.database.updateHorse(data);
+        this.dirtyHorses.put(data.getId(), data);
+        this.horseRegistry.update(data);
     }
 
-    void saveExtraData(HorseData data, String key, Object value) {
-        if (data == null) throw new NullPointerException("data cannot be null");
-        this.database.saveExtraData(data.getId(), key, value == null ? null : new Gson().toJson(value));
+    /**
+     * Serialize the changes of all horses saved since the last call
+     * and pass them on to the database writer.  Horses which did not
+     * actually change are skipped.  Called once per tick.
+     */
+    void flushDirtyHorses() {
+        if (this.dirtyHorses.isEmpty()) return;
+        Map<Integer, HorseDatabase.HorseRow> rows = new LinkedHashMap<>();
+        for (HorseData data: this.dirtyHorses.values()) {
+            HorseDatabase.HorseRow row = this.database.serializeChanges(data);
+            if (row != null) rows.put(data.getId(), row);
+        }
+        this.dirtyHorses.clear();
+        this.databaseWriter.submit(rows);
+    }
+
+    /**
+     * Load the extra data of a horse, including changes which are
+     * still waiting in the database writer.  Pending changes are
+     * fetched first, so nothing written in between goes missing.
+     * Prefetched data are used if there are any.
+     */
+    Map<String, String> loadExtraData(int horseId) {
+        Map<String, String> pending = this.databaseWriter.getPendingExtra(horseId);
+        Map<String, String> result = this.extraPrefetcher.take(horseId);
+        if (result == null) result = this.database.loadExtraData(horseId);
+        result.putAll(pending);
+        return result;
     }
 
     // --- SpawnedHorse
@@ -197,16 +359,21 @@ public final class HorsePlugin extends JavaPlugin implements Runnable {
     SpawnedHorse spawnHorse(HorseData data, Location location) {
         if (data == null) throw new NullPointerException("data cannot be null");
         if (location == null) throw new NullPointerException("location cannot be null");
-        AbstractHorse entity = (AbstractHorse)location.getWorld().spawn(location, (Class<? extends AbstractHorse>)data.getBreed().entityType.getEntityClass(), e -> this.prepareHorseEntity(data, e));
-        data.storeLocation(location);
-        saveHorse(data);
-        // Update or create the SpawnedHorse
+        // Catch up before the entity takes on the horse properties.
         SpawnedHorse spawned = findSpawnedHorse(data);
-        if (spawned == null) {
+        final boolean isNew = spawned == null;
+        if (isNew) {
             spawned = new SpawnedHorse(data);
-            spawned.extra.load(this.database.loadExtraData(data.getId()));
+            spawned.extra.load(loadExtraData(data.getId()));
+            catchUpHorse(spawned, HorseExtra.now());
+        }
+        AbstractHorse entity = spawnHorseEntity(data, location);
+        data.storeLocation(this, location);
+        saveHorse(data);
+        // Update or create the SpawnedHorse
+        if (isNew) {
             spawned.setEntity(entity);
-            this.spawnedHorses.add(spawned);
+            registerSpawnedHorse(spawned);
             Crosstie.Persistence cd = spawned.extra.getCrosstie();
             if (cd != null
                 && cd.hitchA != null && cd.hitchA.size() == 3
@@ -235,18 +402,18 @@ public final class HorsePlugin extends JavaPlugin implements Runnable {
         SpawnedHorse spawned = findSpawnedHorse(data);
         if (spawned == null) {
             spawned = new SpawnedHorse(data);
-            spawned.extra.load(this.database.loadExtraData(data.getId()));
-            this.spawnedHorses.add(spawned);
+            spawned.extra.load(loadExtraData(data.getId()));
+            catchUpHorse(spawned, HorseExtra.now());
+            registerSpawnedHorse(spawned);
         }
         if (!spawned.isPresent()) {
             // Spawn the entity
-            AbstractHorse entity = (AbstractHorse)location.getWorld().spawn(location, (Class<? extends AbstractHorse>)data.getBreed().entityType.getEntityClass(), e -> this.prepareHorseEntity(data, e));
-            spawned.setEntity(entity);
+            spawned.setEntity(spawnHorseEntity(data, location));
         } else {
             spawned.getEntity().teleport(location);
         }
         // Update data
-        spawned.data.storeLocation(location);
+        spawned.data.storeLocation(this, location);
         spawned.extra.setCrosstie(null);
         saveHorse(spawned.data);
         return spawned;
@@ -265,7 +432,12 @@ public final class HorsePlugin extends JavaPlugin implements Runnable {
      */
     SpawnedHorse updateHorseEntity(HorseData data) {
         SpawnedHorse spawned = this.findSpawnedHorse(data);
-        if (spawned == null || !spawned.isPresent()) return null;
+        if (spawned == null) return null;
+        if (!spawned.isPresent()) {
+            // A virtual horse takes on the data once it materializes.
+            if (spawned.isVirtual()) wakeHorse(spawned);
+            return null;
+        }
         AbstractHorse entity = spawned.getEntity();
         Location location = entity.getLocation();
         if (entity.getType() != data.getBreed().entityType) {
@@ -274,9 +446,18 @@ public final class HorsePlugin extends JavaPlugin implements Runnable {
         } else {
             prepareHorseEntity(data, entity);
         }
+        wakeHorse(spawned);
         return spawned;
     }
 
+    /**
+     * Spawn a new entity for a horse, without touching any
+     * SpawnedHorse.
+     */
+    AbstractHorse spawnHorseEntity(HorseData data, Location location) {
+        return (AbstractHorse)location.getWorld().spawn(location, (Class<? extends AbstractHorse>)data.getBreed().entityType.getEntityClass(), e -> this.prepareHorseEntity(data, e));
+    }
+
     /**
      * Called by the above 3 functions to prepare a possible newly
      * spawned horse entity for further user in the system.  The
@@ -288,25 +469,58 @@ public final class HorsePlugin extends JavaPlugin implements Runnable {
         data.applyInventory(this, entity);
     }
 
+    /**
+     * Add a new SpawnedHorse to the registry and the timer wheel.  It
+     * is due right away, which schedules its next event from the
+     * loaded cooldown deadlines.
+     */
+    private void registerSpawnedHorse(SpawnedHorse spawned) {
+        this.spawnedHorses.add(spawned);
+        this.horseTimer.schedule(spawned.timer, 0L);
+    }
+
+    private void unregisterSpawnedHorse(SpawnedHorse spawned) {
+        this.horseTimer.cancel(spawned.timer);
+        this.tickBudget.cancel(spawned);
+        spawned.eventsDue = false;
+        this.spawnedHorses.remove(spawned);
+    }
+
+    /**
+     * Make a horse due with the next second.  Call this after
+     * changing cooldowns or anything else that affects the next event
+     * of a horse outside of its scheduled updates.
+     */
+    void wakeHorse(SpawnedHorse spawned) {
+        if (spawned.registry == null) return;
+        this.horseTimer.scheduleEarlier(spawned.timer, 0L);
+    }
+
     SpawnedHorse findSpawnedHorse(HorseData data) {
-        return this.spawnedHorses.stream().filter(sh -> sh.data == data).findFirst().orElse(null);
+        return this.spawnedHorses.get(data);
     }
 
     SpawnedHorse findSpawnedHorse(AbstractHorse entity) {
-        return this.spawnedHorses.stream().filter(sh -> sh.represents(entity)).findFirst().orElse(null);
+        return this.spawnedHorses.get(entity);
     }
 
     // --- Horse Finder Functions
 
     /**
-     * Find all HorseData records belonging to the player.
+     * Find the summaries of all horses belonging to the player,
+     * ordered by id.  The result is a read-only view.  Use
+     * findHorse() to get the full HorseData of any of them.
      */
-    List<HorseData> findHorses(Player player) {
-        return horses.stream().filter(h -> h.isOwner(player)).collect(Collectors.toList());
+    List<HorseSummary> findHorses(Player player) {
+        return this.horseRegistry.getHorses(player.getUniqueId());
     }
 
+    /**
+     * Find the HorseData of a horse, loading it from the database if
+     * necessary.  May return null.
+     */
     HorseData findHorse(int id) {
-        return horses.stream().filter(h -> h.getId() == id).findFirst().orElse(null);
+        return this.horseRegistry.get(id);
     }
 
     // --- Random
@@ -340,67 +554,132 @@ public final class HorsePlugin extends JavaPlugin implements Runnable {
 
     // --- Ticking
 
+    /**
+     * Once per tick.  See HorseTicker for the loop over spawned horses.
+     * Each step is timed in a section of HorseTimings.
+     */
     @Override
     public void run() {
-        // SpawnedHorse
-        for (Iterator<SpawnedHorse> iter = this.spawnedHorses.iterator(); iter.hasNext();) {
-            SpawnedHorse spawned = iter.next();
-            if (!spawned.isPresent()) {
-                spawned.extra.saveNow(this);
-                iter.remove();
-            }
-        }
-        for (SpawnedHorse spawned: new ArrayList<>(this.spawnedHorses)) {
-            tickSpawnedHorse(spawned);
-            if (spawned.extra.isNeedsSaving()) spawned.extra.saveNow(this);
-        }
+        final long tickStart = System.nanoTime();
+        this.ticker.tick();
+        long start = System.nanoTime();
+        flushDirtyHorses();
+        this.timings.tickFlush.since(start);
+        this.timings.tick.since(tickStart);
     }
 
-    private void tickSpawnedHorse(SpawnedHorse spawned) {
-        long ticksLived = spawned.getTicksLived();
-        spawned.setTicksLived(ticksLived + 1);
-        if ((ticksLived % 10) == 0 && spawned.getFollowing() != null) {
-            if (!followHorse(spawned)) spawned.setFollowing(null);
+    private void removeAbsentHorse(SpawnedHorse spawned, long now) {
+        spawned.data.setLastSeen(now);
+        saveHorse(spawned.data);
+        spawned.extra.saveNow(this);
+        unregisterSpawnedHorse(spawned);
+    }
+
+    /**
+     * Do work which was deferred to the HorseTickBudget.
+     */
+    private void performWork(SpawnedHorse spawned, int work) {
+        if (!spawned.isPresent() && !spawned.isVirtual()) return; // Unregistered next tick
+        if ((work & HorseTickBudget.EVENTS) != 0) {
+            long start = System.nanoTime();
+            passHorseEvents(spawned, this.ticker.getTickSecond());
+            if (spawned.extra.isNeedsSaving()) this.tickBudget.submit(spawned, HorseTickBudget.SAVE);
+            this.timings.events.since(start);
         }
-        // Crossties
-        Crosstie crosstie = spawned.getCrosstie();
-        if (crosstie != null && !crosstie.check()) {
-            spawned.removeCrosstie();
-            spawned.extra.setCrosstie(null);
-            spawned.getEntity().getWorld().playSound(spawned.getEntity().getEyeLocation(), Sound.BLOCK_IRON_DOOR_OPEN, SoundCategory.NEUTRAL, 1.0f, 2.0f);
+        if ((work & HorseTickBudget.FOLLOW) != 0 && spawned.getFollowing() != null && spawned.isPresent()) {
+            long start = System.nanoTime();
+            if (!followHorse(spawned)) spawned.setFollowing(null);
+            this.timings.follow.since(start);
         }
-        // Grooming
-        Grooming.Persistence groomingData = spawned.extra.getGrooming();
-        if (groomingData != null) {
-            if (groomingData.expiration < Instant.now().getEpochSecond()) {
-                spawned.extra.setGrooming(null);
-            } else if (groomingData.wash == 1 && (ticksLived % 8 == 0)) {
+        if ((work & HorseTickBudget.PARTICLES) != 0 && spawned.isPresent()) {
+            long start = System.nanoTime();
+            Grooming.Persistence groomingData = spawned.extra.getGrooming();
+            if (groomingData != null && groomingData.wash == 1) {
                 spawned.getEntity().getWorld().spawnParticle(Particle.WATER_DROP, spawned.getEntity().getEyeLocation(), 8, 0.5, 0.5, 0.5, 0.0);
-            } else if (groomingData.wash == 2 && (ticksLived % 8 == 0)) {
+            } else if (groomingData != null && groomingData.wash == 2) {
                 spawned.getEntity().getWorld().spawnParticle(Particle.CLOUD, spawned.getEntity().getEyeLocation(), 8, 0.5, 0.5, 0.5, 0.0);
             }
+            this.timings.particles.since(start);
         }
-        // Eating and drinking
-        if (ticksLived > 0 && (ticksLived % 20) == 0) {
-            Long now = Instant.now().getEpochSecond();
-            spawned.data.setLastSeen(now);
-            spawned.extra.passSecond(now);
-            this.feeding.passSecond(spawned, now);
-            if (spawned.data.getBreedingStage() != BreedingStage.READY) this.breeding.passSecond(spawned, now);
-            if (spawned.data.getAge() != HorseAge.ADULT && spawned.extra.getCooldown(COOLDOWN_AGE) == 0) {
-                HorseAge nx = spawned.data.getAge().next();
-                spawned.data.setAge(nx);
-                spawned.extra.setCooldown(COOLDOWN_AGE, nx.duration * Util.ONE_DAY);
-                spawned.getEntity().setAge(0);
-                saveHorse(spawned.data);
-                Player owner = spawned.data.getOwningPlayer();
-                if (owner != null) {
-                    String txt = ChatColor.GOLD + "Your " + spawned.data.getGender().humanName.toLowerCase() + " " + spawned.data.getMaskedName() + ChatColor.GOLD + " has grown up and is now " + nx.indefiniteArticle() + " " + ChatColor.BOLD + nx.humanName + ChatColor.RESET + ChatColor.GOLD + ".";
-                    owner.sendMessage(txt);
-                    owner.sendActionBar(txt);
-                    owner.playSound(owner.getEyeLocation(), Sound.ENTITY_PLAYER_LEVELUP, SoundCategory.MASTER, 0.5f, 2.0f);
-                }
+        if ((work & HorseTickBudget.SAVE) != 0 && spawned.extra.isNeedsSaving()) {
+            long start = System.nanoTime();
+            spawned.extra.saveNow(this);
+            this.timings.saveExtra.since(start);
+        }
+    }
+
+    /**
+     * Run all simulation events of a horse which are due, then
+     * schedule it for its next one.  Called by run() when the horse
+     * comes up on the timer wheel.
+     */
+    private void passHorseEvents(SpawnedHorse spawned, long now) {
+        spawned.data.setLastSeen(now);
+        long start = System.nanoTime();
+        this.feeding.passSecond(spawned, now);
+        this.timings.feeding.since(start);
+        if (spawned.data.getBreedingStage() != BreedingStage.READY) {
+            start = System.nanoTime();
+            this.breeding.passSecond(spawned, now);
+            this.timings.breeding.since(start);
+        }
+        if (spawned.data.getAge() != HorseAge.ADULT && !spawned.extra.isCoolingDown(Cooldown.AGE, now)) {
+            start = System.nanoTime();
+            ageUpHorse(spawned, now);
+            this.timings.aging.since(start);
+        }
+        // Schedule the next event
+        long next = this.feeding.nextEvent(spawned, now);
+        if (spawned.data.getBreedingStage() != BreedingStage.READY) next = Math.min(next, this.breeding.nextEvent(spawned, now));
+        if (spawned.data.getAge() != HorseAge.ADULT) next = Math.min(next, spawned.extra.getDeadline(Cooldown.AGE));
+        this.horseTimer.schedule(spawned.timer, next);
+    }
+
+    /**
+     * Apply everything that happened to a horse since it was last
+     * seen, so horses in unloaded chunks progress just like spawned
+     * ones.  Called for every new SpawnedHorse before it is
+     * registered.
+     *
+     * Age and breeding stage only change at their deadlines.  The
+     * time in between is split into spans at those deadlines, and
+     * each span is applied in one step.
+     */
+    private void catchUpHorse(SpawnedHorse spawned, long now) {
+        long time = spawned.data.getLastSeen();
+        if (time <= 0L || time >= now) return;
+        while (time < now) {
+            long until = now;
+            if (spawned.data.getAge() != HorseAge.ADULT) {
+                until = Math.min(until, Math.max(time, spawned.extra.getDeadline(Cooldown.AGE)));
+            }
+            BreedingStage stage = spawned.data.getBreedingStage();
+            if (stage != BreedingStage.READY && stage != BreedingStage.LABOR) {
+                until = Math.min(until, Math.max(time, spawned.extra.getDeadline(Cooldown.BREED)));
             }
+            this.feeding.catchUp(spawned, time, until);
+            if (stage != BreedingStage.READY) this.breeding.catchUp(spawned, until);
+            if (spawned.data.getAge() != HorseAge.ADULT && spawned.extra.getDeadline(Cooldown.AGE) <= until) {
+                ageUpHorse(spawned, until);
+            }
+            time = until;
+        }
+        spawned.data.setLastSeen(now);
+        saveHorse(spawned.data);
+    }
+
+    private void ageUpHorse(SpawnedHorse spawned, long when) {
+        HorseAge nx = spawned.data.getAge().next();
+        spawned.data.setAge(nx);
+        spawned.extra.setDeadline(Cooldown.AGE, when + (long)nx.duration * Util.ONE_DAY);
+        if (spawned.isPresent()) spawned.getEntity().setAge(0);
+        saveHorse(spawned.data);
+        Player owner = spawned.data.getOwningPlayer();
+        if (owner != null) {
+            String txt = ChatColor.GOLD + "Your " + spawned.data.getGender().humanName.toLowerCase() + " " + spawned.data.getMaskedName() + ChatColor.GOLD + " has grown up and is now " + nx.indefiniteArticle() + " " + ChatColor.BOLD + nx.humanName + ChatColor.RESET + ChatColor.GOLD + ".";
+            owner.sendMessage(txt);
+            owner.sendActionBar(txt);
+            owner.playSound(owner.getEyeLocation(), Sound.ENTITY_PLAYER_LEVELUP, SoundCategory.MASTER, 0.5f, 2.0f);
         }
     }
 
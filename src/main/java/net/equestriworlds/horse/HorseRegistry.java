@@ -0,0 +1,217 @@
+package net.equestriworlds.horse;
+
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Level;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * All horses in existence.  Only a HorseSummary of each horse stays
+ * in memory, along with the chunk and owner indexes built from it.
+ * The full HorseData is loaded from the database when it is asked
+ * for.
+ *
+ * Loaded HorseData are kept by a bounded LRU cache.  Beyond that,
+ * they are tracked by weak reference, so a horse which is still
+ * referenced elsewhere, e.g. by a SpawnedHorse, an editing session
+ * or the dirty horses of HorsePlugin, is never loaded twice.  There
+ * is at most one HorseData instance per horse at any time.
+ *
+ * Summaries are updated from the HorseData by update(), which
+ * HorsePlugin#saveHorse() and the location and owner setters of
+ * HorseData call.
+ */
+@RequiredArgsConstructor
+final class HorseRegistry {
+    static final int CACHE_SIZE = 1024;
+    private final HorsePlugin plugin;
+    private final IntHashMap<HorseSummary> summaries = new IntHashMap<>();
+    private final HorseChunkIndex chunkIndex = new HorseChunkIndex();
+    private final HorseOwnerIndex ownerIndex = new HorseOwnerIndex();
+    private final IntHashMap<LoadedHorse> loaded = new IntHashMap<>();
+    private final ReferenceQueue<HorseData> collected = new ReferenceQueue<>();
+    private final Map<Integer, HorseData> cache = new LinkedHashMap<Integer, HorseData>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, HorseData> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private static final class LoadedHorse extends WeakReference<HorseData> {
+        final int id;
+
+        LoadedHorse(HorseData data, ReferenceQueue<HorseData> queue) {
+            super(data, queue);
+            this.id = data.getId();
+        }
+    }
+
+    // --- Summaries
+
+    /**
+     * Add the summary of a horse which is already in the database.
+     * Called by HorsePlugin#onEnable() with the results of
+     * HorseLoader.
+     */
+    void add(HorseSummary summary) {
+        this.summaries.put(summary.getId(), summary);
+        this.chunkIndex.add(summary);
+        this.ownerIndex.add(summary);
+    }
+
+    /**
+     * Add a horse which was just inserted into the database, or
+     * whose HorseData is already in memory for another reason.
+     */
+    void add(HorseData data) {
+        if (data.getId() < 0) throw new IllegalArgumentException("Horse data does not exist in database.");
+        if (!this.summaries.containsKey(data.getId())) {
+            add(new HorseSummary(data));
+        } else {
+            update(data);
+        }
+        track(data);
+    }
+
+    /**
+     * Copy the summarized fields of a horse and update the indexes.
+     * Does nothing for horses not in the registry, such as new ones
+     * in an editing session.
+     */
+    void update(HorseData data) {
+        HorseSummary summary = this.summaries.get(data.getId());
+        if (summary == null) return;
+        if (summary.isIndexedDifferently(data)) {
+            this.chunkIndex.remove(summary);
+            this.ownerIndex.remove(summary);
+            summary.copy(data);
+            this.chunkIndex.add(summary);
+            this.ownerIndex.add(summary);
+        } else {
+            summary.copy(data);
+        }
+    }
+
+    void ensureCapacity(int expected) {
+        this.summaries.ensureCapacity(expected);
+    }
+
+    HorseSummary getSummary(int id) {
+        return this.summaries.get(id);
+    }
+
+    /**
+     * All horses of one owner, ordered by id.  The result is a
+     * read-only view.
+     */
+    List<HorseSummary> getHorses(UUID owner) {
+        return this.ownerIndex.getHorses(owner);
+    }
+
+    /**
+     * A copy of all horses stored in one chunk.
+     */
+    List<HorseSummary> getHorses(String world, int cx, int cz) {
+        return this.chunkIndex.getHorses(world, cx, cz);
+    }
+
+    int countBrandedBy(UUID brandOwner) {
+        int[] result = {0};
+        this.summaries.forEachValue(s -> {
+                if (brandOwner.equals(s.getBrandOwner())) result[0] += 1;
+            });
+        return result[0];
+    }
+
+    int size() {
+        return this.summaries.size();
+    }
+
+    /**
+     * A copy of all summaries, in no particular order.
+     */
+    List<HorseSummary> getSummaries() {
+        List<HorseSummary> result = new ArrayList<>(this.summaries.size());
+        this.summaries.forEachValue(result::add);
+        return result;
+    }
+
+    // --- HorseData
+
+    /**
+     * Get the full HorseData of a horse, loading it if necessary.
+     * Changes which are still waiting in the database writer take
+     * precedence over the database.  A HorseData prefetched by
+     * HorseExtraPrefetcher is used if there is one.
+     *
+     * @return the HorseData, or null if there is no such horse or
+     *   it fails to load
+     */
+    HorseData get(int id) {
+        expunge();
+        LoadedHorse ref = this.loaded.get(id);
+        HorseData data = ref == null ? null : ref.get();
+        if (data != null) {
+            this.cache.put(id, data);
+            return data;
+        }
+        if (!this.summaries.containsKey(id)) return null;
+        data = this.plugin.getExtraPrefetcher().takeHorse(id);
+        if (data != null) {
+            track(data);
+            return data;
+        }
+        try {
+            byte[] pending = this.plugin.getDatabaseWriter().getPendingHorse(id);
+            data = this.plugin.getDatabase().loadHorse(id, pending);
+        } catch (IOException | IllegalStateException e) {
+            this.plugin.getLogger().log(Level.WARNING, "Failed to load horse #" + id, e);
+            return null;
+        }
+        if (data == null) return null;
+        track(data);
+        return data;
+    }
+
+    void clear() {
+        this.summaries.clear();
+        this.chunkIndex.clear();
+        this.ownerIndex.clear();
+        this.loaded.clear();
+        this.cache.clear();
+        expunge();
+    }
+
+    /**
+     * Tell if the HorseData of a horse is in memory, so get() would
+     * not load it.
+     */
+    boolean isLoaded(int id) {
+        LoadedHorse ref = this.loaded.get(id);
+        return ref != null && ref.get() != null;
+    }
+
+    private void track(HorseData data) {
+        this.loaded.put(data.getId(), new LoadedHorse(data, this.collected));
+        this.cache.put(data.getId(), data);
+        this.plugin.getExtraPrefetcher().invalidateHorse(data.getId());
+    }
+
+    /**
+     * Forget the HorseData which were garbage collected.
+     */
+    private void expunge() {
+        Reference<? extends HorseData> reference;
+        while ((reference = this.collected.poll()) != null) {
+            LoadedHorse ref = (LoadedHorse)reference;
+            if (this.loaded.get(ref.id) == ref) this.loaded.remove(ref.id);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package net.equestriworlds.horse;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Where HorseDatabase keeps horses, extra data, brands and the enum
+ * name tables of HorseCodec.  Horses come in serialized, so an
+ * implementation never sees a HorseData.
+ *
+ * The backend is chosen by the `database.backend` config key, see
+ * HorseDatabase#open().  SQLiteHorseStorage is the default.
+ * JournalHorseStorage is an append-only log for servers which save
+ * many small changes.
+ *
+ * Methods are called in the main thread unless noted otherwise.
+ */
+interface HorseStorage {
+    void open() throws IOException;
+
+    /**
+     * Close all files and connections.  Called after
+     * HorseDatabaseWriter has stopped.
+     */
+    void close();
+
+    // --- Enum Names
+
+    /**
+     * All stored names by enum type, in the order of their codes.
+     * May be called from any thread.
+     */
+    Map<String, List<String>> loadNames() throws IOException;
+
+    /**
+     * Store new names of one enum type, starting at the given code.
+     */
+    void addNames(String type, int firstCode, List<String> names) throws IOException;
+
+    // --- Horses
+
+    /**
+     * Store a new horse.
+     *
+     * @return the new id
+     */
+    int insertHorse(HorseDatabase.HorseRow row) throws IOException;
+
+    /**
+     * Store horses with the given ids, which must not exist yet, and
+     * their extra data by horse id and key, all at once.  A horse is
+     * never stored without its extra data.  Used to convert between
+     * backends and by HorseTransfer.  May be called from any thread.
+     */
+    void importHorses(Map<Integer, HorseDatabase.HorseRow> rows, Map<Integer, Map<String, String>> extras) throws IOException;
+
+    /**
+     * Overwrite existing horses and store extra data, by horse id and
+     * key, all at once.  Called by HorseDatabaseWriter on its own
+     * thread.  Failures for which HorseConnections#isBusy() is true
+     * are worth retrying soon.
+     */
+    void write(Map<Integer, HorseDatabase.HorseRow> horses, Map<Integer, Map<String, String>> extras) throws IOException;
+
+    /**
+     * Stream the raw `data` of all horses, ordered by id.  Values are
+     * either HorseCodec bytes or legacy JSON, see
+     * HorseDatabase#deserializeHorse().
+     */
+    void readHorses(HorseDatabase.HorseRowConsumer consumer) throws IOException;
+
+    /**
+     * The raw `data` of one horse, or null.
+     */
+    Object loadHorse(int id) throws IOException;
+
+    /**
+     * The raw `data` of many horses, by id.  Horses which do not exist
+     * or fail to read are left out.  May be called from any thread.
+     */
+    Map<Integer, Object> loadHorses(Collection<Integer> horseIds) throws IOException;
+
+    /**
+     * Make sure the queryable columns of all horses are filled in,
+     * using the mapper to serialize rows which lack them.
+     *
+     * @return the number of horses filled in
+     */
+    int backfillColumns(HorseRowMapper mapper) throws IOException;
+
+    /**
+     * Count horses by one of HorseDatabase#REPORT_COLUMNS, most
+     * common first.  May be called from any thread.
+     */
+    Map<String, Integer> countHorsesBy(String column) throws IOException;
+
+    boolean isEmpty() throws IOException;
+
+    /**
+     * Stream all brands, then all horses ordered by id along with
+     * their extra data, as of one point in time.  Horse values are
+     * the same as in readHorses().  May be called from any thread.
+     * Neither the main thread nor HorseDatabaseWriter wait for it
+     * longer than it takes to capture the point in time.
+     */
+    void exportAll(ExportConsumer consumer) throws IOException;
+
+    /**
+     * A number which changes whenever a horse is written and never
+     * comes back to an earlier value, so HorseSummarySnapshot can
+     * tell if it is still up to date.
+     */
+    long getWriteSequence() throws IOException;
+
+    // --- Extra Data
+
+    Map<String, String> loadExtraData(int horseId) throws IOException;
+
+    /**
+     * The extra data of many horses.  Every requested horse is in the
+     * result, even if it has no extra data.  May be called from any
+     * thread.
+     */
+    Map<Integer, Map<String, String>> loadExtraData(Collection<Integer> horseIds) throws IOException;
+
+
+    // --- Brands
+
+    List<HorseBrand> loadBrands() throws IOException;
+
+    boolean saveBrand(HorseBrand brand) throws IOException;
+
+    boolean deleteBrand(UUID owner) throws IOException;
+
+    @FunctionalInterface
+    interface HorseRowMapper {
+        HorseDatabase.HorseRow map(int id, Object value) throws IOException;
+    }
+
+    interface ExportConsumer {
+        void brand(HorseBrand brand) throws IOException;
+
+        void horse(int id, Object value, Map<String, String> extra) throws IOException;
+    }
+}
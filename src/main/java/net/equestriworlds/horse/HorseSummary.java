@@ -0,0 +1,96 @@
+package net.equestriworlds.horse;
+
+import java.util.UUID;
+import lombok.Getter;
+import net.md_5.bungee.api.ChatColor;
+
+/**
+ * The few properties of a horse which stay in memory at all times,
+ * so horses can be listed and found by owner or chunk without loading
+ * their HorseData.  See HorseRegistry.
+ *
+ * Only HorseRegistry may change a summary, because the indexes have
+ * to be updated along with it.
+ */
+@Getter
+final class HorseSummary {
+    private final int id;
+    private UUID owner;
+    private String name;
+    private HorseGender gender;
+    private HorseAge age;
+    private HorseBreed breed;
+    private UUID brandOwner; // Brands are unique per player
+    private String world; // Null if there is no location
+    private int cx, cz;
+
+    HorseSummary(HorseData data) {
+        this.id = data.getId();
+        copy(data);
+    }
+
+    /**
+     * Restore a summary read by HorseSummarySnapshot.
+     */
+    HorseSummary(int id, UUID owner, String name, HorseGender gender, HorseAge age, HorseBreed breed, UUID brandOwner, String world, int cx, int cz) {
+        this.id = id;
+        this.owner = owner;
+        this.name = name;
+        this.gender = gender;
+        this.age = age;
+        this.breed = breed;
+        this.brandOwner = brandOwner;
+        this.world = world;
+        this.cx = cx;
+        this.cz = cz;
+    }
+
+    /**
+     * Copy all summarized fields from the full HorseData.  Called by
+     * HorseRegistry.
+     */
+    void copy(HorseData data) {
+        this.owner = data.getOwner();
+        this.name = data.getName();
+        this.gender = data.getGender();
+        this.age = data.getAge();
+        this.breed = data.getBreed();
+        this.brandOwner = data.getBrand() == null ? null : data.getBrand().getOwner();
+        HorseData.HorseLocation location = data.getLocation();
+        if (location == null) {
+            this.world = null;
+            this.cx = 0;
+            this.cz = 0;
+        } else {
+            // World names repeat for every horse.
+            this.world = location.world.intern();
+            this.cx = location.cx;
+            this.cz = location.cz;
+        }
+    }
+
+    boolean hasLocation() {
+        return this.world != null;
+    }
+
+    long getChunkKey() {
+        return HorseData.HorseLocation.chunkKey(this.cx, this.cz);
+    }
+
+    /**
+     * Tell if the owner or the chunk of the given HorseData differs
+     * from this summary, which means it has to be re-indexed.
+     */
+    boolean isIndexedDifferently(HorseData data) {
+        if (this.owner == null ? data.getOwner() != null : !this.owner.equals(data.getOwner())) return true;
+        HorseData.HorseLocation location = data.getLocation();
+        if (location == null) return this.world != null;
+        return this.world == null
+            || this.cx != location.cx || this.cz != location.cz
+            || !this.world.equals(location.world);
+    }
+
+    String getStrippedName() {
+        return ChatColor.stripColor(this.name);
+    }
+}
@@ -0,0 +1,202 @@
+package net.equestriworlds.horse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A file with the summaries of all horses, so HorsePlugin#onEnable()
+ * can skip HorseLoader, which decodes every horse in the database.
+ *
+ * Written by onDisable() and every few minutes while the database
+ * writer is idle.  The file carries the write sequence of the storage
+ * it was taken from, see HorseStorage#getWriteSequence(), and is only
+ * used if the storage still has the same.  Otherwise, or if anything
+ * about the file is off, the caller falls back to a full load.
+ *
+ * The file is memory-mapped for reading.  After a fixed header comes
+ * a table of all strings, then one fixed-size record per horse,
+ * sorted by id, which refer to strings by index.
+ */
+final class HorseSummarySnapshot {
+    private static final int MAGIC = 0x48534e50;
+    private static final int VERSION = 1;
+    private static final int HEADER = 32;
+    private static final int RECORD = 68;
+    private static final int HAS_OWNER = 1;
+    private static final int HAS_BRAND_OWNER = 2;
+
+    private HorseSummarySnapshot() { }
+
+    /**
+     * Encode summaries in the main thread, so they cannot change
+     * while being written.
+     */
+    static byte[] encode(String backend, long sequence, Collection<HorseSummary> summaries) {
+        List<HorseSummary> list = new ArrayList<>(summaries);
+        list.sort((a, b) -> Integer.compare(a.getId(), b.getId()));
+        List<String> strings = new ArrayList<>();
+        Map<String, Integer> stringIndex = new HashMap<>();
+        int backendIndex = indexOf(backend, strings, stringIndex);
+        ByteBuffer records = ByteBuffer.allocate(list.size() * RECORD);
+        for (HorseSummary summary: list) {
+            int flags = 0;
+            if (summary.getOwner() != null) flags |= HAS_OWNER;
+            if (summary.getBrandOwner() != null) flags |= HAS_BRAND_OWNER;
+            records.putInt(summary.getId());
+            records.putInt(flags);
+            putUuid(records, summary.getOwner());
+            putUuid(records, summary.getBrandOwner());
+            records.putInt(indexOf(summary.getName(), strings, stringIndex));
+            records.putInt(indexOf(nameOf(summary.getGender()), strings, stringIndex));
+            records.putInt(indexOf(nameOf(summary.getAge()), strings, stringIndex));
+            records.putInt(indexOf(nameOf(summary.getBreed()), strings, stringIndex));
+            records.putInt(indexOf(summary.getWorld(), strings, stringIndex));
+            records.putInt(summary.getCx());
+            records.putInt(summary.getCz());
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream(records.capacity() + strings.size() * 16);
+        try {
+            DataOutputStream out = new DataOutputStream(body);
+            for (String string: strings) {
+                byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            out.write(records.array());
+        } catch (IOException ioe) {
+            throw new IllegalStateException(ioe); // Not in memory
+        }
+        byte[] bodyBytes = body.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bodyBytes, 0, bodyBytes.length);
+        ByteBuffer result = ByteBuffer.allocate(HEADER + bodyBytes.length);
+        result.putInt(MAGIC);
+        result.putInt(VERSION);
+        result.putLong(sequence);
+        result.putInt((int)crc.getValue());
+        result.putInt(backendIndex);
+        result.putInt(strings.size());
+        result.putInt(list.size());
+        result.put(bodyBytes);
+        return result.array();
+    }
+
+    private static int indexOf(String string, List<String> strings, Map<String, Integer> stringIndex) {
+        if (string == null) return -1;
+        Integer index = stringIndex.get(string);
+        if (index == null) {
+            index = strings.size();
+            strings.add(string);
+            stringIndex.put(string, index);
+        }
+        return index;
+    }
+
+    private static String nameOf(Enum<?> value) {
+        return value == null ? null : value.name();
+    }
+
+    private static void putUuid(ByteBuffer buffer, UUID uuid) {
+        buffer.putLong(uuid == null ? 0L : uuid.getMostSignificantBits());
+        buffer.putLong(uuid == null ? 0L : uuid.getLeastSignificantBits());
+    }
+
+    /**
+     * Replace the file with the result of encode().  May be called
+     * from any thread.
+     */
+    static synchronized void write(File file, byte[] bytes) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) channel.write(buffer);
+            channel.force(true);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Read all summaries, sorted by id, if the file exists, is intact
+     * and was taken from the given backend at the given write
+     * sequence.  Damage is reported to the logger.
+     *
+     * @return the summaries, or null if the file cannot be used
+     */
+    static List<HorseSummary> read(File file, String backend, long sequence, Logger logger) {
+        if (!file.isFile()) return null;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() < HEADER || channel.size() > Integer.MAX_VALUE) return null;
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size());
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) return null;
+            if (buffer.getLong(8) != sequence) return null;
+            ByteBuffer body = buffer.duplicate();
+            body.position(HEADER);
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            if ((int)crc.getValue() != buffer.getInt(16)) return null;
+            int backendIndex = buffer.getInt(20);
+            String[] strings = new String[buffer.getInt(24)];
+            int count = buffer.getInt(28);
+            buffer.position(HEADER);
+            for (int i = 0; i < strings.length; i += 1) {
+                byte[] bytes = new byte[buffer.getInt()];
+                buffer.get(bytes);
+                strings[i] = new String(bytes, StandardCharsets.UTF_8).intern();
+            }
+            if (!backend.equals(strings[backendIndex])) return null;
+            if (buffer.remaining() != count * RECORD) return null;
+            List<HorseSummary> result = new ArrayList<>(count);
+            for (int i = 0; i < count; i += 1) {
+                int id = buffer.getInt();
+                int flags = buffer.getInt();
+                UUID owner = getUuid(buffer, (flags & HAS_OWNER) != 0);
+                UUID brandOwner = getUuid(buffer, (flags & HAS_BRAND_OWNER) != 0);
+                String name = string(strings, buffer.getInt());
+                HorseGender gender = enumOf(HorseGender.class, string(strings, buffer.getInt()));
+                HorseAge age = enumOf(HorseAge.class, string(strings, buffer.getInt()));
+                HorseBreed breed = enumOf(HorseBreed.class, string(strings, buffer.getInt()));
+                String world = string(strings, buffer.getInt());
+                int cx = buffer.getInt();
+                int cz = buffer.getInt();
+                result.add(new HorseSummary(id, owner, name, gender, age, breed, brandOwner, world, cx, cz));
+            }
+            return result;
+        } catch (IOException | RuntimeException e) {
+            // Unknown enum constants, truncated file, etc.
+            logger.log(Level.WARNING, "Cannot use " + file.getName(), e);
+            return null;
+        }
+    }
+
+    private static UUID getUuid(ByteBuffer buffer, boolean present) {
+        long most = buffer.getLong();
+        long least = buffer.getLong();
+        return present ? new UUID(most, least) : null;
+    }
+
+    private static String string(String[] strings, int index) {
+        return index < 0 ? null : strings[index];
+    }
+
+    private static <E extends Enum<E>> E enumOf(Class<E> type, String name) {
+        return name == null ? null : Enum.valueOf(type, name);
+    }
+}
@@ -0,0 +1,137 @@
+package net.equestriworlds.horse;
+
+import java.util.ArrayDeque;
+import lombok.AccessLevel;
+import lombok.Getter;
+
+/**
+ * Time budget of HorsePlugin#run().
+ *
+ * Urgent work, such as removing absent horses and checking
+ * crossties, runs right away as before.  Everything else is submitted
+ * here by horse and kind of work, see the work bits, and runs in
+ * priority order until the budget of the tick is spent.  What is left
+ * carries over to the next tick, ahead of anything submitted then.
+ * At least MIN_HORSES horses of each priority are served every tick,
+ * so a tick which spends its budget on urgent work alone does not
+ * starve the rest.
+ *
+ * Pending work is a bit mask on the SpawnedHorse, so work submitted
+ * twice before it runs is done once.
+ */
+@Getter
+final class HorseTickBudget {
+    static final long DEFAULT_BUDGET = 2000000L; // Nanos
+    static final int MIN_HORSES = 4;
+    // Priorities
+    static final int NORMAL = 0;
+    static final int LOW = 1;
+    // Work bits
+    static final int EVENTS = 1 << 0; // Simulation events, NORMAL
+    static final int FOLLOW = 1 << 1; // Follow pathing, NORMAL
+    static final int SAVE = 1 << 2; // HorseExtra#saveNow(), LOW
+    static final int PARTICLES = 1 << 3; // Grooming particles, LOW
+    private static final int[] PRIORITY_WORK = {EVENTS | FOLLOW, SAVE | PARTICLES};
+    private final long budget;
+    private final Worker worker;
+    @Getter(AccessLevel.NONE)
+    private final ArrayDeque<SpawnedHorse>[] queues;
+    private long deadline;
+    // Counters of the last tick
+    private long tickNanos;
+    private int performed;
+    private int submitted;
+    private int carriedOver;
+    // Counters since startup
+    private long ticks;
+    private long overBudgetTicks;
+    private long totalPerformed;
+    private long totalCarriedOver;
+
+    @FunctionalInterface
+    interface Worker {
+        /**
+         * Do the given work bits on a horse.
+         */
+        void perform(SpawnedHorse spawned, int work);
+    }
+
+    @SuppressWarnings("unchecked")
+    HorseTickBudget(long budget, Worker worker) {
+        this.budget = budget;
+        this.worker = worker;
+        this.queues = new ArrayDeque[] {new ArrayDeque<SpawnedHorse>(), new ArrayDeque<SpawnedHorse>()};
+    }
+
+    static int priorityOf(int work) {
+        return (work & PRIORITY_WORK[NORMAL]) != 0 ? NORMAL : LOW;
+    }
+
+    /**
+     * Start the budget of a tick.  Call first thing in the tick.
+     */
+    void begin() {
+        this.deadline = System.nanoTime() + this.budget;
+        this.performed = 0;
+        this.submitted = 0;
+    }
+
+    boolean isSpent() {
+        return System.nanoTime() - this.deadline >= 0L;
+    }
+
+    /**
+     * Queue one kind of work on a horse.
+     */
+    void submit(SpawnedHorse spawned, int work) {
+        int priority = priorityOf(work);
+        if ((spawned.pendingWork & PRIORITY_WORK[priority]) == 0) this.queues[priority].addLast(spawned);
+        spawned.pendingWork |= work;
+        this.submitted += 1;
+    }
+
+    /**
+     * Forget all work of a horse which is being unregistered.
+     */
+    void cancel(SpawnedHorse spawned) {
+        spawned.pendingWork = 0;
+    }
+
+    /**
+     * Run queued work in priority order until the budget is spent,
+     * and update the counters.  Call last thing in the tick.
+     */
+    void drain() {
+        for (int priority = NORMAL; priority <= LOW; priority += 1) {
+            ArrayDeque<SpawnedHorse> queue = this.queues[priority];
+            int served = 0;
+            while (!queue.isEmpty() && (served < MIN_HORSES || !isSpent())) {
+                SpawnedHorse spawned = queue.pollFirst();
+                int work = spawned.pendingWork & PRIORITY_WORK[priority];
+                if (work == 0) continue; // Cancelled
+                spawned.pendingWork &= ~work;
+                this.worker.perform(spawned, work);
+                served += 1;
+                this.performed += 1;
+            }
+        }
+        long now = System.nanoTime();
+        this.tickNanos = now - (this.deadline - this.budget);
+        this.carriedOver = this.queues[NORMAL].size() + this.queues[LOW].size();
+        this.ticks += 1;
+        if (now - this.deadline > 0L) this.overBudgetTicks += 1;
+        this.totalPerformed += this.performed;
+        this.totalCarriedOver += this.carriedOver;
+    }
+
+    int getQueueSize(int priority) {
+        return this.queues[priority].size();
+    }
+
+    void clear() {
+        for (ArrayDeque<SpawnedHorse> queue: this.queues) {
+            for (SpawnedHorse spawned: queue) spawned.pendingWork = 0;
+            queue.clear();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package net.equestriworlds.horse;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import org.bukkit.Sound;
+import org.bukkit.SoundCategory;
+
+/**
+ * The loop over spawned horses in HorsePlugin#run().  It allocates
+ * nothing for a horse with no work due: it walks the registry by slot
+ * from the end, so absent horses can be removed on the way, see
+ * SpawnedHorseRegistry, and reads the clock once.
+ *
+ * Periodic work of a horse is timed by its tick phase, so horses
+ * spawned together do not all fire in the same tick.  Horses which
+ * come up on the timer wheel wait for their phase as well, and the
+ * HorseVirtualizer checks each horse in its phase.  Virtual horses
+ * have no entity but are not absent.
+ *
+ * Each step is timed in a section of HorseTimings.
+ */
+@Getter
+@RequiredArgsConstructor
+final class HorseTicker {
+    @Getter(AccessLevel.NONE) private final SpawnedHorseRegistry spawnedHorses;
+    @Getter(AccessLevel.NONE) private final HorseTimerWheel horseTimer;
+    @Getter(AccessLevel.NONE) private final HorseTickBudget tickBudget;
+    @Getter(AccessLevel.NONE) private final HorseVirtualizer virtualizer;
+    @Getter(AccessLevel.NONE) private final HorseTimings timings;
+    @Getter(AccessLevel.NONE) private final Absent absent;
+    private long tickSecond = HorseExtra.now(); // Epoch second of the current tick
+    private long tickCount; // Ticks since startup
+
+    @FunctionalInterface
+    interface Absent {
+        /**
+         * Save and unregister a horse which lost its entity.
+         */
+        void remove(SpawnedHorse spawned, long now);
+    }
+
+    /**
+     * Once per tick, before anything else touches the horses.
+     */
+    void tick() {
+        this.tickBudget.begin();
+        this.virtualizer.begin();
+        this.tickSecond = HorseExtra.now();
+        this.tickCount += 1;
+        // Simulation events
+        long start = System.nanoTime();
+        this.horseTimer.advance(this.tickSecond);
+        for (SpawnedHorse spawned = this.horseTimer.pollDue(); spawned != null; spawned = this.horseTimer.pollDue()) {
+            spawned.eventsDue = true;
+        }
+        this.timings.tickTimer.since(start);
+        // SpawnedHorse
+        start = System.nanoTime();
+        for (int i = this.spawnedHorses.size() - 1; i >= 0; i -= 1) {
+            SpawnedHorse spawned = this.spawnedHorses.get(i);
+            if (!spawned.isPresent() && !spawned.isVirtual()) {
+                long absentStart = System.nanoTime();
+                this.absent.remove(spawned, this.tickSecond);
+                this.timings.tickAbsent.since(absentStart);
+                continue;
+            }
+            tickSpawnedHorse(spawned);
+            if (spawned.extra.isNeedsSaving()) this.tickBudget.submit(spawned, HorseTickBudget.SAVE);
+        }
+        this.timings.tickHorses.since(start);
+        // Everything which may wait, as long as there is time
+        start = System.nanoTime();
+        this.tickBudget.drain();
+        this.timings.tickWork.since(start);
+    }
+
+    /**
+     * Urgent work on one horse, every tick.  Anything else is
+     * submitted to the HorseTickBudget.
+     */
+    private void tickSpawnedHorse(SpawnedHorse spawned) {
+        spawned.setTicksLived(spawned.getTicksLived() + 1);
+        final long tick = this.tickCount + spawned.phase;
+        if ((tick % SpawnedHorseRegistry.PHASES) == 0) {
+            long start = System.nanoTime();
+            this.virtualizer.check(spawned);
+            this.timings.tickVirtualize.since(start);
+            if (spawned.eventsDue) {
+                spawned.eventsDue = false;
+                this.tickBudget.submit(spawned, HorseTickBudget.EVENTS);
+            }
+        }
+        if ((tick % 10) == 0 && spawned.getFollowing() != null) {
+            this.tickBudget.submit(spawned, HorseTickBudget.FOLLOW);
+        }
+        // Crossties
+        Crosstie crosstie = spawned.getCrosstie();
+        if (crosstie != null) {
+            long start = System.nanoTime();
+            if (!crosstie.check()) {
+                spawned.removeCrosstie();
+                spawned.extra.setCrosstie(null);
+                spawned.getEntity().getWorld().playSound(spawned.getEntity().getEyeLocation(), Sound.BLOCK_IRON_DOOR_OPEN, SoundCategory.NEUTRAL, 1.0f, 2.0f);
+            }
+            this.timings.tickCrosstie.since(start);
+        }
+        // Grooming
+        Grooming.Persistence groomingData = spawned.extra.getGrooming();
+        if (groomingData != null) {
+            if (groomingData.expiration < this.tickSecond) {
+                spawned.extra.setGrooming(null);
+            } else if ((groomingData.wash == 1 || groomingData.wash == 2) && (tick % 8 == 0)) {
+                this.tickBudget.submit(spawned, HorseTickBudget.PARTICLES);
+            }
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package net.equestriworlds.horse;
+
+/**
+ * Hierarchical timing wheel which schedules the next simulation
+ * event of each SpawnedHorse, in Unix seconds.
+ *
+ * Instead of polling every horse every second, HorsePlugin asks
+ * Feeding, Breeding and the aging logic when each horse has anything
+ * to do next, schedules it here, and only processes the horses which
+ * are due.
+ *
+ * There are 4 levels of 64 slots.  Level 0 covers the next 64
+ * seconds with one slot per second, level 1 the next 64^2 seconds
+ * with one slot per 64 seconds, and so on.  Entries further away than
+ * 64^4 seconds (about 194 days) wait in an overflow list.  Whenever
+ * the index of a lower level wraps around, the matching slot of the
+ * level above is cascaded down.
+ *
+ * Every horse owns exactly one Entry, which is linked into at most
+ * one slot at a time.  Scheduling and cancelling are constant time
+ * and allocation free.
+ */
+final class HorseTimerWheel {
+    private static final int BITS = 6;
+    private static final int SIZE = 1 << BITS;
+    private static final int MASK = SIZE - 1;
+    private static final int LEVELS = 4;
+    private static final int OVERFLOW = LEVELS * SIZE;
+    private static final int DUE = OVERFLOW + 1;
+    private static final int NONE = -1;
+    private final Entry[] heads = new Entry[DUE + 1];
+    private long current;
+    private int size;
+
+    static final class Entry {
+        final SpawnedHorse spawned;
+        private long time;
+        private int slot = NONE;
+        private Entry prev, next;
+
+        Entry(SpawnedHorse spawned) {
+            this.spawned = spawned;
+        }
+
+        boolean isScheduled() {
+            return this.slot != NONE;
+        }
+
+        long getTime() {
+            return this.time;
+        }
+    }
+
+    HorseTimerWheel(long now) {
+        this.current = now;
+    }
+
+    /**
+     * Schedule an entry, replacing its previous time.  Times which
+     * are not in the future are due with the next second.
+     */
+    void schedule(Entry entry, long time) {
+        unlink(entry);
+        if (time <= this.current) time = this.current + 1;
+        entry.time = time;
+        link(entry, slotOf(time));
+        this.size += 1;
+    }
+
+    /**
+     * Like schedule(), but only if the entry is not already due
+     * sooner.
+     */
+    void scheduleEarlier(Entry entry, long time) {
+        if (time <= this.current) time = this.current + 1;
+        if (entry.slot != NONE && entry.time <= time) return;
+        schedule(entry, time);
+    }
+
+    void cancel(Entry entry) {
+        unlink(entry);
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    long getCurrent() {
+        return this.current;
+    }
+
+    /**
+     * Advance the clock up to the given time, second by second, and
+     * gather all entries which become due.  Fetch them with
+     * pollDue().
+     */
+    void advance(long now) {
+        while (this.current < now) {
+            this.current += 1;
+            final long t = this.current;
+            for (int level = 1; level < LEVELS; level += 1) {
+                if (((t >>> (BITS * (level - 1))) & MASK) != 0) break;
+                cascade(level * SIZE + (int)((t >>> (BITS * level)) & MASK));
+                if (level == LEVELS - 1 && ((t >>> (BITS * level)) & MASK) == 0) cascade(OVERFLOW);
+            }
+            Entry entry = this.heads[(int)(t & MASK)];
+            this.heads[(int)(t & MASK)] = null;
+            while (entry != null) {
+                Entry next = entry.next;
+                entry.prev = null;
+                entry.next = null;
+                link(entry, DUE);
+                entry = next;
+            }
+        }
+    }
+
+    /**
+     * Remove and return the next due horse, or null if there is
+     * none.
+     */
+    SpawnedHorse pollDue() {
+        Entry entry = this.heads[DUE];
+        if (entry == null) return null;
+        unlink(entry);
+        return entry.spawned;
+    }
+
+    void clear() {
+        for (int i = 0; i < this.heads.length; i += 1) {
+            Entry entry = this.heads[i];
+            this.heads[i] = null;
+            while (entry != null) {
+                Entry next = entry.next;
+                entry.prev = null;
+                entry.next = null;
+                entry.slot = NONE;
+                entry = next;
+            }
+        }
+        this.size = 0;
+    }
+
+    private int slotOf(long time) {
+        final long delta = time - this.current;
+        for (int level = 0; level < LEVELS; level += 1) {
+            if (delta < (1L << (BITS * (level + 1)))) {
+                return level * SIZE + (int)((time >>> (BITS * level)) & MASK);
+            }
+        }
+        return OVERFLOW;
+    }
+
+    /**
+     * Re-file every entry of one slot relative to the current time.
+     */
+    private void cascade(int slot) {
+        Entry entry = this.heads[slot];
+        this.heads[slot] = null;
+        while (entry != null) {
+            Entry next = entry.next;
+            entry.prev = null;
+            entry.next = null;
+            link(entry, slotOf(entry.time));
+            entry = next;
+        }
+    }
+
+    private void link(Entry entry, int slot) {
+        entry.slot = slot;
+        entry.prev = null;
+        entry.next = this.heads[slot];
+        if (entry.next != null) entry.next.prev = entry;
+        this.heads[slot] = entry;
+    }
+
+    private void unlink(Entry entry) {
+        if (entry.slot == NONE) return;
+        if (entry.prev != null) {
+            entry.prev.next = entry.next;
+        } else {
+            this.heads[entry.slot] = entry.next;
+        }
+        if (entry.next != null) entry.next.prev = entry.prev;
+        entry.prev = null;
+        entry.next = null;
+        entry.slot = NONE;
+        this.size -= 1;
+    }
+}
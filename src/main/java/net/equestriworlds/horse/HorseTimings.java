@@ -0,0 +1,243 @@
+package net.equestriworlds.horse;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.Value;
+import org.bukkit.event.Event;
+import org.bukkit.event.EventException;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.Listener;
+import org.bukkit.plugin.EventExecutor;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * Rolling nanosecond histograms of named code sections, for /ha
+ * timings.
+ *
+ * Every Section keeps one histogram per minute in a ring of MINUTES,
+ * so statistics over the last 1, 5 or 15 minutes merge that many
+ * minutes, the current one included.  Buckets are logarithmic with 4
+ * per power of two, so percentiles are accurate to within 25%.
+ * Recording takes a lock on the section but does not allocate once
+ * the ring is filled, so sections may be fed from any thread.
+ *
+ * The sections of HorsePlugin#run() and HorseTicker are fields, see
+ * there.  Event handlers are timed by registerEvents(), and
+ * HorseDatabase times each of its methods by name.
+ */
+final class HorseTimings {
+    static final int[] WINDOWS = {1, 5, 15}; // Minutes
+    private static final int MINUTES = 16;
+    private static final int BUCKETS = 248; // See bucketOf()
+    private final Map<String, Section> sections = new ConcurrentHashMap<>();
+    // HorsePlugin#run() and HorseTicker
+    final Section tick = section("tick");
+    final Section tickTimer = section("tick.timer");
+    final Section tickHorses = section("tick.horses");
+    final Section tickAbsent = section("tick.absent");
+    final Section tickCrosstie = section("tick.crosstie");
+    final Section tickVirtualize = section("tick.virtualize");
+    final Section tickWork = section("tick.work");
+    final Section tickFlush = section("tick.flush");
+    final Section events = section("work.events");
+    final Section feeding = section("work.events.feeding");
+    final Section breeding = section("work.events.breeding");
+    final Section aging = section("work.events.aging");
+    final Section follow = section("work.follow");
+    final Section particles = section("work.particles");
+    final Section saveExtra = section("work.saveExtra");
+
+    static final class Section {
+        final String name;
+        private final long[] stamps = new long[MINUTES]; // Minute of each slot
+        private final int[][] counts = new int[MINUTES][];
+        private final long[] calls = new long[MINUTES];
+        private final long[] totals = new long[MINUTES];
+        private final long[] maxes = new long[MINUTES];
+
+        Section(String name) {
+            this.name = name;
+            Arrays.fill(this.stamps, -1L);
+        }
+
+        synchronized void record(long nanos) {
+            long minute = System.currentTimeMillis() / 60000L;
+            int slot = (int)(minute % MINUTES);
+            if (this.stamps[slot] != minute) {
+                this.stamps[slot] = minute;
+                if (this.counts[slot] == null) {
+                    this.counts[slot] = new int[BUCKETS];
+                } else {
+                    Arrays.fill(this.counts[slot], 0);
+                }
+                this.calls[slot] = 0L;
+                this.totals[slot] = 0L;
+                this.maxes[slot] = 0L;
+            }
+            this.counts[slot][bucketOf(nanos)] += 1;
+            this.calls[slot] += 1L;
+            this.totals[slot] += nanos;
+            if (nanos > this.maxes[slot]) this.maxes[slot] = nanos;
+        }
+
+        /**
+         * Record the time since start, a System#nanoTime() value.
+         */
+        void since(long start) {
+            record(System.nanoTime() - start);
+        }
+
+        /**
+         * Merge the given number of most recent minutes.
+         */
+        synchronized Stats getStats(int minutes) {
+            long minute = System.currentTimeMillis() / 60000L;
+            int[] merged = new int[BUCKETS];
+            long count = 0L;
+            long total = 0L;
+            long max = 0L;
+            for (int slot = 0; slot < MINUTES; slot += 1) {
+                if (this.stamps[slot] <= minute - minutes) continue;
+                for (int i = 0; i < BUCKETS; i += 1) merged[i] += this.counts[slot][i];
+                count += this.calls[slot];
+                total += this.totals[slot];
+                max = Math.max(max, this.maxes[slot]);
+            }
+            return new Stats(this.name, count, total,
+                             percentile(merged, count, 0.50, max),
+                             percentile(merged, count, 0.95, max),
+                             percentile(merged, count, 0.99, max),
+                             max);
+        }
+
+        synchronized void clear() {
+            Arrays.fill(this.stamps, -1L);
+        }
+    }
+
+    /**
+     * Statistics of one section over a time window, in nanoseconds.
+     */
+    @Value
+    static final class Stats {
+        private final String name;
+        private final long calls;
+        private final long total;
+        private final long p50, p95, p99, max;
+    }
+
+    /**
+     * Get a section by name, creating it if necessary.
+     */
+    Section section(String name) {
+        return this.sections.computeIfAbsent(name, Section::new);
+    }
+
+    /**
+     * Record the time since start, a System#nanoTime() value, in the
+     * named section.
+     */
+    void record(String name, long start) {
+        section(name).since(start);
+    }
+
+    /**
+     * Statistics of all sections which were called within the window,
+     * most total time first.
+     */
+    List<Stats> getStats(int minutes) {
+        List<Stats> result = new ArrayList<>();
+        for (Section section: this.sections.values()) {
+            Stats stats = section.getStats(minutes);
+            if (stats.getCalls() > 0L) result.add(stats);
+        }
+        result.sort(Comparator.comparingLong(Stats::getTotal).reversed());
+        return result;
+    }
+
+    void reset() {
+        for (Section section: this.sections.values()) section.clear();
+    }
+
+    /**
+     * Like PluginManager#registerEvents(), but time every handler
+     * method of the listener in a section named after its class and
+     * method.
+     */
+    void registerEvents(Listener listener, Plugin plugin) {
+        for (Method method: listener.getClass().getDeclaredMethods()) {
+            EventHandler handler = method.getAnnotation(EventHandler.class);
+            if (handler == null || method.isBridge() || method.isSynthetic()) continue;
+            Class<?>[] params = method.getParameterTypes();
+            if (params.length != 1 || !Event.class.isAssignableFrom(params[0])) {
+                plugin.getLogger().warning("Invalid event handler: " + method);
+                continue;
+            }
+            final Class<? extends Event> eventClass = params[0].asSubclass(Event.class);
+            final Section section = section(listener.getClass().getSimpleName() + "." + method.getName());
+            method.setAccessible(true);
+            EventExecutor executor = (l, event) -> {
+                if (!eventClass.isInstance(event)) return;
+                long start = System.nanoTime();
+                try {
+                    method.invoke(l, event);
+                } catch (InvocationTargetException ite) {
+                    throw new EventException(ite.getCause());
+                } catch (IllegalAccessException iae) {
+                    throw new EventException(iae);
+                } finally {
+                    section.since(start);
+                }
+            };
+            plugin.getServer().getPluginManager().registerEvent(eventClass, listener, handler.priority(), executor, plugin, handler.ignoreCancelled());
+        }
+    }
+
+    // --- Buckets
+
+    /**
+     * Values below 4 have a bucket each.  Above, every power of two
+     * is split into 4 buckets.
+     */
+    static int bucketOf(long nanos) {
+        if (nanos < 4L) return nanos < 0L ? 0 : (int)nanos;
+        int exp = 63 - Long.numberOfLeadingZeros(nanos);
+        return ((exp - 1) << 2) + (int)((nanos >>> (exp - 2)) & 3L);
+    }
+
+    /**
+     * The largest value in a bucket.
+     */
+    static long bucketLimit(int bucket) {
+        if (bucket < 4) return bucket;
+        int shift = (bucket >> 2) - 1;
+        return ((4L + (bucket & 3)) << shift) + (1L << shift) - 1L;
+    }
+
+    private static long percentile(int[] counts, long total, double fraction, long max) {
+        if (total == 0L) return 0L;
+        long rank = (long)Math.ceil(total * fraction);
+        long seen = 0L;
+        for (int i = 0; i < BUCKETS; i += 1) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(bucketLimit(i), max);
+        }
+        return max;
+    }
+
+    /**
+     * Format nanoseconds for display.
+     */
+    static String format(long nanos) {
+        if (nanos < 1000L) return nanos + "ns";
+        if (nanos < 1000000L) return String.format("%.1fus", nanos / 1000.0);
+        if (nanos < 1000000000L) return String.format("%.2fms", nanos / 1000000.0);
+        return String.format("%.2fs", nanos / 1000000000.0);
+    }
+}
@@ -0,0 +1,365 @@
+package net.equestriworlds.horse;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.logging.Level;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import net.md_5.bungee.api.ChatColor;
+import org.bukkit.command.CommandSender;
+
+/**
+ * Dumps of the whole database for /ha export and /ha import.  A dump
+ * is a gzipped file with one JSON object per line: a header, then
+ * one line per brand, then one per horse with its extra data inline.
+ * Horses are stored in their Gson form, which unlike HorseCodec does
+ * not depend on the enum name tables of the database.
+ *
+ * Both run on a background thread.  Export reads a consistent
+ * snapshot, see HorseStorage#exportAll(), into a temporary file which
+ * is renamed once complete.  Import stores CHUNK horses at a time
+ * before reading on, so memory use does not grow with the number of
+ * horses.  The main thread is only asked which ids exist and told
+ * about the new horses.  Each horse is stored along with its extra
+ * data, all at once.  Horses and
+ * brands which already exist are skipped, so an interrupted import
+ * resumes where it stopped when run again.  A horse whose id exists
+ * with different data is kept as stored and reported as a conflict.
+ */
+@RequiredArgsConstructor
+final class HorseTransfer {
+    static final int FORMAT = 1;
+    static final int CHUNK = 500;
+    static final String SUFFIX = ".ndjson.gz";
+    private static final long PROGRESS_INTERVAL = 5000L; // Millis
+    private final HorsePlugin plugin;
+    private final Gson gson = new Gson();
+    @Getter private boolean running = false; // Main thread
+
+    File getFolder() {
+        return new File(this.plugin.getDataFolder(), "exports");
+    }
+
+    /**
+     * The names of all finished dumps, for tab completion.
+     */
+    List<String> listDumps() {
+        String[] names = getFolder().list((dir, name) -> name.endsWith(SUFFIX));
+        if (names == null) return Collections.emptyList();
+        Arrays.sort(names);
+        return Arrays.asList(names);
+    }
+
+    // --- Export
+
+    /**
+     * Start an export into a new file, and report to the sender.
+     * Called in the main thread.
+     *
+     * @return the file
+     */
+    File startExport(CommandSender sender) {
+        if (this.running) throw new IllegalStateException("Transfer already running");
+        getFolder().mkdirs();
+        File file = new File(getFolder(), "horses-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + SUFFIX);
+        // Pending changes should be part of the dump.  The writer
+        // thread is waited for in the background.
+        for (SpawnedHorse spawned: this.plugin.getSpawnedHorses()) spawned.extra.saveNow(this.plugin);
+        this.plugin.flushDirtyHorses();
+        final int total = this.plugin.getHorseRegistry().size();
+        this.running = true;
+        this.plugin.getServer().getScheduler().runTaskAsynchronously(this.plugin, () -> {
+                String result;
+                try {
+                    this.plugin.getDatabaseWriter().flush(30000L);
+                    int count = export(file, total, sender);
+                    result = "Exported " + count + " horses to " + file.getName() + ".";
+                } catch (IOException | RuntimeException e) {
+                    this.plugin.getLogger().log(Level.SEVERE, "Export to " + file.getName() + " failed", e);
+                    result = ChatColor.RED + "Export failed: " + e.getMessage();
+                }
+                finish(sender, result);
+            });
+        return file;
+    }
+
+    private int export(File file, int total, CommandSender sender) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        final int[] count = {0};
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(tmp)), StandardCharsets.UTF_8))) {
+            JsonObject header = new JsonObject();
+            header.addProperty("type", "header");
+            header.addProperty("format", FORMAT);
+            header.addProperty("backend", this.plugin.getDatabase().getBackend());
+            header.addProperty("created", System.currentTimeMillis());
+            writeLine(out, header);
+            final HorseDatabase database = this.plugin.getDatabase();
+            final long[] lastProgress = {System.currentTimeMillis()};
+            database.exportAll(new HorseStorage.ExportConsumer() {
+                    @Override
+                    public void brand(HorseBrand brand) throws IOException {
+                        JsonObject line = new JsonObject();
+                        line.addProperty("type", "brand");
+                        line.addProperty("owner", brand.getOwner().toString());
+                        line.addProperty("format", brand.getFormat());
+                        writeLine(out, line);
+                    }
+
+                    @Override
+                    public void horse(int id, Object value, Map<String, String> extra) throws IOException {
+                        HorseData data;
+                        try {
+                            data = database.deserializeHorse(id, value);
+                        } catch (IOException | RuntimeException e) {
+                            HorseTransfer.this.plugin.getLogger().log(Level.WARNING, "Failed to export horse #" + id, e);
+                            return;
+                        }
+                        JsonObject line = new JsonObject();
+                        line.addProperty("type", "horse");
+                        line.addProperty("id", id);
+                        line.add("data", HorseTransfer.this.gson.toJsonTree(data));
+                        line.add("extra", HorseTransfer.this.gson.toJsonTree(extra));
+                        writeLine(out, line);
+                        count[0] += 1;
+                        long now = System.currentTimeMillis();
+                        if (now - lastProgress[0] >= PROGRESS_INTERVAL) {
+                            lastProgress[0] = now;
+                            progress(sender, "Exported " + count[0] + "/" + total + " horses...");
+                        }
+                    }
+                });
+        } catch (IOException | RuntimeException e) {
+            tmp.delete();
+            throw e;
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return count[0];
+    }
+
+    private void writeLine(Writer out, JsonObject line) throws IOException {
+        this.gson.toJson(line, out);
+        out.write('\n');
+    }
+
+    // --- Import
+
+    /**
+     * Start importing a dump from the export folder, and report to
+     * the sender.  Called in the main thread.
+     */
+    void startImport(CommandSender sender, File file) {
+        if (this.running) throw new IllegalStateException("Transfer already running");
+        // Stored horses are compared with the dump in the background,
+        // so pending changes should be part of them.
+        for (SpawnedHorse spawned: this.plugin.getSpawnedHorses()) spawned.extra.saveNow(this.plugin);
+        this.plugin.flushDirtyHorses();
+        this.running = true;
+        this.plugin.getServer().getScheduler().runTaskAsynchronously(this.plugin, () -> {
+                String result;
+                try {
+                    List<Integer> conflicts = new ArrayList<>();
+                    int[] counts = importDump(file, sender, conflicts);
+                    result = "Imported " + counts[0] + " horses from " + file.getName() + ", skipped " + counts[1] + " which already exist.";
+                    if (!conflicts.isEmpty()) {
+                        this.plugin.getLogger().warning("Import of " + file.getName() + " kept stored horses with conflicting ids: " + conflicts);
+                        result += ChatColor.RED + " Kept " + conflicts.size() + " stored horses whose ids exist with different data, see the server log.";
+                    }
+                } catch (IOException | RuntimeException e) {
+                    this.plugin.getLogger().log(Level.SEVERE, "Import of " + file.getName() + " failed", e);
+                    result = ChatColor.RED + "Import failed: " + e.getMessage();
+                }
+                finish(sender, result);
+            });
+    }
+
+    /**
+     * @param conflicts receives the ids of horses which exist with
+     *   different data
+     * @return the number of imported and of skipped identical horses
+     */
+    private int[] importDump(File file, CommandSender sender, List<Integer> conflicts) throws IOException {
+        int[] counts = {0, 0};
+        JsonParser parser = new JsonParser();
+        HorseDatabase database = this.plugin.getDatabase();
+        List<HorseBrand> brands = new ArrayList<>();
+        Map<Integer, HorseData> horses = new LinkedHashMap<>();
+        Map<Integer, Map<String, String>> extras = new HashMap<>();
+        long lastProgress = System.currentTimeMillis();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(file)), StandardCharsets.UTF_8))) {
+            String text = in.readLine();
+            if (text == null) throw new IOException("Empty file");
+            JsonObject header = parser.parse(text).getAsJsonObject();
+            if (!"header".equals(header.get("type").getAsString())) throw new IOException("Header missing");
+            int format = header.get("format").getAsInt();
+            if (format != FORMAT) throw new IOException("Unknown format: " + format);
+            int lineNumber = 1;
+            while ((text = in.readLine()) != null) {
+                lineNumber += 1;
+                if (text.isEmpty()) continue;
+                try {
+                    JsonObject line = parser.parse(text).getAsJsonObject();
+                    switch (line.get("type").getAsString()) {
+                    case "brand":
+                        brands.add(new HorseBrand(UUID.fromString(line.get("owner").getAsString()), line.get("format").getAsString()));
+                        break;
+                    case "horse": {
+                        int id = line.get("id").getAsInt();
+                        horses.put(id, database.deserializeHorse(id, line.get("data").toString()));
+                        Map<String, String> extra = new HashMap<>();
+                        for (Map.Entry<String, JsonElement> entry: line.getAsJsonObject("extra").entrySet()) {
+                            extra.put(entry.getKey(), entry.getValue().isJsonNull() ? null : entry.getValue().getAsString());
+                        }
+                        if (!extra.isEmpty()) extras.put(id, extra);
+                        break;
+                    }
+                    default: break;
+                    }
+                } catch (IOException | RuntimeException e) {
+                    throw new IOException(file.getName() + ":" + lineNumber + ": " + e.getMessage(), e);
+                }
+                if (horses.size() >= CHUNK) {
+                    store(brands, horses, extras, counts, conflicts);
+                    long now = System.currentTimeMillis();
+                    if (now - lastProgress >= PROGRESS_INTERVAL) {
+                        lastProgress = now;
+                        progress(sender, "Imported " + counts[0] + " horses, skipped " + counts[1] + "...");
+                    }
+                }
+            }
+        }
+        store(brands, horses, extras, counts, conflicts);
+        return counts;
+    }
+
+    /**
+     * Store one chunk and clear it.  The main thread only stores the
+     * brands, looks up which ids exist, and later learns about the new
+     * horses.  Comparing and storing horses happens in this thread.
+     * The ids of existing horses whose data differ from the dump go
+     * to conflicts.  Last seen is not compared because spawning a
+     * horse updates it.
+     */
+    private void store(List<HorseBrand> brands, Map<Integer, HorseData> horses, Map<Integer, Map<String, String>> extras, int[] counts, List<Integer> conflicts) throws IOException {
+        if (brands.isEmpty() && horses.isEmpty()) return;
+        HorseDatabase database = this.plugin.getDatabase();
+        final Set<Integer> existing = callSync(() -> storeBrandsAndFindHorses(brands, horses.keySet()));
+        Map<Integer, byte[]> pending = new HashMap<>();
+        for (Integer id: existing) {
+            byte[] row = this.plugin.getDatabaseWriter().getPendingHorse(id);
+            if (row != null) pending.put(id, row);
+        }
+        Map<Integer, HorseData> stored = existing.isEmpty() ? Collections.emptyMap() : database.loadHorses(existing, pending);
+        Map<Integer, HorseDatabase.HorseRow> rows = new LinkedHashMap<>();
+        Map<Integer, Map<String, String>> rowExtras = new HashMap<>();
+        final List<HorseSummary> summaries = new ArrayList<>();
+        int conflicting = 0;
+        for (HorseData data: horses.values()) {
+            if (existing.contains(data.getId())) {
+                HorseData old = stored.get(data.getId());
+                if (old != null) data.setLastSeen(old.getLastSeen());
+                if (!data.equals(old)) {
+                    conflicts.add(data.getId());
+                    conflicting += 1;
+                }
+                continue;
+            }
+            rows.put(data.getId(), database.serializeHorse(data));
+            Map<String, String> extra = extras.get(data.getId());
+            if (extra != null) rowExtras.put(data.getId(), extra);
+            summaries.add(new HorseSummary(data));
+        }
+        if (!rows.isEmpty()) {
+            database.importHorses(rows, rowExtras);
+            callSync(() -> {
+                    for (HorseSummary summary: summaries) {
+                        if (this.plugin.getHorseRegistry().getSummary(summary.getId()) == null) this.plugin.getHorseRegistry().add(summary);
+                    }
+                    return null;
+                });
+        }
+        counts[0] += rows.size();
+        counts[1] += existing.size() - conflicting;
+        brands.clear();
+        horses.clear();
+        extras.clear();
+    }
+
+    /**
+     * Store brands which do not exist yet, and find which of the
+     * given horses exist.  Called in the main thread.
+     *
+     * @return the ids of existing horses
+     */
+    private Set<Integer> storeBrandsAndFindHorses(List<HorseBrand> brands, Collection<Integer> horseIds) {
+        HorseDatabase database = this.plugin.getDatabase();
+        for (HorseBrand brand: brands) {
+            if (this.plugin.getHorseBrands().containsKey(brand.getOwner())) continue;
+            if (database.saveHorseBrand(brand)) this.plugin.getHorseBrands().put(brand.getOwner(), brand);
+        }
+        Set<Integer> result = new HashSet<>();
+        for (Integer id: horseIds) {
+            if (this.plugin.getHorseRegistry().getSummary(id) != null) result.add(id);
+        }
+        return result;
+    }
+
+    /**
+     * Run a task in the main thread and wait for it.
+     */
+    private <T> T callSync(Callable<T> task) throws IOException {
+        try {
+            return this.plugin.getServer().getScheduler().callSyncMethod(this.plugin, task).get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        } catch (ExecutionException ee) {
+            throw new IOException(ee.getCause());
+        }
+    }
+
+    // --- Reporting
+
+    private void progress(CommandSender sender, String message) {
+        if (!this.plugin.isEnabled()) return;
+        this.plugin.getServer().getScheduler().runTask(this.plugin, () -> sender.sendMessage(message));
+    }
+
+    private void finish(CommandSender sender, String message) {
+        if (!this.plugin.isEnabled()) return;
+        this.plugin.getServer().getScheduler().runTask(this.plugin, () -> {
+                this.running = false;
+                sender.sendMessage(message);
+            });
+    }
+}
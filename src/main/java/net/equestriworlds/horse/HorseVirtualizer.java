@@ -0,0 +1,154 @@
+package net.equestriworlds.horse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import lombok.Getter;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.AbstractHorse;
+import org.bukkit.entity.Player;
+
+/**
+ * Keeps spawned horses which no player is near as virtual proxies.
+ * A virtual horse stays in the SpawnedHorseRegistry and its
+ * simulation goes on, but it has no entity: it rests at its stored
+ * HorseLocation.  Once a player comes within the radius, the entity
+ * is spawned there again.  Horses are only virtualized while nothing
+ * holds them in place: no rider, lead, crosstie or followed player.
+ *
+ * HorseTicker checks each horse once per second, in its tick phase.
+ * Player positions are gathered once per tick into reused arrays, so
+ * checks do not allocate.  The players themselves are kept in a list
+ * which HorseListener updates on join and quit.  A horse is
+ * virtualized beyond the radius plus HYSTERESIS, so one player
+ * walking along the edge does not make it flicker.  When the chunk of
+ * a virtual horse unloads, the horse turns absent and is unregistered
+ * like any other.
+ *
+ * Disabled by default, see config.yml.
+ *
+ * Anything else which needs the entity calls materialize() first.
+ */
+final class HorseVirtualizer {
+    static final double DEFAULT_RADIUS = 0.0; // Blocks
+    static final double HYSTERESIS = 8.0; // Blocks
+    private final HorsePlugin plugin;
+    @Getter private final double radius; // 0 disables
+    private final List<Player> players = new ArrayList<>();
+    private String[] playerWorlds = new String[16];
+    private double[] playerCoords = new double[32]; // x and z
+    private int playerCount;
+    private World world; // Cached by name during one tick
+    private final Location scratch = new Location(null, 0.0, 0.0, 0.0);
+
+    HorseVirtualizer(HorsePlugin plugin, double radius) {
+        this.plugin = plugin;
+        this.radius = Math.max(0.0, radius);
+    }
+
+    boolean isEnabled() {
+        return this.radius > 0.0;
+    }
+
+    void addPlayer(Player player) {
+        if (!this.players.contains(player)) this.players.add(player);
+    }
+
+    void removePlayer(Player player) {
+        this.players.remove(player);
+    }
+
+    /**
+     * Gather player positions.  Call first thing in the tick.
+     */
+    void begin() {
+        this.world = null;
+        this.playerCount = 0;
+        if (!isEnabled()) return;
+        for (int i = 0; i < this.players.size(); i += 1) {
+            Player player = this.players.get(i);
+            if (this.playerCount == this.playerWorlds.length) {
+                this.playerWorlds = Arrays.copyOf(this.playerWorlds, this.playerCount * 2);
+                this.playerCoords = Arrays.copyOf(this.playerCoords, this.playerCount * 4);
+            }
+            Location location = player.getLocation(this.scratch);
+            this.playerWorlds[this.playerCount] = location.getWorld().getName();
+            this.playerCoords[this.playerCount * 2] = location.getX();
+            this.playerCoords[this.playerCount * 2 + 1] = location.getZ();
+            this.playerCount += 1;
+        }
+    }
+
+    private boolean isPlayerNear(String worldName, double x, double z, double distance) {
+        final double max = distance * distance;
+        for (int i = 0; i < this.playerCount; i += 1) {
+            if (!worldName.equals(this.playerWorlds[i])) continue;
+            double dx = this.playerCoords[i * 2] - x;
+            double dz = this.playerCoords[i * 2 + 1] - z;
+            if (dx * dx + dz * dz <= max) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Virtualize or materialize a horse as players come and go.
+     */
+    void check(SpawnedHorse spawned) {
+        if (spawned.isVirtual()) {
+            HorseData.HorseLocation location = spawned.data.getLocation();
+            if (location == null || !isLoaded(location)) {
+                // Unregistered as absent
+                spawned.virtual = false;
+            } else if (!isEnabled() || isPlayerNear(location.world, location.x, location.z, this.radius)) {
+                materialize(spawned);
+            }
+        } else if (isEnabled() && spawned.isPresent()) {
+            Location location = spawned.getEntity().getLocation(this.scratch);
+            if (isPlayerNear(location.getWorld().getName(), location.getX(), location.getZ(), this.radius + HYSTERESIS)) return;
+            virtualize(spawned);
+        }
+    }
+
+    private boolean isLoaded(HorseData.HorseLocation location) {
+        if (this.world == null || !this.world.getName().equals(location.world)) {
+            this.world = this.plugin.getServer().getWorld(location.world);
+            if (this.world == null) return false;
+        }
+        return this.world.isChunkLoaded(location.cx, location.cz);
+    }
+
+    /**
+     * Store a horse and remove its entity, unless something holds it
+     * in place.
+     *
+     * @return true if the horse is virtual now
+     */
+    boolean virtualize(SpawnedHorse spawned) {
+        if (!spawned.isPresent()) return spawned.isVirtual();
+        AbstractHorse entity = spawned.getEntity();
+        if (spawned.isCrosstied() || spawned.getFollowing() != null) return false;
+        if (entity.isLeashed() || !entity.getPassengers().isEmpty()) return false;
+        spawned.data.storeLocation(this.plugin, entity.getLocation());
+        spawned.data.storeInventory(this.plugin, entity);
+        this.plugin.saveHorse(spawned.data);
+        spawned.setEntity(null);
+        entity.remove();
+        spawned.virtual = true;
+        return true;
+    }
+
+    /**
+     * Spawn the entity of a virtual horse at its stored location.
+     *
+     * @return true if the horse has an entity now
+     */
+    boolean materialize(SpawnedHorse spawned) {
+        if (!spawned.isVirtual()) return spawned.isPresent();
+        HorseData.HorseLocation stored = spawned.data.getLocation();
+        Location location = stored == null ? null : stored.bukkitLocation();
+        if (location == null || !location.getWorld().isChunkLoaded(stored.cx, stored.cz)) return false;
+        spawned.setEntity(this.plugin.spawnHorseEntity(spawned.data, location));
+        return true;
+    }
+}
@@ -0,0 +1,1061 @@
+package net.equestriworlds.horse;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only HorseStorage.  Every change is appended as one
+ * record to the current journal file, and nothing is ever
+ * overwritten in place.  A record is laid out as
+ * `[int length][int crc32][byte type][payload]`, where length and
+ * checksum cover type and payload.
+ *
+ * Only the position of the latest record of each horse is kept in
+ * memory.  A delta from HorseCodec#encodeChanges() is appended as a
+ * HORSE_DELTA record, which is merged over the whole record before it
+ * when read.  After MAX_DELTAS of them, the merged horse is appended
+ * in whole instead, and compaction merges them, too.  Extra data,
+ * brands and enum names are small enough to be kept in memory
+ * entirely.
+ *
+ * Each call to write() appends the whole batch of
+ * HorseDatabaseWriter with one write and syncs the file once (group
+ * commit), so a tick's worth of saves costs one fsync.
+ *
+ * Once the journal outgrows COMPACT_THRESHOLD and the last snapshot,
+ * a new journal is started, and a background thread writes the live
+ * records into a snapshot which replaces all older files.  On startup,
+ * the latest snapshot is read, followed by all later journals in
+ * order.  A torn or corrupt record, such as the last one written
+ * before a crash, ends its file, which is truncated there.
+ *
+ * Files are named `horses.<n>.journal` and `horses.<n>.snapshot`.
+ * Snapshot n contains everything up to and including journal n.
+ *
+ * Thread safe.  Only syncing and the snapshot itself happen outside
+ * the lock.
+ */
+final class JournalHorseStorage implements HorseStorage {
+    static final long COMPACT_THRESHOLD = 4L * 1024L * 1024L; // Bytes
+    private static final int HEADER = 8; // Length and checksum
+    private static final int MAX_RECORD = 64 * 1024 * 1024;
+    private static final byte HORSE = 1;
+    private static final byte EXTRA = 2;
+    private static final byte BRAND = 3;
+    private static final byte BRAND_DELETE = 4;
+    private static final byte NAME = 5;
+    private static final byte HORSE_DELTA = 6;
+    private static final int MAX_DELTAS = 8;
+    private static final Pattern FILE_NAME = Pattern.compile("horses\\.([0-9]+)\\.(journal|snapshot)");
+    private final File folder;
+    private final Logger logger;
+    private final Map<Integer, FileChannel> files = new HashMap<>(); // By file key
+    private final IntHashMap<RecordPosition> horses = new IntHashMap<>();
+    private final Map<Integer, Map<String, String>> extras = new HashMap<>();
+    private final Map<UUID, String> brands = new LinkedHashMap<>();
+    private final Map<String, List<String>> names = new HashMap<>();
+    private int maxId = 0;
+    private int generation = 0; // Number of the current journal
+    private FileChannel journal = null;
+    private long journalSize = 0L;
+    private long snapshotSize = 0L;
+    private Thread compaction = null;
+
+    /**
+     * Where the latest whole record of a horse is, and the deltas
+     * appended since.  See fileKey() and pack().
+     */
+    private static final class RecordPosition {
+        final int id;
+        int file;
+        long offset;
+        long[] deltas; // Null if none, replaced rather than changed
+
+        RecordPosition(int id, int file, long offset) {
+            this.id = id;
+            this.file = file;
+            this.offset = offset;
+        }
+    }
+
+    JournalHorseStorage(File folder, Logger logger) {
+        this.folder = folder;
+        this.logger = logger;
+    }
+
+    /**
+     * Files are keyed so that ordering by key is replay order:
+     * journal n comes before snapshot n, which comes before journal
+     * n + 1.
+     */
+    private static int fileKey(int number, boolean snapshot) {
+        return number * 2 + (snapshot ? 1 : 0);
+    }
+
+    /**
+     * Pack the position of a delta record into one long.
+     */
+    private static long pack(int key, long offset) {
+        return ((long)key << 40) | offset;
+    }
+
+    private File journalFile(int number) {
+        return new File(this.folder, "horses." + number + ".journal");
+    }
+
+    private File snapshotFile(int number) {
+        return new File(this.folder, "horses." + number + ".snapshot");
+    }
+
+    @Override
+    public synchronized void open() throws IOException {
+        if (this.journal != null) throw new IllegalStateException("journal already open");
+        this.folder.mkdirs();
+        File[] list = this.folder.listFiles();
+        if (list == null) throw new IOException("Cannot list " + this.folder);
+        int snapshot = -1;
+        TreeMap<Integer, File> journals = new TreeMap<>();
+        for (File file: list) {
+            if (file.getName().endsWith(".tmp")) {
+                // Unfinished snapshot
+                file.delete();
+                continue;
+            }
+            Matcher matcher = FILE_NAME.matcher(file.getName());
+            if (!matcher.matches()) continue;
+            int number = Integer.parseInt(matcher.group(1));
+            if (matcher.group(2).equals("snapshot")) {
+                snapshot = Math.max(snapshot, number);
+            } else {
+                journals.put(number, file);
+            }
+        }
+        int last = snapshot;
+        if (snapshot >= 0) {
+            this.snapshotSize = replay(snapshotFile(snapshot), fileKey(snapshot, true));
+        }
+        for (Map.Entry<Integer, File> entry: journals.entrySet()) {
+            int number = entry.getKey();
+            last = Math.max(last, number);
+            if (number <= snapshot) {
+                // Already in the snapshot.  Left over by a compaction
+                // which did not get to clean up.
+                entry.getValue().delete();
+                continue;
+            }
+            replay(entry.getValue(), fileKey(number, false));
+        }
+        for (File file: list) {
+            Matcher matcher = FILE_NAME.matcher(file.getName());
+            if (matcher.matches() && matcher.group(2).equals("snapshot") && Integer.parseInt(matcher.group(1)) < snapshot) file.delete();
+        }
+        if (last > snapshot) {
+            // Keep appending to the last journal.
+            this.files.remove(fileKey(last, false)).close();
+            startJournal(last);
+        } else {
+            startJournal(last + 1);
+        }
+    }
+
+    /**
+     * Apply all records of one file, up to the first one which is
+     * incomplete or fails its checksum.  Anything after that is
+     * truncated.
+     *
+     * @return the size of the valid part
+     */
+    private long replay(File file, int key) throws IOException {
+        long offset = 0L;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                byte[] body;
+                try {
+                    int length = in.readInt();
+                    int checksum = in.readInt();
+                    if (length < 1 || length > MAX_RECORD) break;
+                    body = new byte[length];
+                    in.readFully(body);
+                    if (checksum(body) != checksum) break;
+                } catch (EOFException eofe) {
+                    break;
+                }
+                apply(body, key, offset);
+                offset += HEADER + body.length;
+            }
+        }
+        long size = file.length();
+        if (offset < size) {
+            this.logger.warning(file.getName() + ": Dropping " + (size - offset) + " bytes of torn or corrupt records at offset " + offset);
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(offset);
+            }
+        }
+        this.files.put(key, FileChannel.open(file.toPath(), StandardOpenOption.READ));
+        return offset;
+    }
+
+    private void apply(byte[] body, int key, long offset) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        byte type = in.readByte();
+        switch (type) {
+        case HORSE: {
+            int id = in.readInt();
+            RecordPosition position = this.horses.get(id);
+            if (position == null) {
+                this.horses.put(id, new RecordPosition(id, key, offset));
+            } else {
+                position.file = key;
+                position.offset = offset;
+                position.deltas = null;
+            }
+            this.maxId = Math.max(this.maxId, id);
+            break;
+        }
+        case HORSE_DELTA: {
+            int id = in.readInt();
+            RecordPosition position = this.horses.get(id);
+            if (position == null) {
+                this.logger.warning("Dropping changes of unknown horse #" + id + " at offset " + offset);
+            } else {
+                addDelta(position, key, offset);
+            }
+            break;
+        }
+        case EXTRA: {
+            int horseId = in.readInt();
+            String extraKey = readString(in);
+            String value = readString(in);
+            putExtra(horseId, extraKey, value);
+            break;
+        }
+        case BRAND: {
+            UUID owner = new UUID(in.readLong(), in.readLong());
+            this.brands.put(owner, readString(in));
+            break;
+        }
+        case BRAND_DELETE: {
+            this.brands.remove(new UUID(in.readLong(), in.readLong()));
+            break;
+        }
+        case NAME: {
+            String enumType = readString(in);
+            int code = in.readInt();
+            putName(enumType, code, readString(in));
+            break;
+        }
+        default:
+            throw new IOException("Unknown record type " + type + " at offset " + offset);
+        }
+    }
+
+    private static void addDelta(RecordPosition position, int key, long offset) {
+        long[] deltas = position.deltas == null ? new long[1] : Arrays.copyOf(position.deltas, position.deltas.length + 1);
+        deltas[deltas.length - 1] = pack(key, offset);
+        position.deltas = deltas;
+    }
+
+    private void putExtra(int horseId, String key, String value) {
+        Map<String, String> map = this.extras.get(horseId);
+        if (map == null) {
+            map = new HashMap<>();
+            this.extras.put(horseId, map);
+        }
+        map.put(key, value);
+    }
+
+    private void putName(String type, int code, String name) {
+        List<String> list = this.names.get(type);
+        if (list == null) {
+            list = new ArrayList<>();
+            this.names.put(type, list);
+        }
+        while (list.size() <= code) list.add(null);
+        list.set(code, name);
+    }
+
+    private void startJournal(int number) throws IOException {
+        File file = journalFile(number);
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.files.put(fileKey(number, false), channel);
+        this.journal = channel;
+        this.journalSize = channel.size();
+        this.generation = number;
+    }
+
+    @Override
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            thread = this.compaction;
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            for (FileChannel channel: this.files.values()) {
+                try {
+                    channel.close();
+                } catch (IOException ioe) {
+                    this.logger.log(Level.WARNING, "Failed to close journal file", ioe);
+                }
+            }
+            this.files.clear();
+            this.journal = null;
+            this.horses.clear();
+            this.extras.clear();
+            this.brands.clear();
+            this.names.clear();
+        }
+    }
+
+    // --- Appending
+
+    /**
+     * A buffer of whole records, appended with one write.
+     */
+    private static final class Records {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(this.bytes);
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private final DataOutputStream bodyOut = new DataOutputStream(this.body);
+
+        /**
+         * Start a record, returning the stream for its payload.
+         */
+        DataOutputStream begin(byte type) throws IOException {
+            this.body.reset();
+            this.bodyOut.writeByte(type);
+            return this.bodyOut;
+        }
+
+        /**
+         * Finish the record started by begin().
+         *
+         * @return the offset of the record in this buffer
+         */
+        int end() throws IOException {
+            return add(this.body.toByteArray());
+        }
+
+        /**
+         * Add a record body which was read elsewhere.
+         */
+        int add(byte[] record) throws IOException {
+            int offset = this.bytes.size();
+            this.out.writeInt(record.length);
+            this.out.writeInt(checksum(record));
+            this.out.write(record);
+            return offset;
+        }
+
+        int size() {
+            return this.bytes.size();
+        }
+
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(this.bytes.toByteArray());
+        }
+
+        void reset() {
+            this.bytes.reset();
+        }
+    }
+
+    /**
+     * Append records to the current journal.  Call with the lock
+     * held, then sync().
+     *
+     * @return the offset of the buffer in the journal
+     */
+    private long append(Records records) throws IOException {
+        if (this.journal == null) throw new IOException("Journal closed");
+        long offset = this.journalSize;
+        writeFully(this.journal, records.toByteBuffer(), offset);
+        this.journalSize += records.size();
+        return offset;
+    }
+
+    /**
+     * Flush a journal to disk.  Call without the lock held, so readers
+     * need not wait for the disk.  A journal which was closed in the
+     * meantime was compacted into a snapshot, which was synced.
+     */
+    private static void sync(FileChannel channel) throws IOException {
+        try {
+            channel.force(false);
+        } catch (ClosedChannelException cce) {
+            return;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) position += channel.write(buffer, position);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) throw new EOFException();
+            position += read;
+        }
+    }
+
+    private static int checksum(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        return (int)crc.getValue();
+    }
+
+    /**
+     * Put the horse records of a buffer which was just appended at
+     * the given offset of the current journal.
+     */
+    private void putHorses(int[] ids, int[] offsets, boolean[] deltas, int count, long base) {
+        int key = fileKey(this.generation, false);
+        for (int i = 0; i < count; i += 1) {
+            RecordPosition position = this.horses.get(ids[i]);
+            if (deltas[i]) {
+                addDelta(position, key, base + offsets[i]);
+            } else if (position == null) {
+                this.horses.put(ids[i], new RecordPosition(ids[i], key, base + offsets[i]));
+            } else {
+                position.file = key;
+                position.offset = base + offsets[i];
+                position.deltas = null;
+            }
+            this.maxId = Math.max(this.maxId, ids[i]);
+        }
+    }
+
+    // --- Enum Names
+
+    @Override
+    public synchronized Map<String, List<String>> loadNames() {
+        Map<String, List<String>> result = new HashMap<>();
+        for (Map.Entry<String, List<String>> entry: this.names.entrySet()) {
+            result.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+        }
+        return result;
+    }
+
+    @Override
+    public void addNames(String type, int firstCode, List<String> list) throws IOException {
+        FileChannel channel;
+        synchronized (this) {
+            Records records = new Records();
+            int code = firstCode;
+            for (String name: list) {
+                DataOutputStream out = records.begin(NAME);
+                writeString(out, type);
+                out.writeInt(code++);
+                writeString(out, name);
+                records.end();
+            }
+            append(records);
+            code = firstCode;
+            for (String name: list) putName(type, code++, name);
+            channel = this.journal;
+        }
+        sync(channel);
+    }
+
+    // --- Horses
+
+    @Override
+    public int insertHorse(HorseDatabase.HorseRow row) throws IOException {
+        FileChannel channel;
+        int id;
+        synchronized (this) {
+            id = this.maxId + 1;
+            Records records = new Records();
+            writeHorse(records, HORSE, id, row);
+            int offset = records.end();
+            long base = append(records);
+            putHorses(new int[] {id}, new int[] {offset}, new boolean[] {false}, 1, base);
+            channel = this.journal;
+        }
+        sync(channel);
+        return id;
+    }
+
+    @Override
+    public void importHorses(Map<Integer, HorseDatabase.HorseRow> rows, Map<Integer, Map<String, String>> extraRows) throws IOException {
+        if (rows.isEmpty()) return;
+        FileChannel channel;
+        synchronized (this) {
+            for (Integer id: rows.keySet()) {
+                if (this.horses.containsKey(id)) throw new IOException("Horse #" + id + " already exists");
+            }
+            // Extra data go first, so a torn append which keeps a
+            // horse keeps its extra data as well.
+            Records records = new Records();
+            writeExtras(records, extraRows);
+            writeHorses(records, rows);
+            putExtras(extraRows);
+            channel = this.journal;
+        }
+        sync(channel);
+    }
+
+    @Override
+    public void write(Map<Integer, HorseDatabase.HorseRow> rows, Map<Integer, Map<String, String>> extraRows) throws IOException {
+        if (rows.isEmpty() && extraRows.isEmpty()) return;
+        FileChannel channel;
+        synchronized (this) {
+            if (!rows.isEmpty()) writeHorses(new Records(), rows);
+            if (!extraRows.isEmpty()) {
+                Records records = new Records();
+                writeExtras(records, extraRows);
+                append(records);
+                putExtras(extraRows);
+            }
+            channel = this.journal;
+            maybeCompact();
+        }
+        sync(channel);
+    }
+
+    /**
+     * Append horse records, after any records already in the buffer,
+     * and point to them.  Deltas of horses which already have
+     * MAX_DELTAS are merged and appended in whole.  Call with the
+     * lock held.
+     */
+    private void writeHorses(Records records, Map<Integer, HorseDatabase.HorseRow> rows) throws IOException {
+        int[] ids = new int[rows.size()];
+        int[] offsets = new int[rows.size()];
+        boolean[] deltas = new boolean[rows.size()];
+        int i = 0;
+        for (Map.Entry<Integer, HorseDatabase.HorseRow> row: rows.entrySet()) {
+            HorseDatabase.HorseRow value = row.getValue();
+            boolean delta = value.isDelta();
+            if (delta) {
+                RecordPosition position = this.horses.get(row.getKey());
+                if (position == null) {
+                    this.logger.warning("Dropping changes of unknown horse #" + row.getKey());
+                    continue;
+                }
+                if (position.deltas != null && position.deltas.length >= MAX_DELTAS) {
+                    value = value.withData(HorseCodec.merge(readHorse(position).getData(), value.getData()));
+                    delta = false;
+                }
+            }
+            writeHorse(records, delta ? HORSE_DELTA : HORSE, row.getKey(), value);
+            ids[i] = row.getKey();
+            offsets[i] = records.end();
+            deltas[i] = delta;
+            i += 1;
+        }
+        long base = append(records);
+        putHorses(ids, offsets, deltas, i, base);
+    }
+
+    private static void writeExtras(Records records, Map<Integer, Map<String, String>> extraRows) throws IOException {
+        for (Map.Entry<Integer, Map<String, String>> row: extraRows.entrySet()) {
+            for (Map.Entry<String, String> value: row.getValue().entrySet()) {
+                DataOutputStream out = records.begin(EXTRA);
+                out.writeInt(row.getKey());
+                writeString(out, value.getKey());
+                writeString(out, value.getValue());
+                records.end();
+            }
+        }
+    }
+
+    /**
+     * Take over extra data once they were appended.  Call with the
+     * lock held.
+     */
+    private void putExtras(Map<Integer, Map<String, String>> extraRows) {
+        for (Map.Entry<Integer, Map<String, String>> row: extraRows.entrySet()) {
+            for (Map.Entry<String, String> value: row.getValue().entrySet()) {
+                putExtra(row.getKey(), value.getKey(), value.getValue());
+            }
+        }
+    }
+
+    /**
+     * Begin a horse record of the given type.  The caller ends it.
+     */
+    private static void writeHorse(Records records, byte type, int id, HorseDatabase.HorseRow row) throws IOException {
+        DataOutputStream out = records.begin(type);
+        out.writeInt(id);
+        out.writeInt(row.getData().length);
+        out.write(row.getData());
+        writeString(out, row.getOwner());
+        writeString(out, row.getWorld());
+        writeInteger(out, row.getChunkX());
+        writeInteger(out, row.getChunkZ());
+        writeString(out, row.getBreed());
+        writeString(out, row.getGender());
+        writeString(out, row.getAge());
+        writeString(out, row.getBreedingStage());
+        out.writeLong(row.getLastSeen());
+    }
+
+    /**
+     * Read the latest state of a horse.  Call with the lock held.
+     */
+    private HorseDatabase.HorseRow readHorse(RecordPosition position) throws IOException {
+        return readHorse(position.id, position.file, position.offset, position.deltas);
+    }
+
+    /**
+     * Read a whole horse record and merge the given deltas on top.
+     * The columns are those of the last record.  Call with the lock
+     * held.
+     */
+    private HorseDatabase.HorseRow readHorse(int id, int key, long offset, long[] deltas) throws IOException {
+        return readHorse(this.files, id, key, offset, deltas);
+    }
+
+    private static HorseDatabase.HorseRow readHorse(Map<Integer, FileChannel> channels, int id, int key, long offset, long[] deltas) throws IOException {
+        HorseDatabase.HorseRow result = readHorse(id, HORSE, readRecord(channels, key, offset));
+        if (deltas == null) return result;
+        for (long delta: deltas) {
+            HorseDatabase.HorseRow row = readHorse(id, HORSE_DELTA, readRecord(channels, (int)(delta >>> 40), delta & ((1L << 40) - 1L)));
+            result = row.withData(HorseCodec.merge(result.getData(), row.getData()));
+        }
+        return result;
+    }
+
+    private static HorseDatabase.HorseRow readHorse(int id, byte type, byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        if (in.readByte() != type || in.readInt() != id) throw new IOException("Horse #" + id + ": Record mismatch");
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        return new HorseDatabase.HorseRow(data,
+                                          readString(in),
+                                          readString(in),
+                                          readInteger(in),
+                                          readInteger(in),
+                                          readString(in),
+                                          readString(in),
+                                          readString(in),
+                                          readString(in),
+                                          in.readLong());
+    }
+
+    /**
+     * Read and verify the body of one record.  Call with the lock
+     * held.
+     */
+    private byte[] readRecord(int key, long offset) throws IOException {
+        return readRecord(this.files, key, offset);
+    }
+
+    private static byte[] readRecord(Map<Integer, FileChannel> channels, int key, long offset) throws IOException {
+        FileChannel channel = channels.get(key);
+        if (channel == null) throw new IOException("Missing file " + key);
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        readFully(channel, header, offset);
+        header.flip();
+        int length = header.getInt();
+        int checksum = header.getInt();
+        if (length < 1 || length > MAX_RECORD) throw new IOException("Bad record length at offset " + offset);
+        ByteBuffer body = ByteBuffer.allocate(length);
+        readFully(channel, body, offset + HEADER);
+        if (checksum(body.array()) != checksum) throw new IOException("Checksum mismatch at offset " + offset);
+        return body.array();
+    }
+
+    @Override
+    public synchronized void readHorses(HorseDatabase.HorseRowConsumer consumer) throws IOException {
+        for (int id: sortedIds()) {
+            consumer.accept(id, readHorse(this.horses.get(id)).getData());
+        }
+    }
+
+    private int[] sortedIds() {
+        int[] result = new int[this.horses.size()];
+        int[] index = {0};
+        this.horses.forEachValue(p -> result[index[0]++] = p.id);
+        Arrays.sort(result);
+        return result;
+    }
+
+    @Override
+    public synchronized Object loadHorse(int id) throws IOException {
+        RecordPosition position = this.horses.get(id);
+        if (position == null) return null;
+        return readHorse(position).getData();
+    }
+
+    @Override
+    public synchronized Map<Integer, Object> loadHorses(Collection<Integer> horseIds) {
+        Map<Integer, Object> result = new HashMap<>();
+        for (Integer id: horseIds) {
+            RecordPosition position = this.horses.get(id);
+            if (position == null) continue;
+            try {
+                result.put(id, readHorse(position).getData());
+            } catch (IOException ioe) {
+                this.logger.log(Level.WARNING, "Failed to read horse #" + id, ioe);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Every record has its columns, so there is nothing to do.
+     */
+    @Override
+    public int backfillColumns(HorseRowMapper mapper) {
+        return 0;
+    }
+
+    /**
+     * There are no indexes, so this reads every horse.
+     */
+    @Override
+    public synchronized Map<String, Integer> countHorsesBy(String column) throws IOException {
+        if (!HorseDatabase.REPORT_COLUMNS.contains(column)) throw new IllegalArgumentException("Not a report column: " + column);
+        Map<String, Integer> counts = new HashMap<>();
+        for (int id: sortedIds()) {
+            HorseDatabase.HorseRow row = readHorse(this.horses.get(id));
+            String value;
+            switch (column) {
+            case "owner": value = row.getOwner(); break;
+            case "world": value = row.getWorld(); break;
+            case "breed": value = row.getBreed(); break;
+            case "gender": value = row.getGender(); break;
+            case "age": value = row.getAge(); break;
+            case "breeding_stage": value = row.getBreedingStage(); break;
+            default: throw new IllegalArgumentException("Not a report column: " + column);
+            }
+            Integer count = counts.get(value);
+            counts.put(value, count == null ? 1 : count + 1);
+        }
+        List<Map.Entry<String, Integer>> entries = new ArrayList<>(counts.entrySet());
+        entries.sort((a, b) -> Integer.compare(b.getValue(), a.getValue()));
+        Map<String, Integer> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Integer> entry: entries) result.put(entry.getKey(), entry.getValue());
+        return result;
+    }
+
+    /**
+     * The end of the log: the current journal and its size.  Both
+     * only ever grow, unless a torn record is dropped on startup, in
+     * which case nothing after it was ever seen anyway.
+     */
+    @Override
+    public synchronized long getWriteSequence() {
+        return ((long)fileKey(this.generation, false) << 40) | this.journalSize;
+    }
+
+    /**
+     * The positions of all horses are captured with the lock held,
+     * along with channels of their own to all files, so a compaction
+     * may delete files meanwhile.  Records are read without the lock.
+     */
+    @Override
+    public void exportAll(ExportConsumer consumer) throws IOException {
+        int[] ids;
+        int[] keys;
+        long[] offsets;
+        long[][] deltas;
+        List<HorseBrand> brandCopy;
+        Map<Integer, Map<String, String>> extraCopy;
+        Map<Integer, FileChannel> channels = new HashMap<>();
+        try {
+            synchronized (this) {
+                ids = sortedIds();
+                keys = new int[ids.length];
+                offsets = new long[ids.length];
+                deltas = new long[ids.length][];
+                for (int i = 0; i < ids.length; i += 1) {
+                    RecordPosition position = this.horses.get(ids[i]);
+                    keys[i] = position.file;
+                    offsets[i] = position.offset;
+                    deltas[i] = position.deltas;
+                }
+                brandCopy = loadBrands();
+                extraCopy = copyExtras();
+                for (Integer key: this.files.keySet()) {
+                    File file = (key & 1) != 0 ? snapshotFile(key / 2) : journalFile(key / 2);
+                    channels.put(key, FileChannel.open(file.toPath(), StandardOpenOption.READ));
+                }
+            }
+            for (HorseBrand brand: brandCopy) consumer.brand(brand);
+            for (int i = 0; i < ids.length; i += 1) {
+                HorseDatabase.HorseRow row = readHorse(channels, ids[i], keys[i], offsets[i], deltas[i]);
+                Map<String, String> extra = extraCopy.remove(ids[i]);
+                consumer.horse(ids[i], row.getData(), extra == null ? new HashMap<>() : extra);
+            }
+        } finally {
+            for (FileChannel channel: channels.values()) channel.close();
+        }
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        return this.horses.isEmpty() && this.extras.isEmpty() && this.brands.isEmpty();
+    }
+
+    // --- Extra Data
+
+    @Override
+    public synchronized Map<String, String> loadExtraData(int horseId) {
+        Map<String, String> values = this.extras.get(horseId);
+        return values == null ? new HashMap<>() : new HashMap<>(values);
+    }
+
+    @Override
+    public synchronized Map<Integer, Map<String, String>> loadExtraData(Collection<Integer> horseIds) {
+        Map<Integer, Map<String, String>> result = new HashMap<>();
+        for (Integer id: horseIds) result.put(id, loadExtraData(id));
+        return result;
+    }
+
+    /**
+     * A copy of all extra data, for exportAll() and compaction.
+     */
+    private synchronized Map<Integer, Map<String, String>> copyExtras() {
+        Map<Integer, Map<String, String>> result = new LinkedHashMap<>();
+        for (Map.Entry<Integer, Map<String, String>> entry: this.extras.entrySet()) {
+            result.put(entry.getKey(), new HashMap<>(entry.getValue()));
+        }
+        return result;
+    }
+
+    // --- Brands
+
+    @Override
+    public synchronized List<HorseBrand> loadBrands() {
+        List<HorseBrand> result = new ArrayList<>(this.brands.size());
+        for (Map.Entry<UUID, String> entry: this.brands.entrySet()) {
+            result.add(new HorseBrand(entry.getKey(), entry.getValue()));
+        }
+        return result;
+    }
+
+    @Override
+    public boolean saveBrand(HorseBrand brand) throws IOException {
+        FileChannel channel;
+        synchronized (this) {
+            if (this.brands.containsKey(brand.getOwner())) return false;
+            Records records = new Records();
+            DataOutputStream out = records.begin(BRAND);
+            out.writeLong(brand.getOwner().getMostSignificantBits());
+            out.writeLong(brand.getOwner().getLeastSignificantBits());
+            writeString(out, brand.getFormat());
+            records.end();
+            append(records);
+            this.brands.put(brand.getOwner(), brand.getFormat());
+            channel = this.journal;
+        }
+        sync(channel);
+        return true;
+    }
+
+    @Override
+    public boolean deleteBrand(UUID owner) throws IOException {
+        FileChannel channel;
+        synchronized (this) {
+            if (!this.brands.containsKey(owner)) return false;
+            Records records = new Records();
+            DataOutputStream out = records.begin(BRAND_DELETE);
+            out.writeLong(owner.getMostSignificantBits());
+            out.writeLong(owner.getLeastSignificantBits());
+            records.end();
+            append(records);
+            this.brands.remove(owner);
+            channel = this.journal;
+        }
+        sync(channel);
+        return true;
+    }
+
+    // --- Compaction
+
+    /**
+     * Start a compaction if the journal is big enough and none is
+     * running.  Call with the lock held.  The live state is captured
+     * here, and the journal switched, so the snapshot contains
+     * exactly the journals up to the current one.
+     */
+    private void maybeCompact() throws IOException {
+        if (this.compaction != null) return;
+        if (this.journalSize < Math.max(COMPACT_THRESHOLD, this.snapshotSize)) return;
+        final int number = this.generation;
+        final int[] ids = sortedIds();
+        final int[] keys = new int[ids.length];
+        final long[] offsets = new long[ids.length];
+        final long[][] deltas = new long[ids.length][];
+        for (int i = 0; i < ids.length; i += 1) {
+            RecordPosition position = this.horses.get(ids[i]);
+            keys[i] = position.file;
+            offsets[i] = position.offset;
+            deltas[i] = position.deltas;
+        }
+        final Map<String, List<String>> nameCopy = loadNames();
+        final List<HorseBrand> brandCopy = loadBrands();
+        final Map<Integer, Map<String, String>> extraCopy = copyExtras();
+        startJournal(number + 1);
+        this.compaction = new Thread(() -> compact(number, ids, keys, offsets, deltas, nameCopy, brandCopy, extraCopy), "Horse Journal Compaction");
+        this.compaction.setDaemon(true);
+        this.compaction.start();
+    }
+
+    private void compact(int number, int[] ids, int[] keys, long[] offsets, long[][] deltas,
+                         Map<String, List<String>> nameCopy, List<HorseBrand> brandCopy, Map<Integer, Map<String, String>> extraCopy) {
+        File tmp = new File(this.folder, snapshotFile(number).getName() + ".tmp");
+        long[] newOffsets = new long[ids.length];
+        long size = 0L;
+        try {
+            try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                Records records = new Records();
+                for (Map.Entry<String, List<String>> entry: nameCopy.entrySet()) {
+                    for (int code = 0; code < entry.getValue().size(); code += 1) {
+                        if (entry.getValue().get(code) == null) continue;
+                        DataOutputStream record = records.begin(NAME);
+                        writeString(record, entry.getKey());
+                        record.writeInt(code);
+                        writeString(record, entry.getValue().get(code));
+                        records.end();
+                    }
+                }
+                for (HorseBrand brand: brandCopy) {
+                    DataOutputStream record = records.begin(BRAND);
+                    record.writeLong(brand.getOwner().getMostSignificantBits());
+                    record.writeLong(brand.getOwner().getLeastSignificantBits());
+                    writeString(record, brand.getFormat());
+                    records.end();
+                }
+                for (int i = 0; i < ids.length; i += 1) {
+                    if (deltas[i] == null) {
+                        byte[] body;
+                        synchronized (this) {
+                            body = readRecord(keys[i], offsets[i]);
+                        }
+                        newOffsets[i] = size + records.add(body);
+                    } else {
+                        HorseDatabase.HorseRow row;
+                        synchronized (this) {
+                            row = readHorse(ids[i], keys[i], offsets[i], deltas[i]);
+                        }
+                        writeHorse(records, HORSE, ids[i], row);
+                        newOffsets[i] = size + records.end();
+                    }
+                    if (records.size() >= 1024 * 1024) {
+                        writeFully(out, records.toByteBuffer(), size);
+                        size += records.size();
+                        records.reset();
+                    }
+                }
+                for (Map.Entry<Integer, Map<String, String>> row: extraCopy.entrySet()) {
+                    for (Map.Entry<String, String> value: row.getValue().entrySet()) {
+                        DataOutputStream record = records.begin(EXTRA);
+                        record.writeInt(row.getKey());
+                        writeString(record, value.getKey());
+                        writeString(record, value.getValue());
+                        records.end();
+                    }
+                }
+                writeFully(out, records.toByteBuffer(), size);
+                size += records.size();
+                out.force(true);
+            }
+            Files.move(tmp.toPath(), snapshotFile(number).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ioe) {
+            this.logger.log(Level.SEVERE, "Journal compaction failed", ioe);
+            tmp.delete();
+            synchronized (this) {
+                this.compaction = null;
+            }
+            return;
+        }
+        synchronized (this) {
+            try {
+                int snapshotKey = fileKey(number, true);
+                this.files.put(snapshotKey, FileChannel.open(snapshotFile(number).toPath(), StandardOpenOption.READ));
+                for (int i = 0; i < ids.length; i += 1) {
+                    RecordPosition position = this.horses.get(ids[i]);
+                    if (position == null || position.file != keys[i] || position.offset != offsets[i]) continue; // Newer
+                    position.file = snapshotKey;
+                    position.offset = newOffsets[i];
+                    // Keep deltas appended since, which are in the
+                    // current journal.
+                    int merged = deltas[i] == null ? 0 : deltas[i].length;
+                    position.deltas = position.deltas == null || position.deltas.length == merged
+                        ? null
+                        : Arrays.copyOfRange(position.deltas, merged, position.deltas.length);
+                }
+                for (Integer key: new ArrayList<>(this.files.keySet())) {
+                    if (key >= snapshotKey) continue;
+                    this.files.remove(key).close();
+                    boolean snapshot = (key & 1) != 0;
+                    File file = snapshot ? snapshotFile(key / 2) : journalFile(key / 2);
+                    file.delete();
+                }
+                this.snapshotSize = size;
+            } catch (IOException ioe) {
+                this.logger.log(Level.SEVERE, "Journal compaction failed", ioe);
+            } finally {
+                this.compaction = null;
+            }
+        }
+    }
+
+    // --- Encoding
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeInteger(DataOutputStream out, Integer value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) out.writeInt(value);
+    }
+
+    private static Integer readInteger(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readInt() : null;
+    }
+}
@@ -0,0 +1,137 @@
+package net.equestriworlds.horse;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Minimal hash map with primitive long keys, so chunk keys need not
+ * be boxed on every lookup.  Open addressing with linear probing.
+ * Null values are not permitted; a null value marks an empty slot.
+ *
+ * Not thread safe.
+ */
+final class LongHashMap<V> {
+    private static final int MIN_CAPACITY = 16;
+    private long[] keys;
+    private Object[] values;
+    private int size;
+    private int mask;
+
+    LongHashMap() {
+        this(MIN_CAPACITY);
+    }
+
+    LongHashMap(int expected) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * 3 < expected * 4) capacity <<= 1;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        this.keys = new long[capacity];
+        this.values = new Object[capacity];
+        this.mask = capacity - 1;
+    }
+
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int)key;
+    }
+
+    private int indexOf(long key) {
+        int i = hash(key) & this.mask;
+        while (this.values[i] != null) {
+            if (this.keys[i] == key) return i;
+            i = (i + 1) & this.mask;
+        }
+        return -1;
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    boolean containsKey(long key) {
+        return indexOf(key) >= 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(long key) {
+        int i = indexOf(key);
+        return i < 0 ? null : (V)this.values[i];
+    }
+
+    @SuppressWarnings("unchecked")
+    V put(long key, V value) {
+        if (value == null) throw new NullPointerException("value cannot be null");
+        int i = hash(key) & this.mask;
+        while (this.values[i] != null) {
+            if (this.keys[i] == key) {
+                V old = (V)this.values[i];
+                this.values[i] = value;
+                return old;
+            }
+            i = (i + 1) & this.mask;
+        }
+        this.keys[i] = key;
+        this.values[i] = value;
+        this.size += 1;
+        if (this.size * 4 > this.keys.length * 3) rehash(this.keys.length << 1);
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    V remove(long key) {
+        int i = indexOf(key);
+        if (i < 0) return null;
+        V old = (V)this.values[i];
+        // Shift following entries of the same probe sequence back
+        // so lookups never stop at the freed slot.
+        int gap = i;
+        int j = i;
+        while (true) {
+            j = (j + 1) & this.mask;
+            if (this.values[j] == null) break;
+            int home = hash(this.keys[j]) & this.mask;
+            if (((j - home) & this.mask) >= ((j - gap) & this.mask)) {
+                this.keys[gap] = this.keys[j];
+                this.values[gap] = this.values[j];
+                gap = j;
+            }
+        }
+        this.values[gap] = null;
+        this.size -= 1;
+        return old;
+    }
+
+    void clear() {
+        Arrays.fill(this.values, null);
+        this.size = 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    void forEachValue(Consumer<? super V> consumer) {
+        for (Object value: this.values) {
+            if (value != null) consumer.accept((V)value);
+        }
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = this.keys;
+        Object[] oldValues = this.values;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i += 1) {
+            if (oldValues[i] == null) continue;
+            int j = hash(oldKeys[i]) & this.mask;
+            while (this.values[j] != null) j = (j + 1) & this.mask;
+            this.keys[j] = oldKeys[i];
+            this.values[j] = oldValues[i];
+        }
+    }
+}
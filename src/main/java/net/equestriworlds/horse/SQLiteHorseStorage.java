@@ -0,0 +1,784 @@
+package net.equestriworlds.horse;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The default HorseStorage, one SQLite file with the tables `horses`,
+ * `extra`, `brands`, `enum_names` and `meta`.
+ *
+ * A whole horse goes into the `data` column.  A delta from
+ * HorseCodec#encodeChanges() only sets the columns of its field
+ * groups, see GROUP_COLUMNS, which are merged over `data` when the
+ * horse is read.  The next whole horse clears them again.
+ *
+ * The main thread uses a cached connection of its own, which gives up
+ * on locks early and retries, see writeOnMain().  write() runs on
+ * HorseDatabaseWriter with another one, importHorses() opens one per
+ * call, and async readers borrow one from HorseConnections.
+ * SQLExceptions are passed on wrapped in IOExceptions.
+ */
+final class SQLiteHorseStorage implements HorseStorage {
+    private static final String SQL_SAVE_EXTRA = "INSERT INTO `extra` (`horse_id`, `key`, `data`) VALUES (?, ?, ?)";
+    /**
+     * Queryable columns of the horses table, copied from the HorseData
+     * in the `data` column whenever a horse is written.  Names and
+     * types, in the order of bindColumns().
+     */
+    private static final String[][] HORSE_COLUMNS = {
+        {"owner", "VARCHAR(40)"},
+        {"world", "VARCHAR(255)"},
+        {"chunk_x", "INTEGER"},
+        {"chunk_z", "INTEGER"},
+        {"breed", "VARCHAR(40)"},
+        {"gender", "VARCHAR(40)"},
+        {"age", "VARCHAR(40)"},
+        {"breeding_stage", "VARCHAR(40)"},
+        {"last_seen", "INTEGER"}
+    };
+    /**
+     * Field groups of HorseCodec which were written as deltas, by
+     * group.
+     */
+    private static final String[] GROUP_COLUMNS = {"data_identity", "data_vitals", "data_location", "data_inventory", "data_access"};
+    private static final String SQL_SELECT_DATA;
+    private static final String SQL_INSERT_HORSE;
+    private static final String SQL_IMPORT_HORSE;
+    private static final String SQL_UPDATE_HORSE;
+    private static final String SQL_UPDATE_COLUMNS;
+    private static final String[] SQL_UPDATE_GROUPS = new String[HorseCodec.ALL_GROUPS + 1]; // By group mask
+    private static final int MAIN_ATTEMPTS = 5; // See writeOnMain()
+    private static final String SQL_BUMP_SEQUENCE = "UPDATE `meta` SET `value` = `value` + 1 WHERE `key` = 'write_sequence'";
+    private final File file;
+    private final Logger logger;
+    private final HorseConnections connections;
+    private StatementCache cachedStatements = null;
+    private StatementCache writerStatements = null; // HorseDatabaseWriter
+
+    static {
+        StringBuilder names = new StringBuilder();
+        StringBuilder values = new StringBuilder();
+        StringBuilder assignments = new StringBuilder();
+        for (String[] column: HORSE_COLUMNS) {
+            names.append(", `").append(column[0]).append("`");
+            values.append(", ?");
+            assignments.append(", `").append(column[0]).append("` = ?");
+        }
+        StringBuilder clearGroups = new StringBuilder();
+        StringBuilder selectGroups = new StringBuilder();
+        for (String column: GROUP_COLUMNS) {
+            clearGroups.append(", `").append(column).append("` = NULL");
+            selectGroups.append(", `").append(column).append("`");
+        }
+        SQL_SELECT_DATA = "SELECT `id`, `data`" + selectGroups + " FROM `horses`";
+        SQL_INSERT_HORSE = "INSERT INTO `horses` (`created`, `data`" + names + ") VALUES (DATETIME('NOW'), ?" + values + ")";
+        SQL_IMPORT_HORSE = "INSERT INTO `horses` (`id`, `created`, `data`" + names + ") VALUES (?, DATETIME('NOW'), ?" + values + ")";
+        SQL_UPDATE_HORSE = "UPDATE `horses` SET `data` = ?" + clearGroups + assignments + " WHERE `id` = ?";
+        SQL_UPDATE_COLUMNS = "UPDATE `horses` SET " + assignments.substring(2) + " WHERE `id` = ?";
+        for (int mask = 1; mask < HorseCodec.ALL_GROUPS; mask += 1) {
+            StringBuilder groups = new StringBuilder();
+            for (int group = 0; group < HorseCodec.GROUPS; group += 1) {
+                if ((mask & (1 << group)) != 0) groups.append(", `").append(GROUP_COLUMNS[group]).append("` = ?");
+            }
+            SQL_UPDATE_GROUPS[mask] = "UPDATE `horses` SET " + groups.substring(2) + assignments + " WHERE `id` = ?";
+        }
+    }
+
+    SQLiteHorseStorage(File file, Logger logger) {
+        this.file = file;
+        this.logger = logger;
+        this.connections = new HorseConnections(file);
+    }
+
+    /**
+     * Get the statement cache of the main thread connection,
+     * reconnecting if it was closed.  A local SQLite connection does
+     * not go stale, so there is no need for a validity check on every
+     * call.
+     */
+    private StatementCache getStatements() throws SQLException {
+        if (this.cachedStatements == null || this.cachedStatements.getConnection().isClosed()) {
+            if (this.cachedStatements != null) this.cachedStatements.close();
+            this.cachedStatements = new StatementCache(this.connections.openWriter(HorseConnections.MAIN_BUSY_TIMEOUT));
+        }
+        return this.cachedStatements;
+    }
+
+    @Override
+    public void open() throws IOException {
+        this.file.getParentFile().mkdirs();
+        try (Statement statement = getStatements().getConnection().createStatement()) {
+            String sql;
+            sql = "CREATE TABLE IF NOT EXISTS `horses` ("
+                + "`id` INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + "`created` DATETIME NOT NULL, "
+                + "`data` TEXT"
+                + ")";
+            statement.execute(sql);
+            // Add the queryable columns to older tables.  Their rows
+            // are filled in by backfillColumns().
+            Set<String> columns = new HashSet<>();
+            try (ResultSet row = statement.executeQuery("PRAGMA table_info(`horses`)")) {
+                while (row.next()) columns.add(row.getString("name"));
+            }
+            for (String[] column: HORSE_COLUMNS) {
+                if (columns.contains(column[0])) continue;
+                statement.execute("ALTER TABLE `horses` ADD COLUMN `" + column[0] + "` " + column[1]);
+            }
+            for (String column: GROUP_COLUMNS) {
+                if (columns.contains(column)) continue;
+                statement.execute("ALTER TABLE `horses` ADD COLUMN `" + column + "` BLOB");
+            }
+            statement.execute("CREATE INDEX IF NOT EXISTS `horses_owner` ON `horses` (`owner`)");
+            statement.execute("CREATE INDEX IF NOT EXISTS `horses_chunk` ON `horses` (`world`, `chunk_x`, `chunk_z`)");
+            statement.execute("CREATE INDEX IF NOT EXISTS `horses_breed` ON `horses` (`breed`)");
+            sql = "CREATE TABLE IF NOT EXISTS `brands` ("
+                + "`id` INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + "`created` DATETIME NOT NULL, "
+                + "`owner` VARCHAR(40) NOT NULL UNIQUE, "
+                + "`format` VARCHAR(255) NOT NULL"
+                + ")";
+            statement.execute(sql);
+            sql = "CREATE TABLE IF NOT EXISTS `extra` ("
+                + "`id` INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + "`horse_id` INTEGER NOT NULL, "
+                + "`key` VARCHAR(40) NOT NULL, "
+                + "`data` TEXT, "
+                + "CONSTRAINT `unique_key` UNIQUE (`horse_id`, `key`) ON CONFLICT REPLACE)";
+            statement.execute(sql);
+            sql = "CREATE TABLE IF NOT EXISTS `enum_names` ("
+                + "`type` VARCHAR(40) NOT NULL, "
+                + "`code` INTEGER NOT NULL, "
+                + "`name` VARCHAR(40) NOT NULL, "
+                + "PRIMARY KEY (`type`, `code`))";
+            statement.execute(sql);
+            sql = "CREATE TABLE IF NOT EXISTS `meta` ("
+                + "`key` VARCHAR(40) PRIMARY KEY, "
+                + "`value` INTEGER NOT NULL)";
+            statement.execute(sql);
+            statement.execute("INSERT OR IGNORE INTO `meta` (`key`, `value`) VALUES ('write_sequence', 0)");
+        } catch (SQLException sqle) {
+            throw new IOException(sqle);
+        }
+    }
+
+    @Override
+    public void close() {
+        this.connections.close();
+        if (this.writerStatements != null) {
+            this.writerStatements.close();
+            this.writerStatements = null;
+        }
+        if (this.cachedStatements != null) {
+            this.cachedStatements.close();
+            this.cachedStatements = null;
+        }
+    }
+
+    // --- Enum Names
+
+    /**
+     * On a pooled reader, so conversions may call it from any thread.
+     */
+    @Override
+    public Map<String, List<String>> loadNames() throws IOException {
+        try {
+            return this.connections.read(connection -> {
+                    Map<String, List<String>> result = new HashMap<>();
+                    try (Statement statement = connection.createStatement();
+                         ResultSet row = statement.executeQuery("SELECT `type`, `name` FROM `enum_names` ORDER BY `type`, `code`")) {
+                        while (row.next()) {
+                            String type = row.getString("type");
+                            List<String> names = result.get(type);
+                            if (names == null) {
+                                names = new ArrayList<>();
+                                result.put(type, names);
+                            }
+                            names.add(row.getString("name"));
+                        }
+                    }
+                    return result;
+                });
+        } catch (SQLException sqle) {
+            throw new IOException(sqle);
+        }
+    }
+
+    @Override
+    public void addNames(String type, int firstCode, List<String> names) throws IOException {
+        try {
+            writeOnMain(statements -> {
+                    PreparedStatement statement = statements.prepare("INSERT INTO `enum_names` (`type`, `code`, `name`) VALUES (?, ?, ?)");
+                    inTransaction(statements.getConnection(), statement, () -> {
+                            int code = firstCode;
+                            for (String name: names) {
+                                statement.setString(1, type);
+                                statement.setInt(2, code++);
+                                statement.setString(3, name);
+                                statement.addBatch();
+                            }
+                            statement.executeBatch();
+                        });
+                    return null;
+                });
+        } catch (SQLException sqle) {
+            throw new IOException(sqle);
+        }
+    }
+
+    // --- Horses
+
+    @Override
+    public int insertHorse(HorseDatabase.HorseRow row) throws IOException {
+        try {
+            return writeOnMain(statements -> {
+                    PreparedStatement statement = statements.prepare(SQL_INSERT_HORSE, Statement.RETURN_GENERATED_KEYS);
+                    int[] id = new int[1];
+                    inTransaction(statements.getConnection(), statement, () -> {
+                            statement.setBytes(1, row.getData());
+                            bindColumns(statement, 2, row);
+                            int ret = statement.executeUpdate();
+                            if (ret != 1) throw new SQLException("Failed to save horse");
+                            try (ResultSet result = statement.getGeneratedKeys()) {
+                                if (!result.next()) throw new SQLException("Failed to save horse");
+                                id[0] = result.getInt(1);
+                            }
+                            statements.prepare(SQL_BUMP_SEQUENCE).executeUpdate();
+                        });
+                    return id[0];
+                });
+        } catch (SQLException sqle) {
+            throw new IOException(sqle);
+        }
+    }
+
+    @Override
+    public void importHorses(Map<Integer, HorseDatabase.HorseRow> rows, Map<Integer, Map<String, String>> extras) throws IOException {
+        if (rows.isEmpty()) return;
+        try (StatementCache statements = new StatementCache(this.connections.openWriter())) {
+            PreparedStatement statement = statements.prepare(SQL_IMPORT_HORSE);
+            PreparedStatement extraStatement = statements.prepare(SQL_SAVE_EXTRA);
+            inTransaction(statements.getConnection(), statement, () -> {
+                    for (Map.Entry<Integer, HorseDatabase.HorseRow> row: rows.entrySet()) {
+                        statement.setInt(1, row.getKey());
+                        statement.setBytes(2, row.getValue().getData());
+                        bindColumns(statement, 3, row.getValue());
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                    if (!extras.isEmpty()) {
+                        try {
+                            for (Map.Entry<Integer, Map<String, String>> row: extras.entrySet()) {
+                                for (Map.Entry<String, String> value: row.getValue().entrySet()) {
+                                    extraStatement.setInt(1, row.getKey());
+                                    extraStatement.setString(2, value.getKey());
+                                    extraStatement.setString(3, value.getValue());
+                                    extraStatement.addBatch();
+                                }
+                            }
+                            extraStatement.executeBatch();
+                        } catch (SQLException sqle) {
+                            extraStatement.clearBatch();
+                            throw sqle;
+                        }
+                    }
+                    statements.prepare(SQL_BUMP_SEQUENCE).executeUpdate();
+                });
+        } catch (SQLException sqle) {
+            throw new IOException(sqle);
+        }
+    }
+
+    /**
+     * Bind the queryable columns in the order of HORSE_COLUMNS.
+     *
+     * @return the next parameter index
+     */
+    private static int bindColumns(PreparedStatement statement, int index, HorseDatabase.HorseRow row) throws SQLException {
+        statement.setString(index++, row.getOwner());
+        statement.setString(index++, row.getWorld());
+        statement.setObject(index++, row.getChunkX());
+        statement.setObject(index++, row.getChunkZ());
+        statement.setString(index++, row.getBreed());
+        statement.setString(index++, row.getGender());
+        statement.setString(index++, row.getAge());
+        statement.setString(index++, row.getBreedingStage());
+        statement.setLong(index++, row.getLastSeen());
+        return index;
+    }
+
+    /**
+     * Write horses and extra data in one transaction, on the writer
+     * connection.  One transaction means the database file is synced
+     * once per call rather than once per row.  Deltas are batched by
+     * the groups they contain, so each batch uses one statement.
+     * Failures other than busy ones drop the connection, so the next
+     * attempt starts with a fresh one.
+     */
+    @Override
+    public void write(Map<Integer, HorseDatabase.HorseRow> horses, Map<Integer, Map<String, String>> extras) throws IOException {
+        if (horses.isEmpty() && extras.isEmpty()) return;
+        try {
+            if (this.writerStatements == null) this.writerStatements = new StatementCache(this.connections.openWriter());
+            StatementCache statements = this.writerStatements;
+            PreparedStatement horseStatement = statements.prepare(SQL_UPDATE_HORSE);
+            PreparedStatement extraStatement = statements.prepare(SQL_SAVE_EXTRA);
+            inTransaction(statements.getConnection(), horseStatement, () -> {
+                    if (!horses.isEmpty()) {
+                        Map<Integer, Map<Integer, byte[][]>> deltas = new HashMap<>(); // By mask and id
+                        for (Map.Entry<Integer, HorseDatabase.HorseRow> row: horses.entrySet()) {
+                            byte[][] groups = splitDelta(row.getValue().getData());
+                            if (groups != null) {
+                                int mask = 0;
+                                for (int group = 0; group < groups.length; group += 1) {
+                                    if (groups[group] != null) mask |= 1 << group;
+                                }
+                                Map<Integer, byte[][]> map = deltas.get(mask);
+                                if (map == null) {
+                                    map = new LinkedHashMap<>();
+                                    deltas.put(mask, map);
+                                }
+                                map.put(row.getKey(), groups);
+                                continue;
+                            }
+                            horseStatement.setBytes(1, row.getValue().getData());
+                            int index = bindColumns(horseStatement, 2, row.getValue());
+                            horseStatement.setInt(index, row.getKey());
+                            horseStatement.addBatch();
+                        }
+                        horseStatement.executeBatch();
+                        for (Map.Entry<Integer, Map<Integer, byte[][]>> entry: deltas.entrySet()) {
+                            PreparedStatement deltaStatement = statements.prepare(SQL_UPDATE_GROUPS[entry.getKey()]);
+                            try {
+                                for (Map.Entry<Integer, byte[][]> row: entry.getValue().entrySet()) {
+                                    int index = 1;
+                                    for (byte[] group: row.getValue()) {
+                                        if (group != null) deltaStatement.setBytes(index++, group);
+                                    }
+                                    index = bindColumns(deltaStatement, index, horses.get(row.getKey()));
+                                    deltaStatement.setInt(index, row.getKey());
+                                    deltaStatement.addBatch();
+                                }
+                                deltaStatement.executeBatch();
+                            } catch (SQLException sqle) {
+                                deltaStatement.clearBatch();
+                                throw sqle;
+                            }
+                        }
+                        statements.prepare(SQL_BUMP_SEQUENCE).executeUpdate();
+                    }
+                    if (!extras.isEmpty()) {
+                        try {
+                            for (Map.Entry<Integer, Map<String, String>> row: extras.entrySet()) {
+                                for (Map.Entry<String, String> value: row.getValue().entrySet()) {
+                                    extraStatement.setInt(1, row.getKey());
+                                    extraStatement.setString(2, value.getKey());
+                                    extraStatement.setString(3, value.getValue());
+                                    extraStatement.addBatch();
+                                }
+                            }
+                            extraStatement.executeBatch();
+                        } catch (SQLException sqle) {
+                            extraStatement.clearBatch();
+                            throw sqle;
+                        }
+                    }
+                });
+        } catch (SQLException sqle) {
+            if (!HorseConnections.isBusy(sqle) && this.writerStatements != null) {
+                this.writerStatements.close();
+                this.writerStatements = null;
+            }
+            throw new IOException(sqle);
+        }
+    }
+
+    /**
+     * The field groups of a delta, or null if the data are a whole
+     * horse.
+     */
+    private static byte[][] splitDelta(byte[] data) throws SQLException {
+        if (!HorseCodec.isDelta(data)) return null;
+        try {
+            return HorseCodec.split(data);
+        } catch (IOException ioe) {
+            throw new SQLException(ioe);
+        }
+    }
+
+    /**
+     * Read the `data` of the current row of SQL_SELECT_DATA, with any
+     * group columns merged on top.
+     */
+    private static Object readData(ResultSet row) throws SQLException, IOException {
+        Object data = row.getObject("data");
+        byte[][] groups = new byte[GROUP_COLUMNS.length][];
+        boolean any = false;
+        for (int group = 0; group < GROUP_COLUMNS.length; group += 1) {
+            groups[group] = row.getBytes(GROUP_COLUMNS[group]);
+            if (groups[group] != null) any = true;
+        }
+        if (!any) return data;
+        if (!(data instanceof byte[])) throw new IOException("Horse #" + row.getInt("id") + ": Field groups without a binary row");
+        return HorseCodec.merge((byte[])data, HorseCodec.join(groups));
+    }
+
+    @Override
+    public void readHorses(HorseDatabase.HorseRowConsumer consumer) throws IOException {
+        try (ResultSet row = getStatements().prepare(SQL_SELECT_DATA + " ORDER BY `id`").executeQuery()) {
+            while (row.next()) {
+                Object data;
+                try {
+                    data = readData(row);
+                } catch (IOException ioe) {
+                    this.logger.log(Level.WARNING, "Failed to read horse #" + row.getInt("id"), ioe);
+                    continue;
+                }
+                consumer.accept(row.getInt("id"), data);
+            }
+        } catch (SQLException sqle) {
+            throw new IOException(sqle);
+        }
+    }
+
+    @Override
+    public Object loadHorse(int id) throws IOException {
+        try {
+            PreparedStatement statement = getStatements().prepare(SQL_SELECT_DATA + " WHERE `id` = ?");
+            statement.setInt(1, id);
+            try (ResultSet row = statement.executeQuery()) {
+                if (!row.next()) return null;
+                return readData(row);
+            }
+        } catch (SQLException sqle) {
+            throw new IOException(sqle);
+        }
+    }
+
+    @Override
+    public Map<Integer, Object> loadHorses(Collection<Integer> horseIds) throws IOException {
+        try {
+            return this.connections.read(connection -> loadHorses(connection, horseIds));
+        } catch (SQLException sqle) {
+            throw new IOException(sqle);
+        }
+    }
+
+    private Map<Integer, Object> loadHorses(Connection connection, Collection<Integer> horseIds) throws SQLException {
+        Map<Integer, Object> result = new HashMap<>();
+        List<Integer> ids = new ArrayList<>(horseIds);
+        for (int from = 0; from < ids.size(); from += 500) {
+            List<Integer> part = ids.subList(from, Math.min(ids.size(), from + 500));
+            StringBuilder sql = new StringBuilder(SQL_SELECT_DATA + " WHERE `id` IN (?");
+            for (int i = 1; i < part.size(); i += 1) sql.append(", ?");
+            sql.append(")");
+            try (PreparedStatement statement = connection.prepareStatement(sql.toString())) {
+                for (int i = 0; i < part.size(); i += 1) statement.setInt(i + 1, part.get(i));
+                try (ResultSet row = statement.executeQuery()) {
+                    while (row.next()) {
+                        try {
+                            result.put(row.getInt("id"), readData(row));
+                        } catch (IOException ioe) {
+                            this.logger.log(Level.WARNING, "Failed to read horse #" + row.getInt("id"), ioe);
+                        }
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Fill in the queryable columns of all rows which were stored
+     * before the columns existed.  Rows are found by their missing
+     * `last_seen`, which is always set when a horse is written, so an
+     * interrupted backfill resumes on the next start.
+     */
+    @Override
+    public int backfillColumns(HorseRowMapper mapper) throws IOException {
+        final Map<Integer, HorseDatabase.HorseRow> rows = new LinkedHashMap<>();
+        try {
+            StatementCache statements = getStatements();
+            try (ResultSet row = statements.prepare("SELECT `id`, `data` FROM `horses` WHERE `last_seen` IS NULL").executeQuery()) {
+                while (row.next()) {
+                    int id = row.getInt("id");
+                    try {
+                        rows.put(id, mapper.map(id, row.getObject("data")));
+                    } catch (IOException | RuntimeException e) {
+                        // Left for the next start
+                        this.logger.log(Level.WARNING, "Failed to backfill horse #" + id, e);
+                    }
+                }
+            }
+            if (rows.isEmpty()) return 0;
+            PreparedStatement statement = statements.prepare(SQL_UPDATE_COLUMNS);
+            inTransaction(statements.getConnection(), statement, () -> {
+                    for (Map.Entry<Integer, HorseDatabase.HorseRow> row: rows.entrySet()) {
+                        int index = bindColumns(statement, 1, row.getValue());
+                        statement.setInt(index, row.getKey());
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                });
+        } catch (SQLException sqle) {
+            throw new IOException(sqle);
+        }
+        return rows.size();
+    }
+
+    /**
+     * Runs on the column indexes instead of loading any horse, on a
+     * pooled reader.
+     */
+    @Override
+    public Map<String, Integer> countHorsesBy(String column) throws IOException {
+        if (!HorseDatabase.REPORT_COLUMNS.contains(column)) throw new IllegalArgumentException("Not a report column: " + column);
+        final String sql = "SELECT `" + column + "` AS `value`, COUNT(*) AS `count` FROM `horses` GROUP BY `" + column + "` ORDER BY `count` DESC";
+        try {
+            return this.connections.read(connection -> {
+                    Map<String, Integer> result = new LinkedHashMap<>();
+                    try (Statement statement = connection.createStatement();
+                         ResultSet row = statement.executeQuery(sql)) {
+                        while (row.next()) result.put(row.getString("value"), row.getInt("count"));
+                    }
+                    return result;
+                });
+        } catch (SQLException sqle) {
+            throw new IOException(sqle);
+        }
+    }
+
+    @Override
+    public boolean isEmpty() throws IOException {
+        try (ResultSet row = getStatements().prepare("SELECT EXISTS (SELECT 1 FROM `horses`) OR EXISTS (SELECT 1 FROM `brands`) OR EXISTS (SELECT 1 FROM `extra`)").executeQuery()) {
+            return !row.next() || row.getInt(1) == 0;
+        } catch (SQLException sqle) {
+            throw new IOException(sqle);
+        }
+    }
+
+    /**
+     * On a pooled reader, in one read transaction, which sees the
+     * database as it was when the transaction started.  Thanks to WAL
+     * mode, the writer goes on meanwhile.  Extra data are joined to
+     * their horses by running through both tables in horse order.
+     */
+    @Override
+    public void exportAll(ExportConsumer consumer) throws IOException {
+        try {
+            this.connections.read(connection -> {
+                    connection.setAutoCommit(false);
+                    try (Statement brandStatement = connection.createStatement();
+                         Statement horseStatement = connection.createStatement();
+                         Statement extraStatement = connection.createStatement()) {
+                        try (ResultSet row = brandStatement.executeQuery("SELECT `owner`, `format` FROM `brands`")) {
+                            while (row.next()) consumer.brand(new HorseBrand(UUID.fromString(row.getString("owner")), row.getString("format")));
+                        }
+                        try (ResultSet row = horseStatement.executeQuery(SQL_SELECT_DATA + " ORDER BY `id`");
+                             ResultSet extraRow = extraStatement.executeQuery("SELECT `horse_id`, `key`, `data` FROM `extra` ORDER BY `horse_id`")) {
+                            boolean hasExtra = extraRow.next();
+                            while (row.next()) {
+                                int id = row.getInt("id");
+                                Map<String, String> extra = new HashMap<>();
+                                while (hasExtra && extraRow.getInt("horse_id") <= id) {
+                                    if (extraRow.getInt("horse_id") == id) extra.put(extraRow.getString("key"), extraRow.getString("data"));
+                                    hasExtra = extraRow.next();
+                                }
+                                consumer.horse(id, readData(row), extra);
+                            }
+                        }
+                    } catch (IOException ioe) {
+                        throw new SQLException(ioe);
+                    } finally {
+                        connection.rollback();
+                        connection.setAutoCommit(true);
+                    }
+                    return null;
+                });
+        } catch (SQLException sqle) {
+            if (sqle.getCause() instanceof IOException) throw (IOException)sqle.getCause();
+            throw new IOException(sqle);
+        }
+    }
+
+    /**
+     * Counted in the `meta` table, in the same transaction as every
+     * horse write.
+     */
+    @Override
+    public long getWriteSequence() throws IOException {
+        try (ResultSet row = getStatements().prepare("SELECT `value` FROM `meta` WHERE `key` = 'write_sequence'").executeQuery()) {
+            if (!row.next()) throw new SQLException("Write sequence missing");
+            return row.getLong(1);
+        } catch (SQLException sqle) {
+            throw new IOException(sqle);
+        }
+    }
+
+    // --- Extra Data
+
+    @Override
+    public Map<String, String> loadExtraData(int horseId) throws IOException {
+        Map<String, String> result = new HashMap<>();
+        try {
+            PreparedStatement statement = getStatements().prepare("SELECT * FROM `extra` WHERE horse_id = ?");
+            statement.setInt(1, horseId);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    result.put(resultSet.getString("key"), resultSet.getString("data"));
+                }
+            }
+        } catch (SQLException sqle) {
+            throw new IOException(sqle);
+        }
+        return result;
+    }
+
+    /**
+     * With one query per 500 horses, on a pooled reader.
+     */
+    @Override
+    public Map<Integer, Map<String, String>> loadExtraData(Collection<Integer> horseIds) throws IOException {
+        try {
+            return this.connections.read(connection -> loadExtraData(connection, horseIds));
+        } catch (SQLException sqle) {
+            throw new IOException(sqle);
+        }
+    }
+
+    private static Map<Integer, Map<String, String>> loadExtraData(Connection connection, Collection<Integer> horseIds) throws SQLException {
+        Map<Integer, Map<String, String>> result = new HashMap<>();
+        List<Integer> ids = new ArrayList<>(horseIds);
+        for (int from = 0; from < ids.size(); from += 500) {
+            List<Integer> part = ids.subList(from, Math.min(ids.size(), from + 500));
+            StringBuilder sql = new StringBuilder("SELECT `horse_id`, `key`, `data` FROM `extra` WHERE `horse_id` IN (?");
+            for (int i = 1; i < part.size(); i += 1) sql.append(", ?");
+            sql.append(")");
+            try (PreparedStatement statement = connection.prepareStatement(sql.toString())) {
+                for (int i = 0; i < part.size(); i += 1) {
+                    statement.setInt(i + 1, part.get(i));
+                    result.put(part.get(i), new HashMap<>());
+                }
+                try (ResultSet row = statement.executeQuery()) {
+                    while (row.next()) {
+                        result.get(row.getInt("horse_id")).put(row.getString("key"), row.getString("data"));
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    // --- Brands
+
+    @Override
+    public List<HorseBrand> loadBrands() throws IOException {
+        ArrayList<HorseBrand> result = new ArrayList<>();
+        try (ResultSet row = getStatements().prepare("SELECT * FROM `brands`").executeQuery()) {
+            while (row.next()) {
+                try {
+                    UUID owner = UUID.fromString(row.getString("owner"));
+                    String format = row.getString("format");
+                    result.add(new HorseBrand(owner, format));
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        } catch (SQLException sqle) {
+            throw new IOException(sqle);
+        }
+        return result;
+    }
+
+    @Override
+    public boolean saveBrand(HorseBrand brand) throws IOException {
+        String sql = "INSERT INTO `brands` (created, owner, format) values (DATETIME('now'), ?, ?)";
+        try {
+            return writeOnMain(statements -> {
+                    PreparedStatement statement = statements.prepare(sql);
+                    statement.setString(1, brand.getOwner().toString());
+                    statement.setString(2, brand.getFormat());
+                    return 1 == statement.executeUpdate();
+                });
+        } catch (SQLException sqle) {
+            throw new IOException(sqle);
+        }
+    }
+
+    @Override
+    public boolean deleteBrand(UUID owner) throws IOException {
+        String sql = "DELETE FROM `brands` WHERE owner = ?";
+        try {
+            return writeOnMain(statements -> {
+                    PreparedStatement statement = statements.prepare(sql);
+                    statement.setString(1, owner.toString());
+                    return 1 == statement.executeUpdate();
+                });
+        } catch (SQLException sqle) {
+            throw new IOException(sqle);
+        }
+    }
+
+    // --- Transactions
+
+    @FunctionalInterface
+    private interface Work {
+        void run() throws SQLException;
+    }
+
+    @FunctionalInterface
+    private interface MainWork<T> {
+        T run(StatementCache statements) throws SQLException;
+    }
+
+    /**
+     * Write on the connection of the main thread.  It waits for locks
+     * only MAIN_BUSY_TIMEOUT at a time, and HorseDatabaseWriter keeps
+     * its transactions short, so the work is simply tried again while
+     * the database is busy, up to MAIN_ATTEMPTS times.
+     */
+    private <T> T writeOnMain(MainWork<T> work) throws SQLException {
+        for (int attempt = 1;; attempt += 1) {
+            try {
+                return work.run(getStatements());
+            } catch (SQLException sqle) {
+                if (attempt >= MAIN_ATTEMPTS || !HorseConnections.isBusy(sqle)) throw sqle;
+            }
+        }
+    }
+
+    /**
+     * Run some batched statements in one transaction, rolling back and
+     * clearing the batch of the given statement if they fail.
+     */
+    private static void inTransaction(Connection connection, PreparedStatement statement, Work work) throws SQLException {
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try {
+            work.run();
+            connection.commit();
+        } catch (SQLException sqle) {
+            statement.clearBatch();
+            connection.rollback();
+            throw sqle;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+}
@@ -1,9 +1,10 @@
 package net.equestriworlds.horse;
 
 import java.util.UUID;
+import lombok.AccessLevel;
 import lombok.Getter;
-import lombok.RequiredArgsConstructor;
 import lombok.Setter;
+import org.bukkit.Location;
 import org.bukkit.attribute.Attribute;
 import org.bukkit.entity.AbstractHorse;
 
@@ -18,6 +19,20 @@ public final class SpawnedHorse {
     long ticksLived;
     UUID following;
     Crosstie crosstie;
+    @Setter(AccessLevel.NONE)
+    boolean virtual; // No entity on purpose, see HorseVirtualizer
+    @Getter(AccessLevel.NONE) @Setter(AccessLevel.NONE)
+    SpawnedHorseRegistry registry; // Set by the registry
+    @Getter(AccessLevel.NONE) @Setter(AccessLevel.NONE)
+    int slot = -1; // In the registry
+    @Getter(AccessLevel.NONE) @Setter(AccessLevel.NONE)
+    int phase; // See SpawnedHorseRegistry
+    @Getter(AccessLevel.NONE) @Setter(AccessLevel.NONE)
+    boolean eventsDue; // Waiting for its phase
+    @Getter(AccessLevel.NONE) @Setter(AccessLevel.NONE)
+    final HorseTimerWheel.Entry timer = new HorseTimerWheel.Entry(this);
+    @Getter(AccessLevel.NONE) @Setter(AccessLevel.NONE)
+    int pendingWork; // See HorseTickBudget
 
     SpawnedHorse(HorseData data) {
         if (data == null) throw new NullPointerException("data cannot be null");
@@ -26,10 +41,21 @@ public final class SpawnedHorse {
         this.extra = new HorseExtra(data.getId());
     }
 
+    /**
+     * Always use this to change the entity so the registry can keep
+     * track.
+     */
+    void setEntity(AbstractHorse newEntity) {
+        AbstractHorse oldEntity = this.entity;
+        this.entity = newEntity;
+        if (newEntity != null) this.virtual = false;
+        if (this.registry != null) this.registry.onEntityChange(this, oldEntity, newEntity);
+    }
+
     void despawn() {
         if (entity == null) return;
         entity.remove();
-        entity = null;
+        setEntity(null);
         if (crosstie != null) removeCrosstie();
     }
 
@@ -37,6 +63,16 @@ public final class SpawnedHorse {
         return entity != null && entity.isValid();
     }
 
+    /**
+     * The location of the entity, or the stored one if there is no
+     * entity.  Null if neither is known.
+     */
+    Location getLocation() {
+        if (isPresent()) return this.entity.getLocation();
+        HorseData.HorseLocation location = this.data.getLocation();
+        return location == null ? null : location.bukkitLocation();
+    }
+
     boolean represents(AbstractHorse otherEntity) {
         return this.entity != null && this.entity.equals(otherEntity);
     }
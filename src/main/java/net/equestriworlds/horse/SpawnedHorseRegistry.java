@@ -0,0 +1,169 @@
+package net.equestriworlds.horse;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+import org.bukkit.entity.AbstractHorse;
+
+/**
+ * All SpawnedHorse instances known to HorsePlugin, along with lookup
+ * tables by entity UUID and by horse id.  Most event handlers start
+ * by finding the SpawnedHorse of an entity, so this has to be fast.
+ *
+ * SpawnedHorse#setEntity() reports entity changes back to this
+ * registry.
+ *
+ * Horses are kept in an array, and each knows its slot, so removal
+ * moves the last horse into the gap instead of shifting the rest.
+ * HorseTicker walks the array by index from the end with get(int),
+ * which allocates nothing and may remove the current horse on the
+ * way: the horse moved into its slot was already visited.
+ *
+ * Each horse also gets one of PHASES tick phases, the least loaded
+ * one, so periodic work of horses spawned together is spread over
+ * the ticks of a second, see HorseTicker.  Removal moves one horse
+ * out of the most loaded phase if the phases drift apart by more
+ * than one horse.
+ */
+final class SpawnedHorseRegistry implements Iterable<SpawnedHorse> {
+    private SpawnedHorse[] horses = new SpawnedHorse[64];
+    private int size;
+    static final int PHASES = 20; // Ticks per second
+    private final int[] phaseLoad = new int[PHASES];
+    private final Map<UUID, SpawnedHorse> byEntity = new HashMap<>();
+    private final IntHashMap<SpawnedHorse> byHorseId = new IntHashMap<>();
+
+    void add(SpawnedHorse spawned) {
+        if (spawned.registry != null) throw new IllegalStateException("spawned horse already registered");
+        if (this.byHorseId.containsKey(spawned.data.getId())) throw new IllegalStateException("duplicate spawned horse: " + spawned.data.getId());
+        spawned.registry = this;
+        if (this.size == this.horses.length) this.horses = Arrays.copyOf(this.horses, this.size * 2);
+        spawned.slot = this.size;
+        this.horses[this.size++] = spawned;
+        spawned.phase = lightestPhase();
+        this.phaseLoad[spawned.phase] += 1;
+        this.byHorseId.put(spawned.data.getId(), spawned);
+        if (spawned.entity != null) this.byEntity.put(spawned.entity.getUniqueId(), spawned);
+    }
+
+    void remove(SpawnedHorse spawned) {
+        if (spawned.registry != this) return;
+        spawned.registry = null;
+        int last = --this.size;
+        SpawnedHorse moved = this.horses[last];
+        this.horses[spawned.slot] = moved;
+        moved.slot = spawned.slot;
+        this.horses[last] = null;
+        spawned.slot = -1;
+        this.phaseLoad[spawned.phase] -= 1;
+        rebalance(spawned.phase);
+        this.byHorseId.remove(spawned.data.getId());
+        if (spawned.entity != null) this.byEntity.remove(spawned.entity.getUniqueId(), spawned);
+    }
+
+    void clear() {
+        for (int i = 0; i < this.size; i += 1) {
+            this.horses[i].registry = null;
+            this.horses[i].slot = -1;
+            this.horses[i] = null;
+        }
+        this.size = 0;
+        Arrays.fill(this.phaseLoad, 0);
+        this.byHorseId.clear();
+        this.byEntity.clear();
+    }
+
+    private int lightestPhase() {
+        int result = 0;
+        for (int phase = 1; phase < PHASES; phase += 1) {
+            if (this.phaseLoad[phase] < this.phaseLoad[result]) result = phase;
+        }
+        return result;
+    }
+
+    /**
+     * Move one horse from the most loaded phase into the given one,
+     * which just lost a horse, unless they are still balanced.
+     */
+    private void rebalance(int phase) {
+        int heaviest = 0;
+        for (int i = 1; i < PHASES; i += 1) {
+            if (this.phaseLoad[i] > this.phaseLoad[heaviest]) heaviest = i;
+        }
+        if (this.phaseLoad[heaviest] - this.phaseLoad[phase] <= 1) return;
+        for (int i = this.size - 1; i >= 0; i -= 1) {
+            SpawnedHorse spawned = this.horses[i];
+            if (spawned.phase != heaviest) continue;
+            spawned.phase = phase;
+            this.phaseLoad[heaviest] -= 1;
+            this.phaseLoad[phase] += 1;
+            return;
+        }
+    }
+
+    /**
+     * The number of horses in a tick phase.
+     */
+    int getPhaseLoad(int phase) {
+        return this.phaseLoad[phase];
+    }
+
+    /**
+     * Called by SpawnedHorse#setEntity().
+     */
+    void onEntityChange(SpawnedHorse spawned, AbstractHorse oldEntity, AbstractHorse newEntity) {
+        if (oldEntity != null) this.byEntity.remove(oldEntity.getUniqueId(), spawned);
+        if (newEntity != null) this.byEntity.put(newEntity.getUniqueId(), spawned);
+    }
+
+    SpawnedHorse get(AbstractHorse entity) {
+        SpawnedHorse spawned = this.byEntity.get(entity.getUniqueId());
+        if (spawned == null || !spawned.represents(entity)) return null;
+        return spawned;
+    }
+
+    SpawnedHorse get(HorseData data) {
+        SpawnedHorse spawned = this.byHorseId.get(data.getId());
+        if (spawned == null || spawned.data != data) return null;
+        return spawned;
+    }
+
+    boolean containsHorse(int horseId) {
+        return this.byHorseId.containsKey(horseId);
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    /**
+     * The horse in the given slot, from 0 to size() - 1.
+     */
+    SpawnedHorse get(int slot) {
+        return this.horses[slot];
+    }
+
+    /**
+     * Iterate in slot order.  The registry must not change meanwhile.
+     */
+    @Override
+    public Iterator<SpawnedHorse> iterator() {
+        return new Iterator<SpawnedHorse>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return this.next < SpawnedHorseRegistry.this.size;
+            }
+
+            @Override
+            public SpawnedHorse next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return SpawnedHorseRegistry.this.horses[this.next++];
+            }
+        };
+    }
+}
@@ -0,0 +1,65 @@
+package net.equestriworlds.horse;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Reusable prepared statements of one connection, by SQL string.
+ * Preparing a statement means parsing and planning the query, which
+ * is wasted work for the handful of queries SQLiteHorseStorage runs over
+ * and over.
+ *
+ * Like the connection itself, this may only be used by one thread.
+ * Callers must not close the statements they get, but should close
+ * their result sets.
+ */
+@RequiredArgsConstructor
+final class StatementCache implements AutoCloseable {
+    @Getter private final Connection connection;
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+    PreparedStatement prepare(String sql) throws SQLException {
+        return prepare(sql, Statement.NO_GENERATED_KEYS);
+    }
+
+    /**
+     * Each SQL string is expected to always come with the same
+     * autoGeneratedKeys flag.
+     */
+    PreparedStatement prepare(String sql, int autoGeneratedKeys) throws SQLException {
+        PreparedStatement statement = this.statements.get(sql);
+        if (statement == null || statement.isClosed()) {
+            statement = this.connection.prepareStatement(sql, autoGeneratedKeys);
+            this.statements.put(sql, statement);
+        } else {
+            statement.clearParameters();
+        }
+        return statement;
+    }
+
+    /**
+     * Close all statements and the connection.
+     */
+    @Override
+    public void close() {
+        for (PreparedStatement statement: this.statements.values()) {
+            try {
+                statement.close();
+            } catch (SQLException sqle) {
+                sqle.printStackTrace();
+            }
+        }
+        this.statements.clear();
+        try {
+            this.connection.close();
+        } catch (SQLException sqle) {
+            sqle.printStackTrace();
+        }
+    }
+}
@@ -2,13 +2,27 @@ package net.equestriworlds.horse;
 
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Proxy;
 import java.lang.reflect.Type;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Logger;
 import org.bukkit.Sound;
+import org.bukkit.entity.AbstractHorse;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Test;
 import org.yaml.snakeyaml.Yaml;
 
@@ -135,4 +149,533 @@ public final class HorseTest {
         out.println("</table>");
         out.close();
     }
+
+    @Test
+    public void intHashMap() {
+        IntHashMap<String> map = new IntHashMap<>();
+        for (int i = -500; i < 500; i += 1) map.put(i * 31, "" + i);
+        Assert.assertEquals(1000, map.size());
+        for (int i = -500; i < 500; i += 2) Assert.assertEquals("" + i, map.remove(i * 31));
+        Assert.assertEquals(500, map.size());
+        for (int i = -500; i < 500; i += 1) {
+            Assert.assertEquals(i % 2 == 0 ? null : "" + i, map.get(i * 31));
+        }
+        Assert.assertNull(map.get(7));
+    }
+
+    @Test
+    public void longHashMap() {
+        LongHashMap<String> map = new LongHashMap<>();
+        for (int cz = -20; cz < 20; cz += 1) {
+            for (int cx = -20; cx < 20; cx += 1) {
+                map.put(HorseData.HorseLocation.chunkKey(cx, cz), cx + "," + cz);
+            }
+        }
+        Assert.assertEquals(1600, map.size());
+        Assert.assertEquals("-1,3", map.get(HorseData.HorseLocation.chunkKey(-1, 3)));
+        Assert.assertEquals("3,-1", map.remove(HorseData.HorseLocation.chunkKey(3, -1)));
+        Assert.assertNull(map.get(HorseData.HorseLocation.chunkKey(3, -1)));
+        Assert.assertEquals("-20,-20", map.get(HorseData.HorseLocation.chunkKey(-20, -20)));
+    }
+
+    @Test
+    public void horseTimerWheel() {
+        HorseTimerWheel wheel = new HorseTimerWheel(1000L);
+        SpawnedHorse[] horses = new SpawnedHorse[3];
+        for (int i = 0; i < horses.length; i += 1) {
+            HorseData data = new HorseData();
+            data.setId(i + 1);
+            horses[i] = new SpawnedHorse(data);
+        }
+        wheel.schedule(horses[0].timer, 1000L + 5L);
+        wheel.schedule(horses[1].timer, 1000L + 100000L);
+        wheel.schedule(horses[2].timer, 1000L + 5L);
+        wheel.cancel(horses[2].timer);
+        Assert.assertEquals(2, wheel.size());
+        wheel.advance(1004L);
+        Assert.assertNull(wheel.pollDue());
+        wheel.advance(1005L);
+        Assert.assertSame(horses[0], wheel.pollDue());
+        Assert.assertNull(wheel.pollDue());
+        wheel.advance(1000L + 99999L);
+        Assert.assertNull(wheel.pollDue());
+        wheel.advance(1000L + 100000L);
+        Assert.assertSame(horses[1], wheel.pollDue());
+        Assert.assertEquals(0, wheel.size());
+    }
+
+    /**
+     * With no budget at all, only MIN_HORSES horses per priority are
+     * served, and the rest carries over.
+     */
+    @Test
+    public void horseTickBudget() {
+        List<SpawnedHorse> performed = new ArrayList<>();
+        HorseTickBudget budget = new HorseTickBudget(0L, (spawned, work) -> performed.add(spawned));
+        SpawnedHorse[] horses = new SpawnedHorse[10];
+        for (int i = 0; i < horses.length; i += 1) {
+            HorseData data = new HorseData();
+            data.setId(i + 1);
+            horses[i] = new SpawnedHorse(data);
+        }
+        budget.begin();
+        for (SpawnedHorse spawned: horses) budget.submit(spawned, HorseTickBudget.SAVE);
+        budget.submit(horses[0], HorseTickBudget.SAVE);
+        budget.submit(horses[9], HorseTickBudget.EVENTS);
+        budget.cancel(horses[1]);
+        budget.drain();
+        Assert.assertEquals(Arrays.asList(horses[9], horses[0], horses[2], horses[3], horses[4]), performed);
+        Assert.assertEquals(5, budget.getCarriedOver());
+        performed.clear();
+        budget.begin();
+        budget.drain();
+        Assert.assertEquals(Arrays.asList(horses[5], horses[6], horses[7], horses[8]), performed);
+        budget.begin();
+        budget.drain();
+        Assert.assertEquals(0, budget.getCarriedOver());
+        Assert.assertEquals(3L, budget.getTicks());
+    }
+
+    /**
+     * Removal moves the last horse into the gap, and an idle tick of
+     * HorseTicker over the spawned horses allocates nothing.  The
+     * allocation check needs a JVM which counts allocated bytes per
+     * thread.
+     */
+    @Test
+    public void spawnedHorseRegistry() {
+        SpawnedHorseRegistry registry = new SpawnedHorseRegistry();
+        SpawnedHorse[] horses = new SpawnedHorse[100];
+        for (int i = 0; i < horses.length; i += 1) {
+            HorseData data = new HorseData();
+            data.setId(i + 1);
+            horses[i] = new SpawnedHorse(data);
+            horses[i].setEntity(validEntity());
+            registry.add(horses[i]);
+        }
+        registry.remove(horses[10]);
+        registry.remove(horses[99]);
+        registry.remove(horses[0]);
+        Assert.assertEquals(97, registry.size());
+        Assert.assertSame(horses[98], registry.get(10));
+        Assert.assertSame(horses[97], registry.get(0));
+        for (int i = 0; i < registry.size(); i += 1) Assert.assertEquals(i, registry.get(i).slot);
+        Assert.assertFalse(registry.containsHorse(11));
+        Assert.assertSame(horses[50], registry.get(horses[50].getEntity()));
+        // Allocation
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+        HorseTimerWheel timer = new HorseTimerWheel(HorseExtra.now());
+        HorseTickBudget budget = new HorseTickBudget(HorseTickBudget.DEFAULT_BUDGET, (spawned, work) -> { });
+        HorseTicker ticker = new HorseTicker(registry, timer, budget, new HorseVirtualizer(null, 0.0), new HorseTimings(),
+                                             (spawned, now) -> Assert.fail("Absent: " + spawned.data.getId()));
+        final int ticks = 10000;
+        for (int i = 0; i < ticks; i += 1) ticker.tick(); // Warm up
+        long thread = Thread.currentThread().getId();
+        long allocated;
+        long minute;
+        do {
+            // HorseTimings allocates a histogram per section when a
+            // new minute starts, so measure within one minute.
+            minute = System.currentTimeMillis() / 60000L;
+            long before = threads.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < ticks; i += 1) ticker.tick();
+            allocated = threads.getThreadAllocatedBytes(thread) - before;
+        } while (minute != System.currentTimeMillis() / 60000L);
+        Assert.assertTrue("Bytes allocated by idle ticks: " + allocated, allocated < 1024L);
+        Assert.assertTrue(registry.get(0).getTicksLived() >= 2L * ticks);
+        Assert.assertEquals(0, budget.getSubmitted());
+    }
+
+    private static AbstractHorse validEntity() {
+        final UUID uuid = UUID.randomUUID();
+        return (AbstractHorse)Proxy.newProxyInstance(AbstractHorse.class.getClassLoader(), new Class<?>[] {AbstractHorse.class}, (proxy, method, args) -> {
+                switch (method.getName()) {
+                case "isValid": return true;
+                case "getUniqueId": return uuid;
+                case "equals": return proxy == args[0];
+                case "hashCode": return uuid.hashCode();
+                default: throw new UnsupportedOperationException(method.getName());
+                }
+            });
+    }
+
+    /**
+     * Catching up on a span in one step ends where passing every
+     * second of it would.
+     */
+    @Test
+    public void feedingCatchUp() {
+        Feeding feeding = new Feeding(null);
+        final long from = 1500000000L;
+        final long to = from + Util.ONE_DAY * 10L + 12345L;
+        for (HorseAge age: Arrays.asList(HorseAge.FOAL, HorseAge.ADULT)) {
+            SpawnedHorse passed = feedingHorse(age, from);
+            SpawnedHorse caughtUp = feedingHorse(age, from);
+            // Only deadlines can change anything, so skip to the next
+            // one like the timer wheel does.
+            long now = from;
+            int events = 0;
+            while (now <= to) {
+                if (feeding.burnFat(passed, now)) events += 1;
+                if (feeding.dehydrate(passed, now)) events += 1;
+                now = Math.min(passed.extra.getDeadline(Cooldown.BURN_FAT), passed.extra.getDeadline(Cooldown.DEHYDRATE));
+            }
+            Assert.assertTrue(events > 50);
+            feeding.catchUp(caughtUp, from, to);
+            Assert.assertEquals(passed.data.getBody(), caughtUp.data.getBody(), 0.000001);
+            Assert.assertEquals(passed.data.getHydration(), caughtUp.data.getHydration(), 0.000001);
+            Assert.assertEquals(passed.extra.getDeadline(Cooldown.BURN_FAT), caughtUp.extra.getDeadline(Cooldown.BURN_FAT));
+            Assert.assertEquals(passed.extra.getDeadline(Cooldown.DEHYDRATE), caughtUp.extra.getDeadline(Cooldown.DEHYDRATE));
+        }
+    }
+
+    private static SpawnedHorse feedingHorse(HorseAge age, long now) {
+        HorseData data = new HorseData();
+        data.setId(1);
+        data.setAge(age);
+        data.setBody(9.0);
+        data.setHydration(HydrationLevel.MAX_VALUE);
+        SpawnedHorse spawned = new SpawnedHorse(data);
+        spawned.extra.setDeadline(Cooldown.BURN_FAT, now - 60L); // Overdue
+        spawned.extra.setDeadline(Cooldown.DEHYDRATE, now + Util.ONE_HOUR * 5L);
+        return spawned;
+    }
+
+    /**
+     * Tick phases stay balanced as horses come and go.
+     */
+    @Test
+    public void spawnedHorsePhases() {
+        SpawnedHorseRegistry registry = new SpawnedHorseRegistry();
+        List<SpawnedHorse> horses = new ArrayList<>();
+        for (int i = 0; i < 45; i += 1) {
+            HorseData data = new HorseData();
+            data.setId(i + 1);
+            horses.add(new SpawnedHorse(data));
+            registry.add(horses.get(i));
+        }
+        assertPhasesBalanced(registry);
+        // Removing a whole phase at once.
+        for (SpawnedHorse spawned: horses) {
+            if (spawned.phase == 0) registry.remove(spawned);
+        }
+        assertPhasesBalanced(registry);
+        for (int i = 0; i < 20; i += 1) registry.remove(horses.get(i));
+        assertPhasesBalanced(registry);
+    }
+
+    private static void assertPhasesBalanced(SpawnedHorseRegistry registry) {
+        int min = Integer.MAX_VALUE;
+        int max = 0;
+        int total = 0;
+        for (int phase = 0; phase < SpawnedHorseRegistry.PHASES; phase += 1) {
+            int load = registry.getPhaseLoad(phase);
+            min = Math.min(min, load);
+            max = Math.max(max, load);
+            total += load;
+        }
+        Assert.assertEquals(registry.size(), total);
+        Assert.assertTrue(max - min <= 1);
+        int[] counted = new int[SpawnedHorseRegistry.PHASES];
+        for (SpawnedHorse spawned: registry) counted[spawned.phase] += 1;
+        for (int phase = 0; phase < SpawnedHorseRegistry.PHASES; phase += 1) Assert.assertEquals(counted[phase], registry.getPhaseLoad(phase));
+    }
+
+    @Test
+    public void horseTimings() {
+        for (long nanos: new long[] {0L, 3L, 4L, 7L, 8L, 100L, 12345L, 999999999L}) {
+            int bucket = HorseTimings.bucketOf(nanos);
+            Assert.assertTrue(HorseTimings.bucketLimit(bucket) >= nanos);
+            Assert.assertTrue(HorseTimings.bucketLimit(bucket) <= nanos + nanos / 4L);
+            if (bucket > 0) Assert.assertTrue(HorseTimings.bucketLimit(bucket - 1) < nanos);
+        }
+        HorseTimings timings = new HorseTimings();
+        HorseTimings.Section section = timings.section("test");
+        Assert.assertSame(section, timings.section("test"));
+        for (int i = 1; i <= 100; i += 1) section.record(i * 1000L);
+        HorseTimings.Stats stats = section.getStats(1);
+        Assert.assertEquals(100L, stats.getCalls());
+        Assert.assertEquals(5050000L, stats.getTotal());
+        Assert.assertEquals(100000L, stats.getMax());
+        Assert.assertTrue(stats.getP50() >= 50000L && stats.getP50() <= 62500L);
+        Assert.assertTrue(stats.getP99() >= 99000L && stats.getP99() <= 100000L);
+        Assert.assertEquals("test", timings.getStats(15).get(0).getName());
+        timings.reset();
+        Assert.assertTrue(timings.getStats(15).isEmpty());
+    }
+
+    @Test
+    public void horseCodec() throws Exception {
+        HorseCodec codec = new HorseCodec(Collections.emptyMap());
+        HorseData horse = new HorseData();
+        horse.setId(42);
+        horse.setName("Epona");
+        horse.setOwner(UUID.randomUUID());
+        horse.getTrusted().add(UUID.randomUUID());
+        horse.setGender(HorseGender.values()[0]);
+        horse.setBreed(HorseBreed.values()[0]);
+        horse.setColor(HorseColor.random());
+        horse.setMarkings(HorseMarkings.random());
+        horse.setBody(5.25);
+        horse.setJump(0.7123);
+        byte[] bytes = codec.encode(horse);
+        Assert.assertTrue(HorseCodec.isBinary(bytes));
+        Assert.assertEquals(horse, codec.decode(bytes));
+        Assert.assertTrue(bytes.length < new Gson().toJson(horse).length());
+        // Item JSON may exceed the 65535 bytes of writeUTF().
+        char[] lore = new char[70000];
+        Arrays.fill(lore, '\u00e9');
+        horse.setSaddle(new String(lore));
+        Assert.assertEquals(horse, codec.decode(codec.encode(horse)));
+        horse.setSaddle(null);
+        // Stored codes win over enum order.
+        List<String> colors = new ArrayList<>();
+        for (HorseColor color: HorseColor.values()) colors.add(0, color.name());
+        HorseCodec other = new HorseCodec(Collections.singletonMap("HorseColor", colors));
+        Assert.assertFalse(other.getAddedNames().containsKey("HorseColor"));
+        Assert.assertTrue(other.getAddedNames().containsKey("HorseGender"));
+        Assert.assertEquals(horse, other.decode(other.encode(horse)));
+    }
+
+    /**
+     * Only changed field groups are encoded, and merging them over
+     * the whole horse yields the changed horse.
+     */
+    @Test
+    public void horseCodecDelta() throws Exception {
+        HorseCodec codec = new HorseCodec(Collections.emptyMap());
+        HorseData horse = new HorseData();
+        horse.setId(42);
+        horse.setName("Epona");
+        horse.getTrusted().add(UUID.randomUUID());
+        byte[] bytes = codec.encode(horse);
+        Assert.assertFalse(HorseCodec.isDelta(bytes));
+        Assert.assertNull(codec.encodeChanges(horse));
+        horse.setBody(2.5);
+        horse.getTrusted().add(UUID.randomUUID());
+        byte[] delta = codec.encodeChanges(horse);
+        Assert.assertTrue(HorseCodec.isDelta(delta));
+        Assert.assertTrue(delta.length < bytes.length);
+        byte[][] groups = HorseCodec.split(delta);
+        Assert.assertNull(groups[HorseCodec.IDENTITY]);
+        Assert.assertNotNull(groups[HorseCodec.VITALS]);
+        Assert.assertNotNull(groups[HorseCodec.ACCESS]);
+        Assert.assertEquals(horse, codec.decode(HorseCodec.merge(bytes, delta)));
+        Assert.assertNull(codec.encodeChanges(horse));
+    }
+
+    /**
+     * A failed write is retried with the rows submitted meanwhile
+     * merged in, newest first.  Runtime exceptions do not stop the
+     * writer either.
+     */
+    @Test
+    public void databaseWriterRetry() throws Exception {
+        final int[] attempts = {0};
+        final List<Map<Integer, HorseDatabase.HorseRow>> writtenHorses = new ArrayList<>();
+        final List<Map<Integer, Map<String, String>>> writtenExtras = new ArrayList<>();
+        final HorseDatabaseWriter[] writer = new HorseDatabaseWriter[1];
+        writer[0] = new HorseDatabaseWriter((horses, extras) -> {
+                attempts[0] += 1;
+                if (attempts[0] == 1) {
+                    // Fail once, with a newer row on the way.
+                    writer[0].submit(Collections.singletonMap(1, writerRow(3)));
+                    throw new java.io.IOException("Disk full");
+                } else if (attempts[0] == 2) {
+                    throw new IllegalStateException("Driver bug");
+                }
+                writtenHorses.add(new HashMap<>(horses));
+                writtenExtras.add(new HashMap<>(extras));
+            }, Logger.getLogger("HorseTest"));
+        Map<Integer, HorseDatabase.HorseRow> rows = new HashMap<>();
+        rows.put(1, writerRow(1));
+        rows.put(2, writerRow(2));
+        writer[0].submit(rows);
+        writer[0].submitExtra(2, Collections.singletonMap("a", "b"));
+        Assert.assertArrayEquals(writerRow(1).getData(), writer[0].getPendingHorse(1));
+        Assert.assertEquals("b", writer[0].getPendingExtra(2).get("a"));
+        writer[0].start();
+        try {
+            Assert.assertTrue(writer[0].flush(10000L));
+        } finally {
+            writer[0].stop();
+        }
+        Assert.assertEquals(3, attempts[0]);
+        Assert.assertEquals(1, writtenHorses.size());
+        Assert.assertEquals(2, writtenHorses.get(0).size());
+        Assert.assertArrayEquals(writerRow(3).getData(), writtenHorses.get(0).get(1).getData());
+        Assert.assertArrayEquals(writerRow(2).getData(), writtenHorses.get(0).get(2).getData());
+        Assert.assertEquals(Collections.singletonMap("a", "b"), writtenExtras.get(0).get(2));
+        Assert.assertTrue(writer[0].isIdle());
+        Assert.assertNull(writer[0].getPendingHorse(1));
+    }
+
+    /**
+     * A long queue is written in batches of at most MAX_BATCH rows,
+     * each horse along with its extra data.
+     */
+    @Test
+    public void databaseWriterBatches() throws Exception {
+        final List<Integer> sizes = new ArrayList<>();
+        final Map<Integer, HorseDatabase.HorseRow> written = new HashMap<>();
+        HorseDatabaseWriter writer = new HorseDatabaseWriter((horses, extras) -> {
+                int size = horses.size();
+                for (Map.Entry<Integer, Map<String, String>> entry: extras.entrySet()) {
+                    Assert.assertTrue(horses.containsKey(entry.getKey()));
+                    size += entry.getValue().size();
+                }
+                sizes.add(size);
+                written.putAll(horses);
+            }, Logger.getLogger("HorseTest"));
+        Map<Integer, HorseDatabase.HorseRow> rows = new HashMap<>();
+        for (int i = 1; i <= 1200; i += 1) {
+            rows.put(i, writerRow(i));
+            writer.submitExtra(i, Collections.singletonMap("a", "b"));
+        }
+        writer.submit(rows);
+        writer.start();
+        try {
+            Assert.assertTrue(writer.flush(10000L));
+        } finally {
+            writer.stop();
+        }
+        Assert.assertEquals(1200, written.size());
+        Assert.assertTrue(sizes.size() > 1);
+        for (int size: sizes) Assert.assertTrue(size <= HorseDatabaseWriter.MAX_BATCH);
+    }
+
+    private static HorseDatabase.HorseRow writerRow(int version) {
+        return new HorseDatabase.HorseRow(new byte[] {(byte)version}, null, null, null, null, null, null, null, null, 0L);
+    }
+
+    /**
+     * Write to a JournalHorseStorage, reopen it, and make sure
+     * everything is replayed, even after a torn record at the end.
+     */
+    @Test
+    public void journalStorage() throws Exception {
+        File folder = File.createTempFile("horses", ".journal");
+        folder.delete();
+        try {
+            UUID owner = UUID.randomUUID();
+            HorseDatabase.HorseRow row = new HorseDatabase.HorseRow(new byte[] {1, 2, 3}, owner.toString(), "world", 4, -5, "ARABIAN", null, null, null, 1234L);
+            HorseDatabase.HorseRow row2 = new HorseDatabase.HorseRow(new byte[] {4, 5}, null, null, null, null, "ARABIAN", "MARE", null, null, 5678L);
+            JournalHorseStorage storage = new JournalHorseStorage(folder, Logger.getLogger("HorseTest"));
+            storage.open();
+            Assert.assertTrue(storage.isEmpty());
+            storage.addNames("HorseGender", 0, Arrays.asList("MARE", "STALLION"));
+            int id = storage.insertHorse(row);
+            int id2 = storage.insertHorse(row);
+            Map<String, String> extra = new HashMap<>();
+            extra.put("pregnancy", "{}");
+            storage.write(Collections.singletonMap(id2, row2), Collections.singletonMap(id, extra));
+            Assert.assertTrue(storage.saveBrand(new HorseBrand(owner, "XY")));
+            Assert.assertFalse(storage.saveBrand(new HorseBrand(owner, "XZ")));
+            storage.close();
+            // Torn record at the end
+            File journal = folder.listFiles()[0];
+            long size = journal.length();
+            try (RandomAccessFile file = new RandomAccessFile(journal, "rw")) {
+                file.seek(size);
+                file.writeInt(100);
+                file.writeInt(0);
+            }
+            storage = new JournalHorseStorage(folder, Logger.getLogger("HorseTest"));
+            storage.open();
+            Assert.assertEquals(size, journal.length());
+            Assert.assertArrayEquals(row.getData(), (byte[])storage.loadHorse(id));
+            Assert.assertArrayEquals(row2.getData(), (byte[])storage.loadHorse(id2));
+            Assert.assertEquals(extra, storage.loadExtraData(id));
+            Assert.assertEquals(1, storage.loadBrands().size());
+            Assert.assertEquals(Arrays.asList("MARE", "STALLION"), storage.loadNames().get("HorseGender"));
+            Assert.assertEquals(Integer.valueOf(2), storage.countHorsesBy("breed").get("ARABIAN"));
+            Assert.assertEquals(id2 + 1, storage.insertHorse(row));
+            List<Integer> exported = new ArrayList<>();
+            List<HorseBrand> exportedBrands = new ArrayList<>();
+            storage.exportAll(new HorseStorage.ExportConsumer() {
+                    @Override
+                    public void brand(HorseBrand brand) {
+                        exportedBrands.add(brand);
+                    }
+
+                    @Override
+                    public void horse(int horseId, Object value, Map<String, String> values) {
+                        exported.add(horseId);
+                        if (horseId == id) Assert.assertEquals(extra, values);
+                    }
+                });
+            Assert.assertEquals(Arrays.asList(id, id2, id2 + 1), exported);
+            Assert.assertEquals(1, exportedBrands.size());
+            storage.close();
+        } finally {
+            File[] files = folder.listFiles();
+            if (files != null) for (File file: files) file.delete();
+            folder.delete();
+        }
+    }
+
+    @Test
+    public void summarySnapshot() throws Exception {
+        HorseData horse = new HorseData();
+        horse.setId(7);
+        horse.setName("Epona");
+        horse.setOwner(UUID.randomUUID());
+        horse.setGender(HorseGender.values()[0]);
+        horse.setBreed(HorseBreed.values()[0]);
+        HorseData horse2 = new HorseData();
+        horse2.setId(3);
+        horse2.setName("Spirit");
+        File file = File.createTempFile("summaries", ".snapshot");
+        try {
+            HorseSummarySnapshot.write(file, HorseSummarySnapshot.encode("sqlite", 42L, Arrays.asList(new HorseSummary(horse), new HorseSummary(horse2))));
+            Assert.assertNull(HorseSummarySnapshot.read(file, "sqlite", 43L, Logger.getLogger("HorseTest")));
+            Assert.assertNull(HorseSummarySnapshot.read(file, "journal", 42L, Logger.getLogger("HorseTest")));
+            List<HorseSummary> summaries = HorseSummarySnapshot.read(file, "sqlite", 42L, Logger.getLogger("HorseTest"));
+            Assert.assertEquals(2, summaries.size());
+            Assert.assertEquals(3, summaries.get(0).getId());
+            HorseSummary summary = summaries.get(1);
+            Assert.assertEquals(horse.getName(), summary.getName());
+            Assert.assertEquals(horse.getOwner(), summary.getOwner());
+            Assert.assertEquals(horse.getGender(), summary.getGender());
+            Assert.assertEquals(horse.getBreed(), summary.getBreed());
+            Assert.assertFalse(summary.hasLocation());
+            Assert.assertNull(summaries.get(0).getOwner());
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Connections opened by HorseConnections are tuned for many small
+     * writes.  Skipped without the SQLite driver.
+     */
+    @Test
+    public void databaseConnections() throws Exception {
+        try {
+            Class.forName("org.sqlite.JDBC");
+        } catch (ClassNotFoundException cnfe) {
+            Assume.assumeNoException(cnfe);
+        }
+        File file = File.createTempFile("horses", ".db");
+        try (Connection connection = new HorseConnections(file).openWriter();
+             Statement statement = connection.createStatement()) {
+            Assert.assertEquals("wal", pragma(statement, "journal_mode"));
+            Assert.assertEquals("1", pragma(statement, "synchronous")); // NORMAL
+            Assert.assertEquals("" + HorseConnections.BUSY_TIMEOUT, pragma(statement, "busy_timeout"));
+        } finally {
+            for (File other: file.getParentFile().listFiles()) {
+                if (other.getName().startsWith(file.getName())) other.delete();
+            }
+        }
+    }
+
+    private static String pragma(Statement statement, String name) throws Exception {
+        try (ResultSet result = statement.executeQuery("PRAGMA " + name)) {
+            Assert.assertTrue(result.next());
+            return result.getString(1);
+        }
+    }
 }